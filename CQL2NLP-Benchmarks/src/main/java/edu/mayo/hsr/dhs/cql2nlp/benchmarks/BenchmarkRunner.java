@@ -0,0 +1,24 @@
+package edu.mayo.hsr.dhs.cql2nlp.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler attached, so that allocation rates (gc.alloc.rate.norm, bytes per
+ * operation) are reported next to throughput. <br/>
+ * <br/>
+ * Usage: java -jar benchmarks.jar [JMH options, e.g. CQLParserBenchmark -p valueSets=1000 -rf json]
+ */
+public class BenchmarkRunner {
+
+    public static void main(String... args) throws Exception {
+        Options options = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,39 @@
+package edu.mayo.hsr.dhs.cql2nlp.benchmarks;
+
+import edu.mayo.hsr.dhs.cql2nlp.CQLParser;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures valueset extraction from the bundled phenotype library and from synthetic libraries of increasing size
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CQLParserBenchmark {
+
+    /**
+     * Number of value sets in the library, 0 for the bundled HeartFailurePhenotype.cql
+     */
+    @Param({"0", "50", "1000"})
+    public int valueSets;
+
+    private final CQLParser parser = new CQLParser();
+    private String cql;
+
+    @Setup
+    public void setup() throws IOException {
+        cql = valueSets == 0 ? Fixtures.read("HeartFailurePhenotype.cql") : Fixtures.library(valueSets);
+    }
+
+    @Benchmark
+    public Map<String, String> getValueSets() throws IOException {
+        return parser.getValueSets(cql);
+    }
+}
@@ -0,0 +1,77 @@
+package edu.mayo.hsr.dhs.cql2nlp.benchmarks;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.model.ValueSet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Loads the bundled fixtures and builds synthetic inputs of configurable size
+ */
+final class Fixtures {
+
+    private static final String[] CODE_SYSTEMS = {
+            "http://hl7.org/fhir/sid/icd-10-cm", "http://snomed.info/sct", "http://loinc.org"
+    };
+
+    private Fixtures() {
+    }
+
+    static String read(String name) throws IOException {
+        try (InputStream in = Fixtures.class.getResourceAsStream(name)) {
+            if (in == null) {
+                throw new FileNotFoundException(name);
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int read;
+            while ((read = in.read(buf)) > 0) {
+                out.write(buf, 0, read);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    static ValueSet readValueSet(String name) throws IOException {
+        return FhirContext.forR4().newJsonParser().parseResource(ValueSet.class, read(name));
+    }
+
+    /**
+     * A library shaped like the bundled phenotype, with the given number of value sets each used by a definition
+     */
+    static String library(int valueSets) {
+        StringBuilder cql = new StringBuilder("library SyntheticPhenotype version '1.0.000'\n\nusing FHIR version 'R4'\n\n");
+        for (int i = 0; i < valueSets; i++) {
+            cql.append("valueset \"Value Set ").append(i).append("\": '2.16.840.1.113883.3.526.2.")
+                    .append(i).append("' version '20200512'\n");
+        }
+        cql.append("\ncontext Patient\n\n");
+        for (int i = 0; i < valueSets; i++) {
+            cql.append("define \"Has Condition ").append(i).append("\":\n")
+                    .append("    exists([\"Condition\": \"Value Set ").append(i).append("\"] c\n")
+                    .append("        where c.extension.certainty_modifier = 1)\n\n");
+        }
+        return cql.toString();
+    }
+
+    /**
+     * A VSAC-style value set with the given number of concepts spread over three code systems
+     */
+    static ValueSet valueSet(int concepts) {
+        ValueSet vs = new ValueSet();
+        vs.setId("2.16.840.1.113883.3.526.2.999");
+        vs.setVersion("20200512");
+        ValueSet.ValueSetComposeComponent compose = vs.getCompose();
+        for (int s = 0; s < CODE_SYSTEMS.length; s++) {
+            ValueSet.ConceptSetComponent include = compose.addInclude().setSystem(CODE_SYSTEMS[s]);
+            for (int i = s; i < concepts; i += CODE_SYSTEMS.length) {
+                include.addConcept().setCode(String.valueOf(100000 + i)).setDisplay("Synthetic concept " + i);
+            }
+        }
+        return vs;
+    }
+}
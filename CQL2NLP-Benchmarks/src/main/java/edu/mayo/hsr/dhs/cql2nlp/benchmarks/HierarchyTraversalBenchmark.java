@@ -0,0 +1,71 @@
+package edu.mayo.hsr.dhs.cql2nlp.benchmarks;
+
+import edu.mayo.hsr.dhs.cql2nlp.UMLSBrowser;
+import edu.mayo.hsr.dhs.cql2nlp.structs.CodifiedValueSetElement;
+import edu.mayo.hsr.dhs.cql2nlp.structs.VSACCodeSystem;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures expanding a SNOMED CT code through the RB hierarchy against a {@link SimulatedTerminologyService}, both
+ * cold (every relation looked up through the simulated UTS) and warm (relations served from the browser's caches)
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HierarchyTraversalBenchmark {
+
+    private static final CodifiedValueSetElement ELEMENT = new CodifiedValueSetElement(VSACCodeSystem.SNOMEDCT, "84114007");
+
+    @Benchmark
+    public Set<CodifiedValueSetElement> coldTraversal(ColdBrowser state) throws IOException {
+        return state.browser.getCUIsForValueSetElement(ELEMENT, true);
+    }
+
+    @Benchmark
+    public Set<CodifiedValueSetElement> warmTraversal(Browser state) throws IOException {
+        return state.browser.getCUIsForValueSetElement(ELEMENT, true);
+    }
+
+    @State(Scope.Benchmark)
+    public static class Browser {
+        @Param({"1000"})
+        public int concepts;
+
+        @Param({"4"})
+        public int fanOut;
+
+        /**
+         * Simulated UTS round trip time per lookup
+         */
+        @Param({"0", "200"})
+        public long latencyMicros;
+
+        UMLSBrowser browser;
+
+        @Setup
+        public void setup() {
+            browser = new UMLSBrowser(new SimulatedTerminologyService(concepts, fanOut, latencyMicros));
+        }
+
+        @TearDown
+        public void tearDown() {
+            browser.close();
+        }
+    }
+
+    /**
+     * Clears the browser's caches before each invocation, outside of the measured time
+     */
+    public static class ColdBrowser extends Browser {
+        @Setup(Level.Invocation)
+        public void clearCaches() {
+            browser.clearCaches();
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package edu.mayo.hsr.dhs.cql2nlp.benchmarks;
+
+import edu.mayo.hsr.dhs.cql2nlp.TerminologyService;
+import edu.mayo.hsr.dhs.cql2nlp.structs.UMLSSourceVocabulary;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * In-process stand-in for UTS over a synthetic, complete RB hierarchy. Concept i has the children i * fanOut + 1 to
+ * i * fanOut + fanOut, every source code maps to the root concept, and each lookup waits for a fixed latency to model
+ * the round trip to UTS.
+ */
+final class SimulatedTerminologyService implements TerminologyService {
+
+    private final String[] cuis;
+    private final int fanOut;
+    private final long latencyNanos;
+
+    /**
+     * @param concepts      The number of concepts in the hierarchy
+     * @param fanOut        The number of children of each concept
+     * @param latencyMicros The simulated round trip time of each lookup
+     */
+    SimulatedTerminologyService(int concepts, int fanOut, long latencyMicros) {
+        this.cuis = new String[concepts];
+        for (int i = 0; i < concepts; i++) {
+            cuis[i] = String.format("C%07d", i);
+        }
+        this.fanOut = fanOut;
+        this.latencyNanos = TimeUnit.MICROSECONDS.toNanos(latencyMicros);
+    }
+
+    @Override
+    public String getRelease() {
+        return "SIMULATED";
+    }
+
+    @Override
+    public Set<String> getCUIsForSourceCode(UMLSSourceVocabulary sab, String code) {
+        roundTrip();
+        return Collections.singleton(cuis[0]);
+    }
+
+    @Override
+    public Set<String> getRBRelatedCUIs(String cui) {
+        roundTrip();
+        int parent = Integer.parseInt(cui.substring(1));
+        Set<String> ret = new HashSet<>();
+        for (int child = parent * fanOut + 1; child <= parent * fanOut + fanOut && child < cuis.length; child++) {
+            ret.add(cuis[child]);
+        }
+        return ret;
+    }
+
+    @Override
+    public Set<String> getEnglishAtomNames(String cui) {
+        roundTrip();
+        return Collections.singleton("synthetic concept " + cui.toLowerCase());
+    }
+
+    @Override
+    public Set<String> getSemanticTypes(String cui) {
+        roundTrip();
+        return Collections.singleton("T047");
+    }
+
+    private void roundTrip() {
+        if (latencyNanos > 0) {
+            long deadline = System.nanoTime() + latencyNanos;
+            long remaining;
+            while ((remaining = deadline - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(remaining);
+            }
+        }
+    }
+}
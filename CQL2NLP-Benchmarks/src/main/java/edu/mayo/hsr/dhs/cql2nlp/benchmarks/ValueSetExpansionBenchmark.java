@@ -0,0 +1,49 @@
+package edu.mayo.hsr.dhs.cql2nlp.benchmarks;
+
+import edu.mayo.hsr.dhs.cql2nlp.ValueSetResolver;
+import edu.mayo.hsr.dhs.cql2nlp.structs.CodifiedValueSetElement;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures resolving the codes of already retrieved value sets: the bundled recorded VSAC heart failure value set and
+ * synthetic value sets of increasing size. The fixtures reference no other value sets, so VSAC is never contacted.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ValueSetExpansionBenchmark {
+
+    /**
+     * Number of concepts in the value set, 0 for the bundled heart-failure.valueset.json
+     */
+    @Param({"0", "1000", "20000"})
+    public int concepts;
+
+    private ValueSetResolver resolver;
+    private ValueSet valueSet;
+
+    @Setup
+    public void setup() throws IOException {
+        resolver = new ValueSetResolver("benchmark", "benchmark", null);
+        resolver.setConcurrentExpansion(false);
+        valueSet = concepts == 0 ? Fixtures.readValueSet("heart-failure.valueset.json") : Fixtures.valueSet(concepts);
+    }
+
+    @TearDown
+    public void tearDown() {
+        resolver.close();
+    }
+
+    @Benchmark
+    public Set<CodifiedValueSetElement> resolveValueSetCodes() {
+        return resolver.resolveValueSetCodes(valueSet);
+    }
+}
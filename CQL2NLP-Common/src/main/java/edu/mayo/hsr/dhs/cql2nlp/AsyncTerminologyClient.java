@@ -0,0 +1,205 @@
+package edu.mayo.hsr.dhs.cql2nlp;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import edu.mayo.hsr.dhs.cql2nlp.structs.UMLSSourceVocabulary;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.web.reactive.function.client.ClientRequest;
+import org.springframework.web.reactive.function.client.ExchangeFilterFunction;
+import org.springframework.web.reactive.function.client.ExchangeStrategies;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import org.springframework.web.util.UriComponentsBuilder;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+
+/**
+ * Non-blocking counterpart to {@link UTSTerminologyService} and {@link ValueSetResolver#getValueSetForOID(String)}. <br/>
+ * <br/>
+ * All instances share one event-loop based HTTP client and connection pool, so hundreds of requests can be in flight
+ * on a handful of threads. Retrieving UTS service tickets is still a blocking call and is therefore offloaded to a
+ * bounded elastic scheduler rather than run on the event loop. <br/>
+ * <br/>
+ * Requests share the blocking clients' per-host {@link RateLimiter}s and {@link Metrics}, and transient failures are
+ * retried with the same policy, see {@link Retries#callAsync}. Each attempt goes through the filters again, so it
+ * obtains a fresh service ticket and waits for a rate limit permit.
+ */
+public class AsyncTerminologyClient {
+
+    private static final int MAX_CONNECTIONS = 500;
+    // VSAC grouping value sets routinely exceed WebClient's default 256KB in-memory limit
+    private static final int MAX_RESPONSE_BYTES = 32 * 1024 * 1024;
+    private static final ReactorClientHttpConnector SHARED_CONNECTOR =
+            new ReactorClientHttpConnector(HttpClient.create(ConnectionProvider.fixed("cql2nlp", MAX_CONNECTIONS)));
+    private static final ExchangeStrategies STRATEGIES = ExchangeStrategies.builder()
+            .codecs(configurer -> configurer.defaultCodecs().maxInMemorySize(MAX_RESPONSE_BYTES))
+            .build();
+    // Registered after the ticket filter so that it times the exchange alone, like Metrics#httpInterceptor
+    private static final ExchangeFilterFunction METRICS = (request, next) -> {
+        long start = System.nanoTime();
+        String endpoint = Metrics.endpointOf(request.url());
+        return next.exchange(request)
+                .doOnSuccess(response -> Metrics.get().recordHttp(endpoint, String.valueOf(response.rawStatusCode()), start))
+                .doOnError(e -> Metrics.get().recordHttp(endpoint, "error", start));
+    };
+
+    // Shares the blocking clients' per-host limiters. Waiting for a permit blocks, so it is kept off the event loop
+    private static final ExchangeFilterFunction RATE_LIMIT = (request, next) -> {
+        RateLimiter limiter = RateLimiter.forHost(RateLimiter.hostOf(request.url()));
+        return Mono.fromCallable(() -> {
+                    limiter.acquire();
+                    return request;
+                })
+                .subscribeOn(Schedulers.boundedElastic())
+                .flatMap(next::exchange)
+                .doOnSuccess(response -> {
+                    if (response.rawStatusCode() == 429) {
+                        limiter.onThrottled(RateLimiter.parseRetryAfter(response.headers().asHttpHeaders().getFirst("Retry-After")));
+                    } else if (response.rawStatusCode() < 500) {
+                        limiter.onSuccess();
+                    }
+                });
+    };
+
+    private final WebClient uts;
+    private final WebClient vsac;
+    private final Duration timeout = Duration.ofMillis(Integer.getInteger(Retries.TIMEOUT_MILLIS_PROPERTY, 60_000));
+    private final FhirContext fhirContext = FhirContext.forR4();
+    private final ObjectMapper om = new ObjectMapper();
+
+    public AsyncTerminologyClient(String utsAcct, String utsPass) {
+        UTSAuthenticator auth = UTSAuthenticator.forCredentials(Endpoints.getUtsLoginUrl(), utsAcct, utsPass);
+        this.uts = WebClient.builder()
+                .baseUrl(Endpoints.getUtsRestUrl())
+                .clientConnector(SHARED_CONNECTOR)
+                .exchangeStrategies(STRATEGIES)
+                .filter(RATE_LIMIT)
+                .filter((request, next) -> Mono.fromCallable(auth::getServiceTicket)
+                        .subscribeOn(Schedulers.boundedElastic())
+                        .flatMap(ticket -> next.exchange(ClientRequest.from(request)
+                                .url(UriComponentsBuilder.fromUri(request.url()).queryParam("ticket", ticket).build(true).toUri())
+                                .build())))
+                .filter(METRICS)
+                .build();
+        this.vsac = WebClient.builder()
+                .baseUrl(Endpoints.getVsacUrl())
+                .clientConnector(SHARED_CONNECTOR)
+                .exchangeStrategies(STRATEGIES)
+                .defaultHeaders(headers -> headers.setBasicAuth(utsAcct, utsPass))
+                .filter(RATE_LIMIT)
+                .filter(METRICS)
+                .build();
+    }
+
+    /**
+     * Gets a FHIR ValueSet for an OID
+     *
+     * @param oid A VSAC OID, e.g. 2.16.840.1.113762.1.4.1223.9 for COVID-19
+     * @return A future FHIR ValueSet object. Note that the compose component can include links to other valuesets
+     */
+    public CompletableFuture<ValueSet> getValueSetForOID(String oid) {
+        return Retries.callAsync("vsac/valueset", () -> vsac.get().uri("/{oid}", oid)
+                        .retrieve()
+                        .bodyToMono(String.class)
+                        .timeout(timeout)
+                        .toFuture())
+                // HAPI parsers are not thread safe, the context is
+                .thenApply(body -> fhirContext.newJsonParser().parseResource(ValueSet.class, body));
+    }
+
+    /**
+     * @see TerminologyService#getCUIsForSourceCode(UMLSSourceVocabulary, String)
+     */
+    public CompletableFuture<Set<String>> getCUIsForSourceCode(UMLSSourceVocabulary sab, String code) {
+        return getJson("uts/search", "/search/current?sabs={sabs}&inputType=sourceUi&string={string}&returnIdType=concept&searchType=exact", sab.name(), code)
+                .thenApply(UTSTerminologyService::parseSearchResults);
+    }
+
+    /**
+     * Retrieves a single page of relations for a CUI
+     *
+     * @param cui  The concept in question
+     * @param page The 1-based page number
+     * @return The raw UTS response, including its pageCount
+     */
+    public CompletableFuture<JsonNode> getRelationPage(String cui, int page) {
+        return getJson("uts/relations", "/content/current/CUI/{cui}/relations?pageNumber={page}", cui, page);
+    }
+
+    /**
+     * Retrieves a single page of English atoms for a CUI
+     *
+     * @param cui  The concept in question
+     * @param page The 1-based page number
+     * @return The raw UTS response, including its pageCount
+     */
+    public CompletableFuture<JsonNode> getAtomPage(String cui, int page) {
+        return getJson("uts/atoms", "/content/current/CUI/{cui}/atoms?language=ENG&pageNumber={page}", cui, page);
+    }
+
+    /**
+     * @see TerminologyService#getRBRelatedCUIs(String)
+     */
+    public CompletableFuture<Set<String>> getRBRelatedCUIs(String cui) {
+        return getAllPages(page -> getRelationPage(cui, page), json -> UTSTerminologyService.parseRBRelations(cui, json));
+    }
+
+    /**
+     * @see TerminologyService#getEnglishAtomNames(String)
+     */
+    public CompletableFuture<Set<String>> getEnglishAtomNames(String cui) {
+        return getAllPages(page -> getAtomPage(cui, page), UTSTerminologyService::parseAtomNames);
+    }
+
+    /*
+     * Fetches the first page to learn the page count, then requests all remaining pages at once
+     */
+    private CompletableFuture<Set<String>> getAllPages(IntFunction<CompletableFuture<JsonNode>> pageFetcher, Function<JsonNode, Set<String>> parser) {
+        return pageFetcher.apply(1).thenCompose(first -> {
+            int pageCount = first.path("pageCount").asInt(1);
+            List<CompletableFuture<JsonNode>> rest = new ArrayList<>();
+            for (int page = 2; page <= pageCount; page++) {
+                rest.add(pageFetcher.apply(page));
+            }
+            return CompletableFuture.allOf(rest.toArray(new CompletableFuture[0])).thenApply(ignored -> {
+                Set<String> ret = new HashSet<>(parser.apply(first));
+                rest.forEach(page -> ret.addAll(parser.apply(page.join())));
+                return ret;
+            });
+        });
+    }
+
+    private CompletableFuture<JsonNode> getJson(String endpoint, String uriTemplate, Object... uriVars) {
+        return Retries.callAsync(endpoint, () -> uts.get().uri(uriTemplate, uriVars)
+                        .retrieve()
+                        .bodyToMono(String.class)
+                        .timeout(timeout)
+                        // UTS answers with a 404 rather than an empty result for concepts without atoms/relations
+                        .onErrorResume(WebClientResponseException.NotFound.class, e -> Mono.just("{}"))
+                        .toFuture())
+                .thenApply(this::readTree);
+    }
+
+    private JsonNode readTree(String body) {
+        try {
+            return om.readTree(body);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
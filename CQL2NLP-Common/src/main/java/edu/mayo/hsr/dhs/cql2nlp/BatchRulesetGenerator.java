@@ -0,0 +1,308 @@
+package edu.mayo.hsr.dhs.cql2nlp;
+
+import edu.mayo.hsr.dhs.cql2nlp.structs.CodifiedValueSetElement;
+import edu.mayo.hsr.dhs.cql2nlp.structs.VSACCodeSystem;
+import edu.mayo.hsr.dhs.cql2nlp.structs.ValueSetDefinition;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Generates NLP rulesets for many CQL libraries at once. <br/>
+ * <br/>
+ * Every value set of every library is queued on one shared pool, so a library with many (or slow) value sets does not
+ * hold up the others, and all libraries share the resolver's expansion memo and the browser's CUI caches. The
+ * outputs of a library are streamed to disk value set by value set, using the same formats as the GUI's
+ * nlp_export.json and cui_mappings.json. They are only open from when the library's first value set starts until its
+ * last one finishes, so libraries that are still queued or already done do not hold file descriptors.
+ */
+public class BatchRulesetGenerator {
+
+    /**
+     * System property controlling how many value sets are processed at once across all libraries
+     */
+    public static final String PARALLELISM_PROPERTY = "cql2nlp.batch.parallelism";
+
+    private final ValueSetResolver resolver;
+    private final UMLSBrowser browser;
+    private final Path outputDir;
+    private final CQLParser parser = new CQLParser();
+
+    public BatchRulesetGenerator(ValueSetResolver resolver, UMLSBrowser browser, Path outputDir) {
+        this.resolver = resolver;
+        this.browser = browser;
+        this.outputDir = outputDir;
+    }
+
+    /**
+     * Finds the CQL libraries to process
+     *
+     * @param dirOrGlob A directory, searched recursively for *.cql files, or a glob such as libraries/**&#47;*.cql
+     * @return The matching files in a stable order
+     */
+    public static List<Path> findLibraries(String dirOrGlob) throws IOException {
+        Path dir = Paths.get(dirOrGlob);
+        PathMatcher matcher;
+        if (Files.isDirectory(dir)) {
+            matcher = p -> p.getFileName().toString().toLowerCase().endsWith(".cql");
+        } else {
+            // Walk from the deepest directory that precedes the first glob character
+            int firstGlobChar = dirOrGlob.length();
+            for (char c : "*?[{".toCharArray()) {
+                int idx = dirOrGlob.indexOf(c);
+                if (idx >= 0 && idx < firstGlobChar) {
+                    firstGlobChar = idx;
+                }
+            }
+            String prefix = dirOrGlob.substring(0, firstGlobChar);
+            int lastSep = Math.max(prefix.lastIndexOf('/'), prefix.lastIndexOf(File.separatorChar));
+            dir = Paths.get(lastSep < 0 ? "." : prefix.substring(0, lastSep + 1));
+            PathMatcher glob = FileSystems.getDefault().getPathMatcher("glob:" + dirOrGlob);
+            Path base = dir;
+            matcher = p -> glob.matches(p) || glob.matches(base.relativize(p)) || glob.matches(p.normalize());
+        }
+        if (!Files.isDirectory(dir)) {
+            throw new NoSuchFileException(dirOrGlob);
+        }
+        try (Stream<Path> files = Files.walk(dir)) {
+            return files.filter(Files::isRegularFile).filter(matcher::matches).sorted().collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Processes all libraries, blocking until every output has been written
+     *
+     * @param libraries The CQL files to process, e.g. from {@link #findLibraries(String)}
+     * @return Counts and timings for the run
+     */
+    public BatchSummary run(List<Path> libraries) throws InterruptedException {
+        BatchSummary summary = new BatchSummary();
+        ExecutorService pool = IOExecutors.newExecutor("cql2nlp-batch", PARALLELISM_PROPERTY, 16);
+        CountDownLatch librariesDone = new CountDownLatch(libraries.size());
+        Map<String, Integer> nameCounts = new HashMap<>();
+        try {
+            for (Path library : libraries) {
+                String name = outputName(library, nameCounts);
+                pool.submit(() -> submitLibrary(pool, library, name, summary, librariesDone));
+            }
+            librariesDone.await();
+        } finally {
+            pool.shutdownNow();
+        }
+        summary.finish();
+        return summary;
+    }
+
+    private void submitLibrary(ExecutorService pool, Path library, String name, BatchSummary summary, CountDownLatch librariesDone) {
+        Map<String, ValueSetDefinition> definitions;
+        try {
+            definitions = parser.getValueSetDefinitions(new String(Files.readAllBytes(library), StandardCharsets.UTF_8));
+        } catch (Throwable t) {
+            System.err.println("Failed to parse " + library);
+            t.printStackTrace();
+            summary.librariesFailed.increment();
+            librariesDone.countDown();
+            return;
+        }
+        LibraryJob job = new LibraryJob(library, outputDir, name, definitions.size());
+        if (definitions.isEmpty()) {
+            finishLibrary(job, summary, librariesDone);
+            return;
+        }
+        definitions.forEach((id, def) -> pool.submit(() -> {
+            try {
+                job.open();
+                generateRuleset(job, id, def, summary);
+                summary.valueSets.increment();
+            } catch (Throwable t) {
+                System.err.println("Failed to generate a ruleset for " + id + " in " + library);
+                t.printStackTrace();
+                job.failed.set(true);
+                summary.valueSetsFailed.increment();
+            } finally {
+                if (job.remaining.decrementAndGet() == 0) {
+                    finishLibrary(job, summary, librariesDone);
+                }
+            }
+        }));
+    }
+
+    private void generateRuleset(LibraryJob job, String id, ValueSetDefinition def, BatchSummary summary) throws IOException {
+        // Keyed by output name rather than library path, output names are unique within a run
+        String metricsId = job.name + ":" + id;
+        long start = System.nanoTime();
+        Set<CodifiedValueSetElement> codes = resolver.expand(def.getOid(), def.getVersion()).getCodes();
+        Metrics.get().recordValueSetStage(metricsId, "expand", System.nanoTime() - start);
+        long cuiNanos = 0;
+        long displayNameNanos = 0;
+        Set<String> displayNames = new HashSet<>();
+        Set<String> cuis = new HashSet<>();
+        for (CodifiedValueSetElement element : codes) {
+            // Lookup failures have already been retried, they fail the whole value set rather than leave it incomplete
+            long stageStart = System.nanoTime();
+            Set<CodifiedValueSetElement> vals = browser.getCUIsForValueSetElement(element, true);
+            cuiNanos += System.nanoTime() - stageStart;
+            stageStart = System.nanoTime();
+            for (CodifiedValueSetElement val : vals) {
+                browser.getDisplayNamesForCUI(val.getCode()).forEach(s -> displayNames.add(val.getCode() + "|" + s));
+                if (val.getCodeSystem().equals(VSACCodeSystem.UMLS)) {
+                    cuis.add(val.getCode());
+                }
+            }
+            displayNameNanos += System.nanoTime() - stageStart;
+        }
+        Metrics.get().recordValueSetStage(metricsId, "cuis", cuiNanos);
+        Metrics.get().recordValueSetStage(metricsId, "display_names", displayNameNanos);
+        summary.codes.add(codes.size());
+        summary.rules.add(displayNames.size());
+        summary.cuis.addAll(cuis);
+        // Streamed to disk right away so that nothing accumulates until the library is done
+        long writeStart = System.nanoTime();
+        job.write(id, displayNames, cuis);
+        Metrics.get().recordValueSetStage(metricsId, "write", System.nanoTime() - writeStart);
+        job.written.incrementAndGet();
+    }
+
+    private void finishLibrary(LibraryJob job, BatchSummary summary, CountDownLatch librariesDone) {
+        try {
+            job.close();
+            if (job.failed.get()) {
+                summary.librariesFailed.increment();
+            } else {
+                summary.libraries.increment();
+            }
+            System.out.println("Wrote rulesets for " + job.library + " (" + job.written.get() + " value sets)");
+        } catch (Throwable t) {
+            System.err.println("Failed to write outputs for " + job.library);
+            t.printStackTrace();
+            summary.librariesFailed.increment();
+        } finally {
+            librariesDone.countDown();
+        }
+    }
+
+    /*
+     * Libraries in different directories may share a file name, suffix repeats so that outputs are not overwritten
+     */
+    private static String outputName(Path library, Map<String, Integer> nameCounts) {
+        String name = library.getFileName().toString();
+        if (name.toLowerCase().endsWith(".cql")) {
+            name = name.substring(0, name.length() - 4);
+        }
+        int count = nameCounts.merge(name, 1, Integer::sum);
+        return count == 1 ? name : name + "_" + count;
+    }
+
+    private static final class LibraryJob implements Closeable {
+        private final Path library;
+        private final Path outputDir;
+        private final String name;
+        private final AtomicInteger remaining;
+        private final AtomicInteger written = new AtomicInteger();
+        private final AtomicBoolean failed = new AtomicBoolean();
+        // Opened by the first value set to start, guarded by this
+        private StreamingRulesetWriter rulesetWriter;
+        private StreamingRulesetWriter cuiWriter;
+
+        private LibraryJob(Path library, Path outputDir, String name, int valueSets) {
+            this.library = library;
+            this.outputDir = outputDir;
+            this.name = name;
+            this.remaining = new AtomicInteger(valueSets);
+        }
+
+        private synchronized void open() throws IOException {
+            if (rulesetWriter != null) {
+                return;
+            }
+            Files.createDirectories(outputDir);
+            StreamingRulesetWriter rulesets = new StreamingRulesetWriter(outputDir.resolve(name + ".nlp_export.json").toFile());
+            try {
+                cuiWriter = new StreamingRulesetWriter(outputDir.resolve(name + ".cui_mappings.json").toFile());
+            } catch (IOException e) {
+                rulesets.close();
+                throw e;
+            }
+            rulesetWriter = rulesets;
+        }
+
+        private synchronized void write(String id, Collection<String> displayNames, Collection<String> cuis) throws IOException {
+            rulesetWriter.writeSorted(id, displayNames);
+            cuiWriter.writeSorted(id, cuis);
+        }
+
+        /*
+         * Called once the last value set has finished. Libraries without any value set still get (empty) outputs
+         */
+        @Override
+        public synchronized void close() throws IOException {
+            open();
+            try {
+                rulesetWriter.close();
+            } finally {
+                cuiWriter.close();
+            }
+        }
+    }
+
+    /**
+     * Counts and timings for a batch run
+     */
+    public static final class BatchSummary {
+        private final long start = System.nanoTime();
+        private long elapsedNanos;
+        private final LongAdder libraries = new LongAdder();
+        private final LongAdder librariesFailed = new LongAdder();
+        private final LongAdder valueSets = new LongAdder();
+        private final LongAdder valueSetsFailed = new LongAdder();
+        private final LongAdder codes = new LongAdder();
+        private final LongAdder rules = new LongAdder();
+        private final Set<String> cuis = ConcurrentHashMap.newKeySet();
+
+        private void finish() {
+            elapsedNanos = System.nanoTime() - start;
+        }
+
+        public long getLibraries() {
+            return libraries.sum();
+        }
+
+        public long getLibrariesFailed() {
+            return librariesFailed.sum();
+        }
+
+        public long getValueSets() {
+            return valueSets.sum();
+        }
+
+        public long getValueSetsFailed() {
+            return valueSetsFailed.sum();
+        }
+
+        public long getElapsedMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+        }
+
+        @Override
+        public String toString() {
+            double seconds = Math.max(elapsedNanos / 1e9, 1e-3);
+            return String.format("Processed %d libraries (%d failed) and %d value sets (%d failed) in %.1fs%n"
+                            + "  %d codes mapped to %d distinct CUIs, %d rules generated%n"
+                            + "  Throughput: %.2f value sets/s, %.2f libraries/min",
+                    getLibraries() + getLibrariesFailed(), getLibrariesFailed(),
+                    getValueSets() + getValueSetsFailed(), getValueSetsFailed(), seconds,
+                    codes.sum(), cuis.size(), rules.sum(),
+                    getValueSets() / seconds, getLibraries() * 60 / seconds);
+        }
+    }
+}
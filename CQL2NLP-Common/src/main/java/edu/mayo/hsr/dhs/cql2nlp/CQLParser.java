@@ -1,7 +1,9 @@
 package edu.mayo.hsr.dhs.cql2nlp;
 
-import org.antlr.v4.runtime.ANTLRInputStream;
-import org.antlr.v4.runtime.CommonTokenStream;
+import edu.mayo.hsr.dhs.cql2nlp.structs.ValueSetDefinition;
+import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
 import org.cqframework.cql.gen.cqlLexer;
 import org.cqframework.cql.gen.cqlParser;
 
@@ -17,28 +19,68 @@ import java.util.Map;
 public class CQLParser {
     public Map<String, String> getValueSets(String cql) throws IOException {
         Map<String, String> ret = new HashMap<>();
+        getValueSetDefinitions(cql).forEach((id, def) -> ret.put(id, def.getOid()));
+        return ret;
+    }
+
+    /**
+     * Gets every valueset declared in a CQL library, including any version specifiers
+     *
+     * @param cql The CQL library text
+     * @return The declared value sets, keyed by identifier
+     */
+    public Map<String, ValueSetDefinition> getValueSetDefinitions(String cql) throws IOException {
+        long start = System.nanoTime();
+        Map<String, ValueSetDefinition> ret = new HashMap<>();
         cqlLexer lexer = new cqlLexer(new ANTLRInputStream(new ByteArrayInputStream(
                 cql.getBytes(StandardCharsets.UTF_8))));
         CommonTokenStream tokens = new CommonTokenStream(lexer);
         cqlParser parser = new cqlParser(tokens);
-        cqlParser.LibraryContext lib = parser.library();
+        // SLL prediction is much cheaper and sufficient for nearly all input, only fall back to full LL when it fails
+        parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+        parser.setErrorHandler(new BailErrorStrategy());
+        parser.removeErrorListeners();
+        cqlParser.LibraryContext lib;
+        String prediction = "sll";
+        try {
+            lib = parser.library();
+        } catch (ParseCancellationException e) {
+            tokens.seek(0);
+            parser.reset();
+            parser.addErrorListener(ConsoleErrorListener.INSTANCE);
+            parser.setErrorHandler(new DefaultErrorStrategy());
+            parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+            prediction = "ll";
+            lib = parser.library();
+        }
+        Metrics.get().recordSince("cql_parse_seconds", start, "prediction", prediction);
         for (cqlParser.ValuesetDefinitionContext valueset : lib.valuesetDefinition()) {
-            cqlParser.IdentifierContext idContext = valueset.identifier();
-            String id = null;
-            if (idContext.DELIMITEDIDENTIFIER() != null) {
-                id = idContext.DELIMITEDIDENTIFIER().getSymbol().getText();
-            } else if (idContext.QUOTEDIDENTIFIER() != null) {
-                id = idContext.QUOTEDIDENTIFIER().getSymbol().getText();
-                id = id.substring(1, id.length() - 1);
-            } else if (idContext.IDENTIFIER() != null) {
-                id = idContext.IDENTIFIER().getSymbol().getText();
-            }
-            String oid = valueset.valuesetId().getText();
-            if (oid.startsWith("'")) {
-                oid = oid.substring(1, oid.length() - 1);
-            }
-            ret.put(id, oid);
+            ValueSetDefinition def = toDefinition(valueset);
+            ret.put(def.getIdentifier(), def);
         }
         return ret;
     }
+
+    static ValueSetDefinition toDefinition(cqlParser.ValuesetDefinitionContext valueset) {
+        cqlParser.IdentifierContext idContext = valueset.identifier();
+        String id = null;
+        if (idContext.DELIMITEDIDENTIFIER() != null) {
+            id = idContext.DELIMITEDIDENTIFIER().getSymbol().getText();
+        } else if (idContext.QUOTEDIDENTIFIER() != null) {
+            id = idContext.QUOTEDIDENTIFIER().getSymbol().getText();
+            id = id.substring(1, id.length() - 1);
+        } else if (idContext.IDENTIFIER() != null) {
+            id = idContext.IDENTIFIER().getSymbol().getText();
+        }
+        String oid = unquote(valueset.valuesetId().getText());
+        String version = valueset.versionSpecifier() == null ? null : unquote(valueset.versionSpecifier().getText());
+        return new ValueSetDefinition(id, oid, version);
+    }
+
+    private static String unquote(String literal) {
+        if (literal.startsWith("'")) {
+            return literal.substring(1, literal.length() - 1);
+        }
+        return literal;
+    }
 }
@@ -0,0 +1,92 @@
+package edu.mayo.hsr.dhs.cql2nlp;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import edu.mayo.hsr.dhs.cql2nlp.structs.UMLSSourceVocabulary;
+
+import java.io.IOException;
+import java.util.Set;
+
+/**
+ * Decorates a (typically remote) {@link TerminologyService} with a persistent {@link DiskCache} tier. Entries are
+ * keyed by the UMLS release reported by the delegate so that a new release is never answered from stale content. If
+ * the release cannot be determined, lookups go straight to the delegate, and the release is asked for again a minute
+ * later.
+ */
+public class CachingTerminologyService implements TerminologyService {
+
+    private static final String NAMESPACE = "umls";
+    private static final long RELEASE_RETRY_MILLIS = 60 * 1000;
+    private static final TypeReference<Set<String>> STRING_SET = new TypeReference<Set<String>>() {
+    };
+
+    private final TerminologyService delegate;
+    private final DiskCache cache;
+    private final ObjectMapper om = new ObjectMapper();
+    private volatile String release;
+    // When the release could last not be determined, or -1
+    private volatile long releaseFailedAt = -1;
+
+    public CachingTerminologyService(TerminologyService delegate, DiskCache cache) {
+        this.delegate = delegate;
+        this.cache = cache;
+    }
+
+    @Override
+    public String getRelease() throws IOException {
+        if (release == null) {
+            release = delegate.getRelease();
+        }
+        return release;
+    }
+
+    @Override
+    public Set<String> getCUIsForSourceCode(UMLSSourceVocabulary sab, String code) throws IOException {
+        return cached("search|" + sab.name() + "|" + code, () -> delegate.getCUIsForSourceCode(sab, code));
+    }
+
+    @Override
+    public Set<String> getRBRelatedCUIs(String cui) throws IOException {
+        return cached("rb|" + cui, () -> delegate.getRBRelatedCUIs(cui));
+    }
+
+    @Override
+    public Set<String> getEnglishAtomNames(String cui) throws IOException {
+        return cached("atoms|" + cui, () -> delegate.getEnglishAtomNames(cui));
+    }
+
+    @Override
+    public Set<String> getSemanticTypes(String cui) throws IOException {
+        return cached("sty|" + cui, () -> delegate.getSemanticTypes(cui));
+    }
+
+    private Set<String> cached(String key, Lookup lookup) throws IOException {
+        long failedAt = releaseFailedAt;
+        if (failedAt >= 0 && System.currentTimeMillis() - failedAt < RELEASE_RETRY_MILLIS) {
+            return lookup.get();
+        }
+        String version;
+        try {
+            version = getRelease();
+        } catch (IOException e) {
+            // Typically a transient outage of the release listing, not worth giving up the disk cache for good
+            releaseFailedAt = System.currentTimeMillis();
+            return lookup.get();
+        }
+        byte[] hit = cache.get(NAMESPACE, version, key);
+        if (hit != null) {
+            try {
+                return om.readValue(hit, STRING_SET);
+            } catch (IOException ignored) {
+                // Corrupt entry, fall through and overwrite it
+            }
+        }
+        Set<String> ret = lookup.get();
+        cache.put(NAMESPACE, version, key, om.writeValueAsBytes(ret));
+        return ret;
+    }
+
+    private interface Lookup {
+        Set<String> get() throws IOException;
+    }
+}
@@ -0,0 +1,297 @@
+package edu.mayo.hsr.dhs.cql2nlp;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import edu.mayo.hsr.dhs.cql2nlp.structs.CodeSet;
+import edu.mayo.hsr.dhs.cql2nlp.structs.CodifiedValueSetElement;
+import edu.mayo.hsr.dhs.cql2nlp.structs.VSACCodeSystem;
+import edu.mayo.hsr.dhs.cql2nlp.structs.ValueSetDefinition;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Append-only record of the value sets a ruleset generation run has finished, so that a run that crashed, lost its
+ * network connection or was aborted can be restarted without resolving them again. <br/>
+ * <br/>
+ * Each finished value set is appended as one line of JSON holding its definition, codes, CUIs and display names, and
+ * synced to disk before {@link #append} returns. A line torn by a crash is skipped when the journal is next opened.
+ * Entries are only reused for the exact definition (identifier, OID and version) they were generated from, and only
+ * if they were generated from the same UMLS release and terminology backend (UTS or a local RRF installation) as the
+ * current run. Entries of definitions without a version expire like VSAC's latest expansions do, see
+ * {@link ValueSetResolver#LATEST_MAX_AGE_PROPERTY}. Opening a journal rewrites it without superseded, expired, torn or
+ * mismatched lines. <br/>
+ * <br/>
+ * A run that finishes every value set {@link #delete() deletes} its journal, so that the next run starts afresh.
+ */
+public class CheckpointJournal implements Closeable {
+
+    /**
+     * System property overriding the default journal file (generation_checkpoint.jsonl in the working directory)
+     */
+    public static final String JOURNAL_FILE_PROPERTY = "cql2nlp.checkpoint.file";
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    // Codes of unrecognized code systems
+    private static final String UNKNOWN_SYSTEM = "";
+
+    private final File file;
+    private final String release;
+    private final String backend;
+    private final Map<String, Entry> entries;
+    private final FileOutputStream out;
+    private boolean closed;
+
+    private CheckpointJournal(File file, String release, String backend, Map<String, Entry> entries,
+                              FileOutputStream out) {
+        this.file = file;
+        this.release = release;
+        this.backend = backend;
+        this.entries = entries;
+        this.out = out;
+    }
+
+    /**
+     * @return The journal file configured via {@value #JOURNAL_FILE_PROPERTY}
+     */
+    public static File getDefaultFile() {
+        return new File(System.getProperty(JOURNAL_FILE_PROPERTY, "generation_checkpoint.jsonl"));
+    }
+
+    /**
+     * Reads the entries of a journal, creating it if it does not exist yet, and opens it for appending
+     *
+     * @param file    The journal file
+     * @param release The UMLS release value sets are generated from, see {@link TerminologyService#getRelease()}
+     * @param backend The terminology backend value sets are generated with, see {@link UMLSBrowser#getBackend()}
+     */
+    public static CheckpointJournal open(File file, String release, String backend) throws IOException {
+        long maxAgeMillis = TimeUnit.HOURS.toMillis(
+                Long.parseLong(System.getProperty(ValueSetResolver.LATEST_MAX_AGE_PROPERTY, "24")));
+        Map<String, Entry> entries = new LinkedHashMap<>();
+        // The line of each entry, to rewrite the journal with
+        Map<String, String> kept = new LinkedHashMap<>();
+        int lines = 0;
+        boolean torn = false;
+        if (file.isFile()) {
+            byte[] content = Files.readAllBytes(file.toPath());
+            // Appending after a line without its newline would corrupt the next entry too
+            torn = content.length > 0 && content[content.length - 1] != '\n';
+            for (String line : new String(content, StandardCharsets.UTF_8).split("\n")) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                lines++;
+                Entry entry;
+                try {
+                    entry = parse(line);
+                } catch (IOException | RuntimeException e) {
+                    continue;
+                }
+                if (entry.definition.getVersion() == null
+                        && System.currentTimeMillis() - entry.finishedAt > maxAgeMillis) {
+                    continue;
+                }
+                // CUIs and display names differ between releases and between backends
+                if (!release.equals(entry.release) || !backend.equals(entry.backend)) {
+                    continue;
+                }
+                // Later lines supersede earlier ones for the same value set
+                entries.remove(entry.valueSetId);
+                entries.put(entry.valueSetId, entry);
+                kept.remove(entry.valueSetId);
+                kept.put(entry.valueSetId, line);
+            }
+        }
+        if (torn || entries.size() < lines) {
+            File tmp = new File(file.getPath() + ".tmp");
+            Files.write(tmp.toPath(), kept.values(), StandardCharsets.UTF_8);
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        return new CheckpointJournal(file, release, backend, entries, new FileOutputStream(file, true));
+    }
+
+    /**
+     * @param valueSetId The value set identifier
+     * @param definition The definition the value set is about to be generated from
+     * @return The entry the value set was finished with in an earlier run, or null if it was not finished for this
+     * definition
+     */
+    public synchronized Entry get(String valueSetId, ValueSetDefinition definition) {
+        Entry entry = entries.get(valueSetId);
+        return entry != null && entry.definition.equals(definition) ? entry : null;
+    }
+
+    /**
+     * Records a finished value set and syncs it to disk
+     *
+     * @param valueSetId   The value set identifier
+     * @param definition   The definition the value set was generated from
+     * @param codes        The codes the value set expanded to
+     * @param cuis         The CUIs the codes map to
+     * @param displayNames The display names of each CUI
+     */
+    public synchronized void append(String valueSetId, ValueSetDefinition definition,
+                                    Collection<CodifiedValueSetElement> codes, Collection<String> cuis,
+                                    Map<String, ? extends Collection<String>> displayNames) throws IOException {
+        if (closed) {
+            throw new IOException("Journal is already closed");
+        }
+        // Grouped by code system, so that the system is not repeated for every code
+        Map<String, List<String>> codesBySystem = new TreeMap<>();
+        for (CodifiedValueSetElement code : codes) {
+            String system = code.getCodeSystem() == null ? UNKNOWN_SYSTEM : code.getCodeSystem().name();
+            codesBySystem.computeIfAbsent(system, k -> new ArrayList<>()).add(code.getCode());
+        }
+        long finishedAt = System.currentTimeMillis();
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        try (JsonGenerator generator = JSON_FACTORY.createGenerator(line, JsonEncoding.UTF8)) {
+            generator.writeStartObject();
+            generator.writeStringField("id", valueSetId);
+            generator.writeStringField("identifier", definition.getIdentifier());
+            generator.writeStringField("oid", definition.getOid());
+            generator.writeStringField("version", definition.getVersion());
+            generator.writeStringField("release", release);
+            generator.writeStringField("backend", backend);
+            generator.writeNumberField("finishedAt", finishedAt);
+            generator.writeObjectFieldStart("codes");
+            for (Map.Entry<String, List<String>> system : codesBySystem.entrySet()) {
+                writeArray(generator, system.getKey(), system.getValue());
+            }
+            generator.writeEndObject();
+            writeArray(generator, "cuis", cuis);
+            generator.writeObjectFieldStart("displayNames");
+            for (Map.Entry<String, ? extends Collection<String>> cui : displayNames.entrySet()) {
+                writeArray(generator, cui.getKey(), cui.getValue());
+            }
+            generator.writeEndObject();
+            generator.writeEndObject();
+        }
+        line.write('\n');
+        // A single write per entry, so that a crash can only tear the last line
+        out.write(line.toByteArray());
+        out.getFD().sync();
+        // Only entries of earlier runs are kept in memory, the caller already has this one
+        entries.remove(valueSetId);
+    }
+
+    /**
+     * Closes and deletes the journal, once every value set of a run has been finished and nothing is left to resume
+     */
+    public synchronized void delete() throws IOException {
+        close();
+        Files.deleteIfExists(file.toPath());
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            out.close();
+        }
+    }
+
+    private static void writeArray(JsonGenerator generator, String field, Collection<String> values) throws IOException {
+        generator.writeArrayFieldStart(field);
+        for (String value : values) {
+            generator.writeString(value);
+        }
+        generator.writeEndArray();
+    }
+
+    private static Entry parse(String line) throws IOException {
+        JsonNode node = MAPPER.readTree(line);
+        ValueSetDefinition definition = new ValueSetDefinition(node.get("identifier").asText(),
+                node.get("oid").asText(), node.get("version").isNull() ? null : node.get("version").asText());
+        CodeSet codes = new CodeSet();
+        node.get("codes").fields().forEachRemaining(system -> {
+            VSACCodeSystem codeSystem = system.getKey().equals(UNKNOWN_SYSTEM) ? null : VSACCodeSystem.valueOf(system.getKey());
+            system.getValue().forEach(code -> codes.add(codeSystem, code.asText()));
+        });
+        Set<String> cuis = new HashSet<>();
+        node.get("cuis").forEach(cui -> cuis.add(cui.asText()));
+        Map<String, Set<String>> displayNames = new HashMap<>();
+        node.get("displayNames").fields().forEachRemaining(cui -> {
+            Set<String> names = new HashSet<>();
+            cui.getValue().forEach(name -> names.add(name.asText()));
+            displayNames.put(cui.getKey(), names);
+        });
+        return new Entry(node.get("id").asText(), definition, node.path("release").asText(null),
+                node.path("backend").asText(null), node.get("finishedAt").asLong(), codes.freeze(), cuis, displayNames);
+    }
+
+    /**
+     * A value set as it was finished
+     */
+    public static final class Entry {
+        private final String valueSetId;
+        private final ValueSetDefinition definition;
+        private final String release;
+        private final String backend;
+        private final long finishedAt;
+        private final CodeSet codes;
+        private final Set<String> cuis;
+        private final Map<String, Set<String>> displayNames;
+
+        private Entry(String valueSetId, ValueSetDefinition definition, String release, String backend,
+                      long finishedAt, CodeSet codes, Set<String> cuis, Map<String, Set<String>> displayNames) {
+            this.valueSetId = valueSetId;
+            this.definition = definition;
+            this.release = release;
+            this.backend = backend;
+            this.finishedAt = finishedAt;
+            this.codes = codes;
+            this.cuis = cuis;
+            this.displayNames = displayNames;
+        }
+
+        public String getValueSetId() {
+            return valueSetId;
+        }
+
+        public ValueSetDefinition getDefinition() {
+            return definition;
+        }
+
+        /**
+         * @return The UMLS release the value set was generated from
+         */
+        public String getRelease() {
+            return release;
+        }
+
+        /**
+         * @return The terminology backend the value set was generated with
+         */
+        public String getBackend() {
+            return backend;
+        }
+
+        /**
+         * @return When the value set was finished, in milliseconds since the epoch
+         */
+        public long getFinishedAt() {
+            return finishedAt;
+        }
+
+        public CodeSet getCodes() {
+            return codes;
+        }
+
+        public Set<String> getCuis() {
+            return cuis;
+        }
+
+        public Map<String, Set<String>> getDisplayNames() {
+            return displayNames;
+        }
+    }
+}
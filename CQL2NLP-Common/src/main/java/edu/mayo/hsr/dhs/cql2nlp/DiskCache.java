@@ -0,0 +1,193 @@
+package edu.mayo.hsr.dhs.cql2nlp;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Persistent, size-bounded cache of serialized terminology responses that survives between runs. <br/>
+ * <br/>
+ * Entries are grouped by a namespace (e.g. umls, vsac) and a version (e.g. a UMLS release such as 2020AA) so that a
+ * new release never serves stale content. When the total size exceeds the configured bound, the least recently used
+ * entries are evicted. The cache is best-effort: any I/O failure is treated as a miss.
+ */
+public class DiskCache {
+
+    /**
+     * System property overriding the default cache directory (~/.cql2nlp/cache)
+     */
+    public static final String CACHE_DIR_PROPERTY = "cql2nlp.cache.dir";
+    /**
+     * System property overriding the default maximum cache size in megabytes (1024)
+     */
+    public static final String CACHE_MAX_MB_PROPERTY = "cql2nlp.cache.maxMB";
+
+    private static DiskCache defaultCache;
+
+    private final File root;
+    private final long maxBytes;
+    private final AtomicLong currentBytes = new AtomicLong();
+
+    /**
+     * @param root     The directory to store entries in
+     * @param maxBytes The size the cache will be evicted down from once exceeded
+     */
+    public DiskCache(File root, long maxBytes) {
+        this.root = root;
+        this.maxBytes = maxBytes;
+        List<File> files = new ArrayList<>();
+        listEntries(root, files);
+        for (File f : files) {
+            currentBytes.addAndGet(f.length());
+        }
+    }
+
+    /**
+     * @return The cache shared by all terminology components in this JVM, configured via {@value #CACHE_DIR_PROPERTY}
+     * and {@value #CACHE_MAX_MB_PROPERTY}
+     */
+    public static synchronized DiskCache getDefault() {
+        if (defaultCache == null) {
+            File dir = new File(System.getProperty(CACHE_DIR_PROPERTY,
+                    new File(System.getProperty("user.home"), ".cql2nlp" + File.separator + "cache").getPath()));
+            long maxMB = Long.parseLong(System.getProperty(CACHE_MAX_MB_PROPERTY, "1024"));
+            defaultCache = new DiskCache(dir, maxMB * 1024 * 1024);
+        }
+        return defaultCache;
+    }
+
+    /**
+     * Retrieves an entry regardless of its age
+     *
+     * @return The cached value, or null if absent
+     */
+    public byte[] get(String namespace, String version, String key) {
+        return get(namespace, version, key, -1);
+    }
+
+    /**
+     * Retrieves an entry, discarding it if it was written more than maxAgeMillis ago
+     *
+     * @param maxAgeMillis The maximum age of the entry, or a negative value for no limit
+     * @return The cached value, or null if absent or expired
+     */
+    public byte[] get(String namespace, String version, String key, long maxAgeMillis) {
+        File f = fileFor(namespace, version, key);
+        if (!f.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+            long writtenAt = in.readLong();
+            if (maxAgeMillis >= 0 && System.currentTimeMillis() - writtenAt > maxAgeMillis) {
+                in.close();
+                delete(f);
+                return null;
+            }
+            byte[] ret = new byte[(int) f.length() - 8];
+            in.readFully(ret);
+            // Modification time doubles as the last access time used for LRU eviction
+            f.setLastModified(System.currentTimeMillis());
+            return ret;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Stores an entry, replacing any existing value for the key
+     */
+    public void put(String namespace, String version, String key, byte[] value) {
+        File f = fileFor(namespace, version, key);
+        File dir = f.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            return;
+        }
+        File tmp = new File(dir, f.getName() + "." + Thread.currentThread().getId() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeLong(System.currentTimeMillis());
+                out.write(value);
+            }
+            long previous = f.length();
+            Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            if (currentBytes.addAndGet(value.length + 8 - previous) > maxBytes) {
+                evict();
+            }
+        } catch (IOException e) {
+            tmp.delete();
+        }
+    }
+
+    public void put(String namespace, String version, String key, String value) {
+        put(namespace, version, key, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /*
+     * Removes least recently used entries until the cache is back under 90% of its bound
+     */
+    private synchronized void evict() {
+        if (currentBytes.get() <= maxBytes) {
+            return;
+        }
+        List<File> files = new ArrayList<>();
+        listEntries(root, files);
+        files.sort((a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        long target = maxBytes / 10 * 9;
+        for (File f : files) {
+            if (currentBytes.get() <= target) {
+                break;
+            }
+            delete(f);
+        }
+    }
+
+    private void delete(File f) {
+        long len = f.length();
+        if (f.delete()) {
+            currentBytes.addAndGet(-len);
+        }
+    }
+
+    private File fileFor(String namespace, String version, String key) {
+        String hash = sha256(key);
+        return new File(root, sanitize(namespace) + File.separator + sanitize(version) + File.separator
+                + hash.substring(0, 2) + File.separator + hash);
+    }
+
+    private static void listEntries(File dir, List<File> out) {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            if (child.isDirectory()) {
+                listEntries(child, out);
+            } else if (!child.getName().endsWith(".tmp")) {
+                out.add(child);
+            }
+        }
+    }
+
+    private static String sanitize(String s) {
+        return s == null ? "_" : s.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    private static String sha256(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
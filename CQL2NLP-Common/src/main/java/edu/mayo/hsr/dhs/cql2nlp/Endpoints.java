@@ -0,0 +1,66 @@
+package edu.mayo.hsr.dhs.cql2nlp;
+
+/**
+ * Base URLs of the NLM services used by CQL2NLP. Each can be overridden with a system property, e.g. to point every
+ * client at a {@link edu.mayo.hsr.dhs.cql2nlp.simulator.TerminologySimulator} for offline load testing. Properties
+ * are read whenever a client is created, so they must be set before then.
+ */
+public final class Endpoints {
+
+    /**
+     * System property overriding the UTS base URL, under which the /rest API and the /releases listing are found
+     */
+    public static final String UTS_URL_PROPERTY = "cql2nlp.uts.url";
+    /**
+     * System property overriding the UTS CAS ticket service URL
+     */
+    public static final String UTS_LOGIN_URL_PROPERTY = "cql2nlp.uts.loginUrl";
+    /**
+     * System property overriding the VSAC FHIR ValueSet endpoint
+     */
+    public static final String VSAC_URL_PROPERTY = "cql2nlp.vsac.url";
+
+    public static final String DEFAULT_UTS_URL = "https://uts-ws.nlm.nih.gov";
+    public static final String DEFAULT_UTS_LOGIN_URL = "https://utslogin.nlm.nih.gov/cas/v1/tickets";
+    public static final String DEFAULT_VSAC_URL = "https://cts.nlm.nih.gov/fhir/ValueSet";
+
+    private Endpoints() {
+    }
+
+    /**
+     * @return The UTS REST API base, e.g. https://uts-ws.nlm.nih.gov/rest
+     */
+    public static String getUtsRestUrl() {
+        return get(UTS_URL_PROPERTY, DEFAULT_UTS_URL) + "/rest";
+    }
+
+    /**
+     * @return The UTS release listing, e.g. https://uts-ws.nlm.nih.gov/releases
+     */
+    public static String getUtsReleasesUrl() {
+        return get(UTS_URL_PROPERTY, DEFAULT_UTS_URL) + "/releases";
+    }
+
+    /**
+     * @return The UTS CAS ticket service, e.g. https://utslogin.nlm.nih.gov/cas/v1/tickets
+     */
+    public static String getUtsLoginUrl() {
+        return get(UTS_LOGIN_URL_PROPERTY, DEFAULT_UTS_LOGIN_URL);
+    }
+
+    /**
+     * @return The VSAC FHIR ValueSet endpoint, e.g. https://cts.nlm.nih.gov/fhir/ValueSet
+     */
+    public static String getVsacUrl() {
+        return get(VSAC_URL_PROPERTY, DEFAULT_VSAC_URL);
+    }
+
+    private static String get(String property, String defaultUrl) {
+        String url = System.getProperty(property);
+        if (url == null || url.trim().isEmpty()) {
+            return defaultUrl;
+        }
+        url = url.trim();
+        return url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+    }
+}
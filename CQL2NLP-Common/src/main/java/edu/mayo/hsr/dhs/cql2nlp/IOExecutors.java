@@ -0,0 +1,82 @@
+package edu.mayo.hsr.dhs.cql2nlp;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the executors that terminology lookups (UTS, VSAC and CAS calls) are fanned out on. <br/>
+ * <br/>
+ * Lookups spend nearly all of their time waiting on the network, so they are never run on the JVM-wide ForkJoin common
+ * pool (e.g. through parallel streams), where blocked lookups would hold up unrelated work and concurrency is capped
+ * at the core count. Every executor instead has its own bound, configured by a system property per use and
+ * independent of the CPU count. With {@value #THREADS_PROPERTY}=virtual, executors run their tasks on virtual threads
+ * on Java 21 and later, so high bounds do not cost a platform thread each. On older runtimes platform threads are
+ * used regardless.
+ */
+public final class IOExecutors {
+
+    /**
+     * System property selecting the kind of thread lookups run on, either platform (the default) or virtual
+     */
+    public static final String THREADS_PROPERTY = "cql2nlp.io.threads";
+    /**
+     * System property controlling how many value set elements the GUI may look up at once, across all value sets
+     */
+    public static final String PARALLELISM_PROPERTY = "cql2nlp.io.parallelism";
+
+    private static final ThreadFactory VIRTUAL_THREADS = virtualThreadFactory();
+
+    private IOExecutors() {
+    }
+
+    /**
+     * @param name        The thread name prefix, e.g. vsac-fetch
+     * @param parallelism The most tasks that may run at once
+     * @return An executor of daemon threads, which callers shut down once done with it
+     */
+    public static ExecutorService newExecutor(String name, int parallelism) {
+        AtomicInteger threadId = new AtomicInteger();
+        boolean virtual = "virtual".equalsIgnoreCase(System.getProperty(THREADS_PROPERTY)) && VIRTUAL_THREADS != null;
+        // A fixed pool even for virtual threads, as the bound is what keeps a run within UTS and VSAC limits
+        return Executors.newFixedThreadPool(Math.max(1, parallelism), r -> {
+            Thread t = virtual ? VIRTUAL_THREADS.newThread(r) : new Thread(r);
+            t.setName(name + "-" + threadId.incrementAndGet());
+            // Virtual threads always are
+            if (!virtual) {
+                t.setDaemon(true);
+            }
+            return t;
+        });
+    }
+
+    /**
+     * @param name                The thread name prefix
+     * @param parallelismProperty The system property holding the executor's bound
+     * @param defaultParallelism  The bound if the property is not set
+     */
+    public static ExecutorService newExecutor(String name, String parallelismProperty, int defaultParallelism) {
+        return newExecutor(name, Integer.getInteger(parallelismProperty, defaultParallelism));
+    }
+
+    /*
+     * Thread.ofVirtual().factory() through reflection, as this is built for Java 8
+     */
+    private static ThreadFactory virtualThreadFactory() {
+        if (!"virtual".equalsIgnoreCase(System.getProperty(THREADS_PROPERTY))) {
+            return null;
+        }
+        try {
+            Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            Object builder = ofVirtual.invoke(null);
+            Method factory = ofVirtual.getReturnType().getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (Throwable t) {
+            // Missing before Java 19, and unsupported before 21 unless preview features are enabled
+            System.err.println("Virtual threads are not available on this runtime, using platform threads");
+            return null;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package edu.mayo.hsr.dhs.cql2nlp;
+
+import edu.mayo.hsr.dhs.cql2nlp.structs.ValueSetDefinition;
+import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
+import org.cqframework.cql.gen.cqlLexer;
+import org.cqframework.cql.gen.cqlParser;
+
+import java.util.*;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Extracts valueset declarations from CQL text that is being edited, fast enough to run on every keystroke. <br/>
+ * <br/>
+ * Rather than lexing and parsing the whole library, a lightweight scan (which skips comments, strings and quoted
+ * identifiers) finds where each valueset declaration begins and ends. Only declarations whose text changed since the
+ * previous call are lexed and handed to the parser's valuesetDefinition rule, using SLL prediction first and falling
+ * back to full LL only if SLL fails. The lexer and parser are reused between calls. <br/>
+ * <br/>
+ * Extraction checks for interruption before each declaration and between parse phases, so a call superseded by a
+ * newer edit can be cancelled rather than finishing a parse nobody will look at. <br/>
+ * <br/>
+ * Instances keep per-document state and are meant to be used for one document at a time. Unlike
+ * {@link CQLParser#getValueSetDefinitions(String)}, incomplete or invalid declarations are skipped rather than
+ * recovered from.
+ */
+public class IncrementalValueSetExtractor {
+
+    // Keywords that can begin a library-level statement and therefore end a preceding valueset declaration
+    private static final Set<String> STATEMENT_KEYWORDS = new HashSet<>(Arrays.asList(
+            "library", "using", "include", "codesystem", "valueset", "code", "concept", "parameter", "context",
+            "define", "public", "private"
+    ));
+
+    private final cqlLexer lexer = new cqlLexer(new ANTLRInputStream(""));
+    private final cqlParser parser = new cqlParser(new CommonTokenStream(new ListTokenSource(Collections.emptyList())));
+    // Parse results for the previous call's declarations, keyed by their text. Null marks an invalid declaration
+    private Map<String, ValueSetDefinition> previous = new HashMap<>();
+    private int lastParsed;
+
+    public IncrementalValueSetExtractor() {
+        lexer.removeErrorListeners();
+        parser.removeErrorListeners();
+        parser.setErrorHandler(new BailErrorStrategy());
+    }
+
+    /**
+     * Gets every valid valueset declared in the supplied CQL text
+     *
+     * @param cql The current CQL library text
+     * @return The declared value sets in declaration order, keyed by identifier
+     * @throws CancellationException If the calling thread was interrupted. Declarations parsed until then are kept
+     *                               for the next call
+     */
+    public synchronized Map<String, ValueSetDefinition> extract(String cql) {
+        List<int[]> keywords = findStatementKeywords(cql);
+        Map<String, ValueSetDefinition> ret = new LinkedHashMap<>();
+        Map<String, ValueSetDefinition> current = new HashMap<>();
+        lastParsed = 0;
+        for (int i = 0; i < keywords.size(); i++) {
+            int[] keyword = keywords.get(i);
+            if (!cql.startsWith("valueset", keyword[0])) {
+                continue;
+            }
+            int start = keyword[0];
+            if (i > 0 && isAccessModifier(cql, keywords.get(i - 1)) && cql.substring(keywords.get(i - 1)[1], start).trim().isEmpty()) {
+                start = keywords.get(i - 1)[0];
+            }
+            int end = i + 1 < keywords.size() ? keywords.get(i + 1)[0] : cql.length();
+            String declaration = cql.substring(start, end);
+            ValueSetDefinition def;
+            if (current.containsKey(declaration)) {
+                def = current.get(declaration);
+            } else if (previous.containsKey(declaration)) {
+                def = previous.get(declaration);
+            } else {
+                try {
+                    def = parse(declaration);
+                } catch (CancellationException e) {
+                    previous.putAll(current);
+                    throw e;
+                }
+                lastParsed++;
+            }
+            current.put(declaration, def);
+            if (def != null) {
+                ret.put(def.getIdentifier(), def);
+            }
+        }
+        previous = current;
+        return ret;
+    }
+
+    /**
+     * @return How many declarations the last call to {@link #extract(String)} actually had to lex and parse
+     */
+    public synchronized int getLastParsedCount() {
+        return lastParsed;
+    }
+
+    private ValueSetDefinition parse(String declaration) {
+        checkInterrupted();
+        lexer.setInputStream(new ANTLRInputStream(declaration));
+        List<Token> tokens = new ArrayList<>();
+        for (Token token : lexer.getAllTokens()) {
+            if (token.getChannel() == Token.DEFAULT_CHANNEL) {
+                tokens.add(token);
+            }
+        }
+        checkInterrupted();
+        try {
+            return parse(tokens, PredictionMode.SLL);
+        } catch (ParseCancellationException e) {
+            checkInterrupted();
+            try {
+                return parse(tokens, PredictionMode.LL);
+            } catch (ParseCancellationException invalid) {
+                return null;
+            }
+        }
+    }
+
+    private ValueSetDefinition parse(List<Token> tokens, PredictionMode mode) {
+        // Setting the token stream also resets the parser. Any tokens left over after the rule belong to a half-typed
+        // statement that follows the declaration and are ignored
+        parser.setTokenStream(new CommonTokenStream(new ListTokenSource(tokens)));
+        parser.getInterpreter().setPredictionMode(mode);
+        return CQLParser.toDefinition(parser.valuesetDefinition());
+    }
+
+    private static void checkInterrupted() {
+        if (Thread.interrupted()) {
+            throw new CancellationException("Value set extraction was interrupted");
+        }
+    }
+
+    /*
+     * Finds the [start, end) offsets of every statement keyword outside of comments, strings, quoted identifiers and
+     * member accesses
+     */
+    private static List<int[]> findStatementKeywords(String cql) {
+        List<int[]> ret = new ArrayList<>();
+        int len = cql.length();
+        int i = 0;
+        while (i < len) {
+            char c = cql.charAt(i);
+            if (c == '/' && i + 1 < len && cql.charAt(i + 1) == '/') {
+                int eol = cql.indexOf('\n', i);
+                i = eol < 0 ? len : eol + 1;
+            } else if (c == '/' && i + 1 < len && cql.charAt(i + 1) == '*') {
+                int close = cql.indexOf("*/", i + 2);
+                i = close < 0 ? len : close + 2;
+            } else if (c == '\'' || c == '"' || c == '`') {
+                i++;
+                while (i < len && cql.charAt(i) != c) {
+                    i += cql.charAt(i) == '\\' ? 2 : 1;
+                }
+                i++;
+            } else if (Character.isJavaIdentifierStart(c)) {
+                int start = i;
+                while (i < len && Character.isJavaIdentifierPart(cql.charAt(i))) {
+                    i++;
+                }
+                if (STATEMENT_KEYWORDS.contains(cql.substring(start, i)) && !precededByDot(cql, start)) {
+                    ret.add(new int[]{start, i});
+                }
+            } else {
+                i++;
+            }
+        }
+        return ret;
+    }
+
+    private static boolean precededByDot(String cql, int pos) {
+        int i = pos - 1;
+        while (i >= 0 && Character.isWhitespace(cql.charAt(i))) {
+            i--;
+        }
+        return i >= 0 && cql.charAt(i) == '.';
+    }
+
+    private static boolean isAccessModifier(String cql, int[] keyword) {
+        String word = cql.substring(keyword[0], keyword[1]);
+        return "public".equals(word) || "private".equals(word);
+    }
+}
@@ -1,49 +1,50 @@
 package edu.mayo.hsr.dhs.cql2nlp;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import edu.mayo.hsr.dhs.cql2nlp.structs.CodifiedValueSetElement;
-import org.hl7.fhir.r4.model.ValueSet;
-
-import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
 
+/**
+ * Headless batch generation of NLP rulesets, see {@link BatchRulesetGenerator}. <br/>
+ * <br/>
+ * Usage: Main &lt;directory or glob of CQL libraries&gt; [output directory] <br/>
+ * UTS credentials are read from the cql2nlp.uts.user and cql2nlp.uts.pass system properties, or the UTS_USER and
+ * UTS_PASS environment variables. A {@link Metrics} snapshot is written to the output directory at the end of the run.
+ */
 public class Main {
-    public static void main(String... args) throws IOException {
-        Map<String, Set<String>> rulesets = new HashMap<>();
-        String in = String.join("\n", Files.readAllLines(new File("test.cql").toPath()));
-        Map<String, String> valueSetRaw = new CQLParser().getValueSets(in);
-        ValueSetResolver rls = new ValueSetResolver("", "");
-        UMLSBrowser oet = new UMLSBrowser("", "");
-        valueSetRaw.forEach((id, oid) -> {
-            ValueSet vs = rls.getValueSetForOID(oid);
-            Set<CodifiedValueSetElement> codes = rls.resolveValueSetCodes(vs);
-            Set<String> displayNames = ConcurrentHashMap.newKeySet();
-            for (CodifiedValueSetElement element : codes) {
-                Set<CodifiedValueSetElement> vals = null;
-                try {
-                    vals = oet.getCUIsForValueSetElement(element, true);
-                } catch (JsonProcessingException e) {
-                    e.printStackTrace();
-                    continue;
-                }
-                vals.parallelStream().forEach(
-                        val -> {
-                            try {
-                                displayNames.addAll(oet.getDisplayNamesForCUI(val.getCode()));
-                            } catch (JsonProcessingException e) {
-                                e.printStackTrace();
-                            }
-                        }
-                );
-            }
-            rulesets.put(id, displayNames);
-        });
 
-        return;
+    public static final String UTS_USER_PROPERTY = "cql2nlp.uts.user";
+    public static final String UTS_PASS_PROPERTY = "cql2nlp.uts.pass";
+
+    public static void main(String... args) throws IOException, InterruptedException {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: Main <directory or glob of CQL libraries> [output directory]");
+            System.exit(1);
+        }
+        List<Path> libraries = BatchRulesetGenerator.findLibraries(args[0]);
+        if (libraries.isEmpty()) {
+            System.err.println("No CQL libraries found for " + args[0]);
+            System.exit(1);
+        }
+        Path outputDir = Paths.get(args.length > 1 ? args[1] : "rulesets");
+        String user = System.getProperty(UTS_USER_PROPERTY, System.getenv().getOrDefault("UTS_USER", ""));
+        String pass = System.getProperty(UTS_PASS_PROPERTY, System.getenv().getOrDefault("UTS_PASS", ""));
+
+        // One resolver and browser for the whole run so that every library shares their caches, and each CUI is only
+        // looked up once however many libraries use it
+        BatchRulesetGenerator.BatchSummary summary;
+        try (ValueSetResolver rls = new ValueSetResolver(user, pass);
+             UMLSBrowser session = UMLSBrowser.create(user, pass);
+             UMLSBrowser oet = session.forRun()) {
+            System.out.println("Generating rulesets for " + libraries.size() + " libraries into " + outputDir.toAbsolutePath());
+            summary = new BatchRulesetGenerator(rls, oet, outputDir).run(libraries);
+        }
+        System.out.println(summary);
+        Metrics.get().writeSnapshot(outputDir);
+        System.out.println("Wrote metrics to " + outputDir.resolve("metrics.json") + " and " + outputDir.resolve("metrics.prom"));
+        if (summary.getLibrariesFailed() > 0) {
+            System.exit(2);
+        }
     }
 }
@@ -0,0 +1,476 @@
+package edu.mayo.hsr.dhs.cql2nlp;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheStats;
+import org.springframework.http.client.ClientHttpRequestInterceptor;
+import org.springframework.http.client.ClientHttpResponse;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+/**
+ * Process-wide registry of counters, latency histograms and cache statistics. <br/>
+ * <br/>
+ * Records HTTP calls per endpoint (see {@link #httpInterceptor()}), the Guava caches registered with
+ * {@link #registerCache(String, Cache)}, service ticket and parse timings, and how long each value set spent in each
+ * stage of ruleset generation. Recording is lock-free and cheap enough for every request. A snapshot can be exported
+ * as JSON ({@link #toJson()}) or in the Prometheus text exposition format ({@link #toPrometheus()}).
+ */
+public final class Metrics {
+
+    private static final Metrics DEFAULT = new Metrics();
+    private static final String PREFIX = "cql2nlp_";
+    // Histogram bucket upper bounds, in seconds
+    private static final double[] BUCKETS = {
+            0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60
+    };
+    private static final Pattern CUI_SEGMENT = Pattern.compile("C\\d{5,}");
+    private static final Pattern OID_SEGMENT = Pattern.compile("\\d+(\\.\\d+)+");
+    private static final Pattern TICKET_SEGMENT = Pattern.compile("(TGT|ST)-.+");
+
+    private final ConcurrentMap<MetricKey, LongAdder> counters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<MetricKey, Histogram> histograms = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, List<WeakReference<Cache<?, ?>>>> caches = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, ConcurrentMap<String, LongAdder>> valueSetStages = new ConcurrentHashMap<>();
+
+    /**
+     * @return The registry shared by all CQL2NLP components
+     */
+    public static Metrics get() {
+        return DEFAULT;
+    }
+
+    /**
+     * Increments a counter
+     *
+     * @param name   The metric name, e.g. http_requests_total
+     * @param labels Alternating label names and values
+     */
+    public void increment(String name, String... labels) {
+        add(name, 1, labels);
+    }
+
+    public void add(String name, long amount, String... labels) {
+        counters.computeIfAbsent(new MetricKey(name, labels), k -> new LongAdder()).add(amount);
+    }
+
+    /**
+     * @return A counter's total over all of its label values, e.g. every request counted by http_requests_total
+     */
+    public long getCount(String name) {
+        long ret = 0;
+        for (Map.Entry<MetricKey, LongAdder> counter : counters.entrySet()) {
+            if (counter.getKey().name.equals(name)) {
+                ret += counter.getValue().sum();
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Records a duration in a histogram
+     *
+     * @param name   The metric name, e.g. http_request_seconds
+     * @param nanos  The duration
+     * @param labels Alternating label names and values
+     */
+    public void recordNanos(String name, long nanos, String... labels) {
+        histograms.computeIfAbsent(new MetricKey(name, labels), k -> new Histogram()).record(nanos);
+    }
+
+    /**
+     * Records the time since a {@link System#nanoTime()} start
+     */
+    public void recordSince(String name, long startNanos, String... labels) {
+        recordNanos(name, System.nanoTime() - startNanos, labels);
+    }
+
+    /**
+     * Records the outcome of an HTTP call
+     *
+     * @param endpoint   The endpoint, see {@link #endpointOf(URI)}
+     * @param status     The response status code, or error if no response was received
+     * @param startNanos When the call was started, from {@link System#nanoTime()}
+     */
+    public void recordHttp(String endpoint, String status, long startNanos) {
+        recordSince("http_request_seconds", startNanos, "endpoint", endpoint);
+        increment("http_requests_total", "endpoint", endpoint, "status", status);
+    }
+
+    /**
+     * @return An interceptor recording every request made through a RestTemplate. Add it after any interceptors that
+     * should not be timed, such as authentication. The recorded latency is the time until the response headers arrive
+     */
+    public ClientHttpRequestInterceptor httpInterceptor() {
+        return (request, body, execution) -> {
+            String endpoint = endpointOf(request.getURI());
+            long start = System.nanoTime();
+            String status = "error";
+            try {
+                ClientHttpResponse response = execution.execute(request, body);
+                status = String.valueOf(response.getRawStatusCode());
+                return response;
+            } finally {
+                recordHttp(endpoint, status, start);
+            }
+        };
+    }
+
+    /**
+     * Reports a Guava cache's statistics under a name. The cache must be built with recordStats(). Statistics of all
+     * live caches registered under the same name are summed
+     */
+    public void registerCache(String name, Cache<?, ?> cache) {
+        List<WeakReference<Cache<?, ?>>> refs = caches.computeIfAbsent(name, k -> new CopyOnWriteArrayList<>());
+        refs.removeIf(ref -> ref.get() == null);
+        refs.add(new WeakReference<>(cache));
+    }
+
+    /**
+     * Records time spent on one stage of generating a value set's ruleset. The value set's total per stage is kept for
+     * the JSON snapshot, and the duration is added to the stage's histogram
+     *
+     * @param valueSetId The value set, e.g. its CQL identifier
+     * @param stage      The stage, e.g. expand, cuis, display_names or write
+     * @param nanos      The time spent
+     */
+    public void recordValueSetStage(String valueSetId, String stage, long nanos) {
+        valueSetStages.computeIfAbsent(valueSetId, k -> new ConcurrentHashMap<>())
+                .computeIfAbsent(stage, k -> new LongAdder()).add(nanos);
+        recordNanos("valueset_stage_seconds", nanos, "stage", stage);
+    }
+
+    /**
+     * Discards everything recorded so far, e.g. between runs. Registered caches stay registered
+     */
+    public void reset() {
+        counters.clear();
+        histograms.clear();
+        valueSetStages.clear();
+    }
+
+    /**
+     * Derives a low-cardinality endpoint name from a request URI by dropping the query and replacing CUIs, OIDs and
+     * tickets in the path with placeholders, e.g. uts-ws.nlm.nih.gov/rest/content/current/CUI/{cui}/relations
+     */
+    public static String endpointOf(URI uri) {
+        StringBuilder ret = new StringBuilder(uri.getHost() == null ? "" : uri.getHost());
+        String path = uri.getPath() == null ? "" : uri.getPath();
+        for (String segment : path.split("/")) {
+            if (segment.isEmpty()) {
+                continue;
+            }
+            ret.append('/');
+            if (CUI_SEGMENT.matcher(segment).matches()) {
+                ret.append("{cui}");
+            } else if (OID_SEGMENT.matcher(segment).matches()) {
+                ret.append("{oid}");
+            } else if (TICKET_SEGMENT.matcher(segment).matches()) {
+                ret.append("{ticket}");
+            } else {
+                ret.append(segment);
+            }
+        }
+        return ret.toString();
+    }
+
+    /**
+     * @return A JSON snapshot of all metrics
+     */
+    public String toJson() {
+        ObjectMapper om = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+        ObjectNode root = om.createObjectNode();
+        ArrayNode counterNodes = root.putArray("counters");
+        for (Map.Entry<MetricKey, LongAdder> e : sorted(counters)) {
+            ObjectNode node = e.getKey().toJson(counterNodes.addObject());
+            node.put("value", e.getValue().sum());
+        }
+        ArrayNode histogramNodes = root.putArray("histograms");
+        for (Map.Entry<MetricKey, Histogram> e : sorted(histograms)) {
+            Histogram h = e.getValue();
+            long[] buckets = h.snapshot();
+            long count = buckets[BUCKETS.length + 1];
+            ObjectNode node = e.getKey().toJson(histogramNodes.addObject());
+            node.put("count", count);
+            node.put("sumSeconds", h.sumNanos.sum() / 1e9);
+            node.put("meanMillis", count == 0 ? 0 : h.sumNanos.sum() / 1e6 / count);
+            node.put("maxMillis", h.maxNanos.get() / 1e6);
+            node.put("p50Seconds", quantile(buckets, 0.5));
+            node.put("p90Seconds", quantile(buckets, 0.9));
+            node.put("p99Seconds", quantile(buckets, 0.99));
+            ObjectNode bucketNode = node.putObject("buckets");
+            for (int i = 0; i < BUCKETS.length; i++) {
+                bucketNode.put(formatBound(BUCKETS[i]), buckets[i]);
+            }
+            bucketNode.put("+Inf", count);
+        }
+        ObjectNode cacheNodes = root.putObject("caches");
+        for (Map.Entry<String, CacheStats> e : cacheStats().entrySet()) {
+            CacheStats s = e.getValue();
+            cacheNodes.putObject(e.getKey())
+                    .put("hits", s.hitCount())
+                    .put("misses", s.missCount())
+                    .put("hitRate", s.hitRate())
+                    .put("evictions", s.evictionCount())
+                    .put("loadFailures", s.loadExceptionCount())
+                    .put("averageLoadMillis", s.averageLoadPenalty() / 1e6)
+                    .put("size", cacheSize(e.getKey()));
+        }
+        ObjectNode valueSetNodes = root.putObject("valueSets");
+        new TreeMap<>(valueSetStages).forEach((valueSet, stages) -> {
+            ObjectNode node = valueSetNodes.putObject(valueSet);
+            new TreeMap<>(stages).forEach((stage, nanos) -> node.put(stage + "Millis", nanos.sum() / 1e6));
+        });
+        try {
+            return om.writeValueAsString(root);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return All metrics in the Prometheus text exposition format. Per-value-set timings are only exported as the
+     * per-stage histograms, to keep label cardinality bounded
+     */
+    public String toPrometheus() {
+        StringBuilder sb = new StringBuilder();
+        String lastName = null;
+        for (Map.Entry<MetricKey, LongAdder> e : sorted(counters)) {
+            String name = PREFIX + e.getKey().name;
+            if (!name.equals(lastName)) {
+                sb.append("# TYPE ").append(name).append(" counter\n");
+                lastName = name;
+            }
+            sb.append(name).append(e.getKey().labels(null)).append(' ').append(e.getValue().sum()).append('\n');
+        }
+        for (Map.Entry<MetricKey, Histogram> e : sorted(histograms)) {
+            String name = PREFIX + e.getKey().name;
+            if (!name.equals(lastName)) {
+                sb.append("# TYPE ").append(name).append(" histogram\n");
+                lastName = name;
+            }
+            long[] buckets = e.getValue().snapshot();
+            long cumulative = 0;
+            for (int i = 0; i < BUCKETS.length; i++) {
+                cumulative += buckets[i];
+                sb.append(name).append("_bucket").append(e.getKey().labels("le=\"" + formatBound(BUCKETS[i]) + "\""))
+                        .append(' ').append(cumulative).append('\n');
+            }
+            long count = buckets[BUCKETS.length + 1];
+            sb.append(name).append("_bucket").append(e.getKey().labels("le=\"+Inf\"")).append(' ').append(count).append('\n');
+            sb.append(name).append("_sum").append(e.getKey().labels(null)).append(' ')
+                    .append(e.getValue().sumNanos.sum() / 1e9).append('\n');
+            sb.append(name).append("_count").append(e.getKey().labels(null)).append(' ').append(count).append('\n');
+        }
+        Map<String, CacheStats> stats = cacheStats();
+        appendCacheMetric(sb, stats, "cache_hits_total", "counter", CacheStats::hitCount);
+        appendCacheMetric(sb, stats, "cache_misses_total", "counter", CacheStats::missCount);
+        appendCacheMetric(sb, stats, "cache_evictions_total", "counter", CacheStats::evictionCount);
+        appendCacheMetric(sb, stats, "cache_load_failures_total", "counter", CacheStats::loadExceptionCount);
+        appendCacheMetric(sb, stats, "cache_load_seconds_total", "counter", s -> s.totalLoadTime() / 1e9);
+        appendCacheMetric(sb, stats, "cache_size", "gauge", s -> null);
+        return sb.toString();
+    }
+
+    /**
+     * Writes metrics.json and metrics.prom into a directory
+     */
+    public void writeSnapshot(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        Files.write(dir.resolve("metrics.json"), toJson().getBytes(StandardCharsets.UTF_8));
+        Files.write(dir.resolve("metrics.prom"), toPrometheus().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void appendCacheMetric(StringBuilder sb, Map<String, CacheStats> stats, String metric, String type,
+                                   Function<CacheStats, Number> value) {
+        if (stats.isEmpty()) {
+            return;
+        }
+        String name = PREFIX + metric;
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        stats.forEach((cache, s) -> {
+            Number v = value.apply(s);
+            sb.append(name).append("{cache=\"").append(escape(cache)).append("\"} ")
+                    .append(v == null ? cacheSize(cache) : v).append('\n');
+        });
+    }
+
+    private Map<String, CacheStats> cacheStats() {
+        Map<String, CacheStats> ret = new TreeMap<>();
+        caches.forEach((name, refs) -> {
+            CacheStats sum = new CacheStats(0, 0, 0, 0, 0, 0);
+            for (WeakReference<Cache<?, ?>> ref : refs) {
+                Cache<?, ?> cache = ref.get();
+                if (cache != null) {
+                    sum = sum.plus(cache.stats());
+                }
+            }
+            ret.put(name, sum);
+        });
+        return ret;
+    }
+
+    private long cacheSize(String name) {
+        long ret = 0;
+        for (WeakReference<Cache<?, ?>> ref : caches.getOrDefault(name, Collections.emptyList())) {
+            Cache<?, ?> cache = ref.get();
+            if (cache != null) {
+                ret += cache.size();
+            }
+        }
+        return ret;
+    }
+
+    /*
+     * Upper bound of the bucket containing the quantile, or the largest bound if it falls into +Inf
+     */
+    private static double quantile(long[] buckets, double q) {
+        long count = buckets[BUCKETS.length + 1];
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(q * count);
+        long cumulative = 0;
+        for (int i = 0; i < BUCKETS.length; i++) {
+            cumulative += buckets[i];
+            if (cumulative >= rank) {
+                return BUCKETS[i];
+            }
+        }
+        return Double.POSITIVE_INFINITY;
+    }
+
+    private static <V> List<Map.Entry<MetricKey, V>> sorted(Map<MetricKey, V> metrics) {
+        List<Map.Entry<MetricKey, V>> ret = new ArrayList<>(metrics.entrySet());
+        ret.sort(Comparator.comparing(e -> e.getKey().toString()));
+        return ret;
+    }
+
+    private static String formatBound(double bound) {
+        return bound == Math.rint(bound) ? String.valueOf((long) bound) : String.valueOf(bound);
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static final class Histogram {
+        // One count per bucket followed by the +Inf bucket
+        private final LongAdder[] buckets = new LongAdder[BUCKETS.length + 1];
+        private final LongAdder sumNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        private Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long nanos) {
+            double seconds = nanos / 1e9;
+            int i = 0;
+            while (i < BUCKETS.length && seconds > BUCKETS[i]) {
+                i++;
+            }
+            buckets[i].increment();
+            sumNanos.add(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+
+        /*
+         * Per-bucket counts, the +Inf bucket, then the total count, read once so that they are consistent
+         */
+        long[] snapshot() {
+            long[] ret = new long[buckets.length + 1];
+            long total = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                ret[i] = buckets[i].sum();
+                total += ret[i];
+            }
+            ret[buckets.length] = total;
+            return ret;
+        }
+    }
+
+    private static final class MetricKey {
+        private final String name;
+        private final String[] labels;
+        private final int hash;
+
+        private MetricKey(String name, String[] labels) {
+            if (labels.length % 2 != 0) {
+                throw new IllegalArgumentException("Labels must be name/value pairs");
+            }
+            this.name = name;
+            this.labels = labels;
+            this.hash = 31 * name.hashCode() + Arrays.hashCode(labels);
+        }
+
+        ObjectNode toJson(ObjectNode node) {
+            node.put("name", name);
+            ObjectNode labelNode = node.putObject("labels");
+            for (int i = 0; i < labels.length; i += 2) {
+                labelNode.put(labels[i], labels[i + 1]);
+            }
+            return node;
+        }
+
+        /*
+         * Prometheus label set, optionally with one extra pre-formatted label such as le
+         */
+        String labels(String extra) {
+            if (labels.length == 0 && extra == null) {
+                return "";
+            }
+            StringBuilder sb = new StringBuilder("{");
+            for (int i = 0; i < labels.length; i += 2) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append(labels[i]).append("=\"").append(escape(labels[i + 1])).append('"');
+            }
+            if (extra != null) {
+                sb.append(labels.length > 0 ? "," : "").append(extra);
+            }
+            return sb.append('}').toString();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof MetricKey)) {
+                return false;
+            }
+            MetricKey other = (MetricKey) o;
+            return name.equals(other.name) && Arrays.equals(labels, other.labels);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public String toString() {
+            return name + labels(null);
+        }
+    }
+}
@@ -0,0 +1,295 @@
+package edu.mayo.hsr.dhs.cql2nlp;
+
+import edu.mayo.hsr.dhs.cql2nlp.structs.CodeDictionary;
+import edu.mayo.hsr.dhs.cql2nlp.structs.UMLSSourceVocabulary;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Converts MRCONSO/MRREL/MRSTY RRF files from a local UMLS installation into the compact binary indexes read by
+ * {@link RRFTerminologyService}. <br/>
+ * <br/>
+ * Every index is a sorted key column followed by CSR-style value offsets and an int value column, so that lookups are
+ * a binary search over a memory-mapped file. CUIs and TUIs are stored as their numeric portion (C0018802 &rarr; 18802),
+ * while source codes and atom names are stored in UTF-8 string tables.
+ */
+final class RRFIndexBuilder {
+
+    static final int FORMAT_VERSION = 1;
+
+    static final String CODE_KEYS_FILE = "code_keys.idx";
+    static final String CODE_CUIS_FILE = "code_cuis.idx";
+    static final String RB_FILE = "rb.idx";
+    static final String ATOM_NAMES_FILE = "atom_names.idx";
+    static final String ATOMS_FILE = "atoms.idx";
+    static final String STY_FILE = "sty.idx";
+    static final String MANIFEST_FILE = "index.properties";
+
+    private static final String[] RRF_FILES = {"MRCONSO.RRF", "MRREL.RRF", "MRSTY.RRF"};
+
+    private RRFIndexBuilder() {
+    }
+
+    /**
+     * Checks whether the index in indexDir was built by this version from the RRF files currently in metaDir
+     */
+    static boolean isCurrent(File metaDir, File indexDir) throws IOException {
+        File manifest = new File(indexDir, MANIFEST_FILE);
+        if (!manifest.isFile()) {
+            return false;
+        }
+        Properties props = new Properties();
+        try (InputStream in = new FileInputStream(manifest)) {
+            props.load(in);
+        }
+        return sourceFingerprint(metaDir).equals(props.getProperty("source"))
+                && String.valueOf(FORMAT_VERSION).equals(props.getProperty("format"));
+    }
+
+    /**
+     * Builds all indexes into indexDir. The manifest is written last so that an interrupted build is never considered
+     * current.
+     */
+    static void build(File metaDir, File indexDir) throws IOException {
+        if (!indexDir.isDirectory() && !indexDir.mkdirs()) {
+            throw new IOException("Could not create UMLS index directory " + indexDir);
+        }
+        new File(indexDir, MANIFEST_FILE).delete();
+        Set<String> indexedSabs = new HashSet<>();
+        for (UMLSSourceVocabulary sab : UMLSSourceVocabulary.values()) {
+            if (sab != UMLSSourceVocabulary.UMLS) {
+                indexedSabs.add(sab.name());
+            }
+        }
+
+        // MRCONSO: CUI|LAT|TS|LUI|STT|SUI|ISPREF|AUI|SAUI|SCUI|SDUI|SAB|TTY|CODE|STR|SRL|SUPPRESS|CVF
+        Map<String, Integer> codeKeys = new HashMap<>();
+        Map<String, Integer> atomNames = new HashMap<>();
+        PairList codePairs = new PairList();
+        PairList atomPairs = new PairList();
+        try (BufferedReader reader = openRRF(metaDir, "MRCONSO.RRF")) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] cols = line.split("\\|", -1);
+                if (!"N".equals(cols[16])) {
+                    continue; // UTS excludes obsolete and suppressible content by default
+                }
+                int cui = CodeDictionary.cuiToInt(cols[0]);
+                if (indexedSabs.contains(cols[11])) {
+                    codePairs.add(intern(codeKeys, cols[11] + "|" + cols[13]), cui);
+                }
+                if ("ENG".equals(cols[1])) {
+                    atomPairs.add(cui, intern(atomNames, cols[14].toLowerCase()));
+                }
+            }
+        }
+
+        // MRREL: CUI1|AUI1|STYPE1|REL|CUI2|AUI2|STYPE2|RELA|RUI|SRUI|SAB|SL|RG|DIR|SUPPRESS|CVF
+        PairList rbPairs = new PairList();
+        try (BufferedReader reader = openRRF(metaDir, "MRREL.RRF")) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] cols = line.split("\\|", -1);
+                if ("RB".equals(cols[3]) && "N".equals(cols[14]) && !cols[0].equals(cols[4])) {
+                    rbPairs.add(CodeDictionary.cuiToInt(cols[0]), CodeDictionary.cuiToInt(cols[4]));
+                }
+            }
+        }
+
+        // MRSTY: CUI|TUI|STN|STY|ATUI|CVF
+        PairList styPairs = new PairList();
+        try (BufferedReader reader = openRRF(metaDir, "MRSTY.RRF")) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] cols = line.split("\\|", -1);
+                styPairs.add(CodeDictionary.cuiToInt(cols[0]), RRFTerminologyService.tuiToInt(cols[1]));
+            }
+        }
+
+        // Source code keys are sorted so that they can be binary searched, remap pairs to the sorted ordinals
+        byte[][] sortedCodeKeys = new byte[codeKeys.size()][];
+        codeKeys.forEach((key, id) -> sortedCodeKeys[id] = key.getBytes(StandardCharsets.UTF_8));
+        Integer[] order = new Integer[sortedCodeKeys.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> compareUnsigned(sortedCodeKeys[a], sortedCodeKeys[b]));
+        int[] ordinals = new int[order.length];
+        byte[][] codeKeyTable = new byte[order.length][];
+        for (int i = 0; i < order.length; i++) {
+            ordinals[order[i]] = i;
+            codeKeyTable[i] = sortedCodeKeys[order[i]];
+        }
+        codePairs.remapKeys(ordinals);
+
+        byte[][] atomNameTable = new byte[atomNames.size()][];
+        atomNames.forEach((name, id) -> atomNameTable[id] = name.getBytes(StandardCharsets.UTF_8));
+
+        writeStrings(new File(indexDir, CODE_KEYS_FILE), codeKeyTable);
+        writePostings(new File(indexDir, CODE_CUIS_FILE), codePairs);
+        writePostings(new File(indexDir, RB_FILE), rbPairs);
+        writeStrings(new File(indexDir, ATOM_NAMES_FILE), atomNameTable);
+        writePostings(new File(indexDir, ATOMS_FILE), atomPairs);
+        writePostings(new File(indexDir, STY_FILE), styPairs);
+
+        Properties props = new Properties();
+        props.setProperty("format", String.valueOf(FORMAT_VERSION));
+        props.setProperty("source", sourceFingerprint(metaDir));
+        props.setProperty("release", readRelease(metaDir));
+        File tmp = new File(indexDir, MANIFEST_FILE + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            props.store(out, "CQL2NLP UMLS index");
+        }
+        Files.move(tmp.toPath(), new File(indexDir, MANIFEST_FILE).toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static BufferedReader openRRF(File metaDir, String name) throws IOException {
+        File f = new File(metaDir, name);
+        if (!f.isFile()) {
+            throw new FileNotFoundException("Missing " + name + " in UMLS META directory " + metaDir);
+        }
+        return new BufferedReader(new InputStreamReader(new FileInputStream(f), StandardCharsets.UTF_8), 1 << 20);
+    }
+
+    /*
+     * MetamorphoSys writes release.dat alongside (or one level above) the META directory
+     */
+    private static String readRelease(File metaDir) throws IOException {
+        for (File dir : new File[]{metaDir, metaDir.getAbsoluteFile().getParentFile()}) {
+            File releaseDat = dir == null ? null : new File(dir, "release.dat");
+            if (releaseDat != null && releaseDat.isFile()) {
+                Properties release = new Properties();
+                try (InputStream in = new FileInputStream(releaseDat)) {
+                    release.load(in);
+                }
+                if (release.containsKey("umls.release.name")) {
+                    return release.getProperty("umls.release.name");
+                }
+            }
+        }
+        return "local-" + Integer.toHexString(sourceFingerprint(metaDir).hashCode());
+    }
+
+    private static String sourceFingerprint(File metaDir) {
+        StringBuilder sb = new StringBuilder();
+        for (String name : RRF_FILES) {
+            File f = new File(metaDir, name);
+            sb.append(name).append(':').append(f.length()).append(':').append(f.lastModified()).append(';');
+        }
+        return sb.toString();
+    }
+
+    private static int intern(Map<String, Integer> table, String value) {
+        Integer id = table.get(value);
+        if (id == null) {
+            id = table.size();
+            table.put(value, id);
+        }
+        return id;
+    }
+
+    static int compareUnsigned(byte[] a, byte[] b) {
+        int len = Math.min(a.length, b.length);
+        for (int i = 0; i < len; i++) {
+            int cmp = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    /*
+     * Layout: int count, int[count + 1] byte offsets (relative to the start of the data section), byte[] data
+     */
+    private static void writeStrings(File file, byte[][] values) throws IOException {
+        long total = 0;
+        for (byte[] value : values) {
+            total += value.length;
+        }
+        if (total > Integer.MAX_VALUE - 4L * (values.length + 2)) {
+            throw new IOException("String table " + file.getName() + " exceeds the maximum mappable size");
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 20))) {
+            out.writeInt(values.length);
+            int offset = 0;
+            for (byte[] value : values) {
+                out.writeInt(offset);
+                offset += value.length;
+            }
+            out.writeInt(offset);
+            for (byte[] value : values) {
+                out.write(value);
+            }
+        }
+    }
+
+    /*
+     * Layout: int keyCount, int valueCount, int[keyCount] sorted keys, int[keyCount + 1] value offsets, int[valueCount] values
+     */
+    private static void writePostings(File file, PairList pairs) throws IOException {
+        long[] sorted = pairs.sortedDistinct();
+        int keyCount = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (i == 0 || (sorted[i] >>> 32) != (sorted[i - 1] >>> 32)) {
+                keyCount++;
+            }
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 20))) {
+            out.writeInt(keyCount);
+            out.writeInt(sorted.length);
+            for (int i = 0; i < sorted.length; i++) {
+                if (i == 0 || (sorted[i] >>> 32) != (sorted[i - 1] >>> 32)) {
+                    out.writeInt((int) (sorted[i] >>> 32));
+                }
+            }
+            for (int i = 0; i < sorted.length; i++) {
+                if (i == 0 || (sorted[i] >>> 32) != (sorted[i - 1] >>> 32)) {
+                    out.writeInt(i);
+                }
+            }
+            out.writeInt(sorted.length);
+            for (long pair : sorted) {
+                out.writeInt((int) pair);
+            }
+        }
+    }
+
+    /**
+     * Growable list of non-negative (key, value) int pairs packed into longs so that sorting orders by key then value
+     */
+    private static final class PairList {
+        private long[] pairs = new long[1024];
+        private int size;
+
+        void add(int key, int value) {
+            if (size == pairs.length) {
+                pairs = Arrays.copyOf(pairs, size * 2);
+            }
+            pairs[size++] = ((long) key << 32) | (value & 0xFFFFFFFFL);
+        }
+
+        void remapKeys(int[] mapping) {
+            for (int i = 0; i < size; i++) {
+                int key = (int) (pairs[i] >>> 32);
+                pairs[i] = ((long) mapping[key] << 32) | (pairs[i] & 0xFFFFFFFFL);
+            }
+        }
+
+        long[] sortedDistinct() {
+            long[] ret = Arrays.copyOf(pairs, size);
+            Arrays.sort(ret);
+            int distinct = 0;
+            for (int i = 0; i < ret.length; i++) {
+                if (i == 0 || ret[i] != ret[distinct - 1]) {
+                    ret[distinct++] = ret[i];
+                }
+            }
+            return Arrays.copyOf(ret, distinct);
+        }
+    }
+}
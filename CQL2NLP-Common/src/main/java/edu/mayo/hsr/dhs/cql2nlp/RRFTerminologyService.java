@@ -0,0 +1,256 @@
+package edu.mayo.hsr.dhs.cql2nlp;
+
+import edu.mayo.hsr.dhs.cql2nlp.structs.CodeDictionary;
+import edu.mayo.hsr.dhs.cql2nlp.structs.UMLSSourceVocabulary;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * {@link TerminologyService} implementation backed by a local UMLS installation. <br/>
+ * <br/>
+ * The MRCONSO, MRREL and MRSTY RRF files are converted once into compact binary indexes (see {@link RRFIndexBuilder})
+ * which are then memory-mapped, so lookups require no network access and very little heap.
+ */
+public class RRFTerminologyService implements TerminologyService {
+
+    private final String release;
+    private final StringTable codeKeys;
+    private final Postings codeCUIs;
+    private final Postings rbRelations;
+    private final StringTable atomNames;
+    private final Postings atoms;
+    private final Postings semanticTypes;
+
+    private RRFTerminologyService(File indexDir) throws IOException {
+        if (!new File(indexDir, RRFIndexBuilder.MANIFEST_FILE).isFile()) {
+            throw new IOException("No UMLS index found in " + indexDir);
+        }
+        Properties manifest = new Properties();
+        try (InputStream in = new FileInputStream(new File(indexDir, RRFIndexBuilder.MANIFEST_FILE))) {
+            manifest.load(in);
+        }
+        this.release = manifest.getProperty("release", "local");
+        this.codeKeys = new StringTable(map(new File(indexDir, RRFIndexBuilder.CODE_KEYS_FILE)));
+        this.codeCUIs = new Postings(map(new File(indexDir, RRFIndexBuilder.CODE_CUIS_FILE)));
+        this.rbRelations = new Postings(map(new File(indexDir, RRFIndexBuilder.RB_FILE)));
+        this.atomNames = new StringTable(map(new File(indexDir, RRFIndexBuilder.ATOM_NAMES_FILE)));
+        this.atoms = new Postings(map(new File(indexDir, RRFIndexBuilder.ATOMS_FILE)));
+        this.semanticTypes = new Postings(map(new File(indexDir, RRFIndexBuilder.STY_FILE)));
+    }
+
+    /**
+     * Opens the index for a UMLS installation, building it first if it is missing or older than the RRF files
+     *
+     * @param metaDir  The META directory of a UMLS installation containing MRCONSO.RRF, MRREL.RRF and MRSTY.RRF
+     * @param indexDir The directory to store the binary indexes in
+     * @return A terminology service backed by the index
+     */
+    public static RRFTerminologyService fromRRF(File metaDir, File indexDir) throws IOException {
+        if (!RRFIndexBuilder.isCurrent(metaDir, indexDir)) {
+            RRFIndexBuilder.build(metaDir, indexDir);
+        }
+        return new RRFTerminologyService(indexDir);
+    }
+
+    /**
+     * Opens a previously built index without checking it against its source RRF files
+     *
+     * @param indexDir The directory the binary indexes were built in
+     * @return A terminology service backed by the index
+     */
+    public static RRFTerminologyService open(File indexDir) throws IOException {
+        return new RRFTerminologyService(indexDir);
+    }
+
+    @Override
+    public String getRelease() {
+        return release;
+    }
+
+    @Override
+    public Set<String> getCUIsForSourceCode(UMLSSourceVocabulary sab, String code) {
+        int ordinal = codeKeys.find((sab.name() + "|" + code).getBytes(StandardCharsets.UTF_8));
+        if (ordinal < 0) {
+            return Collections.emptySet();
+        }
+        Set<String> ret = new HashSet<>();
+        int end = codeCUIs.end(ordinal);
+        for (int i = codeCUIs.start(ordinal); i < end; i++) {
+            ret.add(CodeDictionary.intToCui(codeCUIs.value(i)));
+        }
+        return ret;
+    }
+
+    @Override
+    public Set<String> getRBRelatedCUIs(String cui) {
+        int slot = rbRelations.slotOf(CodeDictionary.cuiToInt(cui));
+        if (slot < 0) {
+            return Collections.emptySet();
+        }
+        Set<String> ret = new HashSet<>();
+        int end = rbRelations.end(slot);
+        for (int i = rbRelations.start(slot); i < end; i++) {
+            ret.add(CodeDictionary.intToCui(rbRelations.value(i)));
+        }
+        return ret;
+    }
+
+    @Override
+    public Set<String> getEnglishAtomNames(String cui) {
+        int slot = atoms.slotOf(CodeDictionary.cuiToInt(cui));
+        if (slot < 0) {
+            return Collections.emptySet();
+        }
+        Set<String> ret = new HashSet<>();
+        int end = atoms.end(slot);
+        for (int i = atoms.start(slot); i < end; i++) {
+            ret.add(atomNames.get(atoms.value(i)));
+        }
+        return ret;
+    }
+
+    @Override
+    public Set<String> getSemanticTypes(String cui) {
+        int slot = semanticTypes.slotOf(CodeDictionary.cuiToInt(cui));
+        if (slot < 0) {
+            return Collections.emptySet();
+        }
+        Set<String> ret = new HashSet<>();
+        int end = semanticTypes.end(slot);
+        for (int i = semanticTypes.start(slot); i < end; i++) {
+            ret.add(intToTui(semanticTypes.value(i)));
+        }
+        return ret;
+    }
+
+    static int tuiToInt(String tui) {
+        return Integer.parseInt(tui.substring(1));
+    }
+
+    static String intToTui(int tui) {
+        String digits = Integer.toString(tui);
+        return "T000".substring(0, 4 - Math.min(3, digits.length())) + digits;
+    }
+
+    private static MappedByteBuffer map(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    /*
+     * Read-only view over a string table written by RRFIndexBuilder. Only absolute gets are used so instances are
+     * safe to share between threads.
+     */
+    private static final class StringTable {
+        private final MappedByteBuffer buf;
+        private final int count;
+        private final int dataStart;
+
+        StringTable(MappedByteBuffer buf) {
+            this.buf = buf;
+            this.count = buf.getInt(0);
+            this.dataStart = 4 + 4 * (count + 1);
+        }
+
+        String get(int ordinal) {
+            int start = buf.getInt(4 + 4 * ordinal);
+            int end = buf.getInt(4 + 4 * (ordinal + 1));
+            byte[] bytes = new byte[end - start];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = buf.get(dataStart + start + i);
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        /*
+         * Binary search over the (sorted) table, returning the ordinal of the key or -1 if absent
+         */
+        int find(byte[] key) {
+            int lo = 0;
+            int hi = count - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int cmp = compareAt(mid, key);
+                if (cmp < 0) {
+                    lo = mid + 1;
+                } else if (cmp > 0) {
+                    hi = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -1;
+        }
+
+        private int compareAt(int ordinal, byte[] key) {
+            int start = dataStart + buf.getInt(4 + 4 * ordinal);
+            int len = dataStart + buf.getInt(4 + 4 * (ordinal + 1)) - start;
+            int n = Math.min(len, key.length);
+            for (int i = 0; i < n; i++) {
+                int cmp = (buf.get(start + i) & 0xFF) - (key[i] & 0xFF);
+                if (cmp != 0) {
+                    return cmp;
+                }
+            }
+            return len - key.length;
+        }
+    }
+
+    /*
+     * Read-only view over a postings file written by RRFIndexBuilder
+     */
+    private static final class Postings {
+        private final MappedByteBuffer buf;
+        private final int keyCount;
+        private final int offsetsStart;
+        private final int valuesStart;
+
+        Postings(MappedByteBuffer buf) {
+            this.buf = buf;
+            this.keyCount = buf.getInt(0);
+            this.offsetsStart = 8 + 4 * keyCount;
+            this.valuesStart = offsetsStart + 4 * (keyCount + 1);
+        }
+
+        int slotOf(int key) {
+            int lo = 0;
+            int hi = keyCount - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int midKey = buf.getInt(8 + 4 * mid);
+                if (midKey < key) {
+                    lo = mid + 1;
+                } else if (midKey > key) {
+                    hi = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -1;
+        }
+
+        int start(int slot) {
+            return buf.getInt(offsetsStart + 4 * slot);
+        }
+
+        int end(int slot) {
+            return buf.getInt(offsetsStart + 4 * (slot + 1));
+        }
+
+        int value(int idx) {
+            return buf.getInt(valuesStart + 4 * idx);
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package edu.mayo.hsr.dhs.cql2nlp;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.http.client.ClientHttpRequestInterceptor;
+import org.springframework.http.client.ClientHttpResponse;
+
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Adaptive token bucket shared by every client talking to the same host, see {@link #forHost(String)}. <br/>
+ * <br/>
+ * Requests start out limited to {@link #MAX_RATE_PROPERTY} per second. A 429 response halves the rate and, if it
+ * carries a Retry-After header, holds back every request to the host until then. Each successful response then adds
+ * back roughly one request per second for every second of successful traffic, so the rate settles just below what the
+ * service accepts instead of oscillating between bursts and throttling.
+ */
+public final class RateLimiter {
+
+    /**
+     * System property controlling the highest request rate per host, in requests per second. UTS allows 20 per second
+     */
+    public static final String MAX_RATE_PROPERTY = "cql2nlp.http.maxRequestsPerSecond";
+
+    private static final double MIN_RATE = 0.5;
+    private static final long DEFAULT_RETRY_AFTER_MILLIS = 1000;
+    private static final ConcurrentMap<String, RateLimiter> SHARED = new ConcurrentHashMap<>();
+
+    private final String host;
+    private final double maxRate;
+    private double rate;
+    // Negative when requests have reserved permits ahead of the refill
+    private double tokens;
+    private long refilledAt = System.nanoTime();
+    private long pausedUntil = refilledAt;
+
+    RateLimiter(String host, double maxRate) {
+        this.host = host;
+        this.maxRate = maxRate;
+        this.rate = maxRate;
+        this.tokens = maxRate;
+    }
+
+    /**
+     * @param host A host name, optionally with a port
+     * @return The limiter shared by all requests to the host
+     */
+    public static RateLimiter forHost(String host) {
+        return SHARED.computeIfAbsent(host, h -> new RateLimiter(h,
+                Double.parseDouble(System.getProperty(MAX_RATE_PROPERTY, "20"))));
+    }
+
+    /**
+     * @return An interceptor that waits for a permit from the limiter of the request's host before sending it, and
+     * adapts that limiter to the response. Add it before authentication so that tickets are not held while waiting
+     */
+    public static ClientHttpRequestInterceptor interceptor() {
+        return (request, body, execution) -> {
+            RateLimiter limiter = forHost(hostOf(request.getURI()));
+            limiter.acquire();
+            ClientHttpResponse response = execution.execute(request, body);
+            if (response.getRawStatusCode() == HttpStatus.TOO_MANY_REQUESTS.value()) {
+                limiter.onThrottled(parseRetryAfter(response.getHeaders().getFirst("Retry-After")));
+            } else if (response.getRawStatusCode() < 500) {
+                limiter.onSuccess();
+            }
+            return response;
+        };
+    }
+
+    static String hostOf(URI uri) {
+        return uri.getPort() < 0 ? String.valueOf(uri.getHost()) : uri.getHost() + ":" + uri.getPort();
+    }
+
+    /**
+     * Blocks until a request may be sent
+     */
+    public void acquire() throws InterruptedIOException {
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            refill(now);
+            tokens -= 1;
+            waitNanos = Math.max(tokens < 0 ? (long) (-tokens / rate * 1e9) : 0, pausedUntil - now);
+        }
+        if (waitNanos <= 0) {
+            return;
+        }
+        Metrics.get().recordNanos("rate_limiter_wait_seconds", waitNanos, "host", host);
+        long deadline = System.nanoTime() + waitNanos;
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(this, remaining);
+            if (Thread.interrupted()) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting to send a request to " + host);
+            }
+        }
+    }
+
+    /**
+     * Additive increase after a request was accepted
+     */
+    public synchronized void onSuccess() {
+        rate = Math.min(maxRate, rate + 1 / rate);
+    }
+
+    /**
+     * Multiplicative decrease after a 429 response
+     *
+     * @param retryAfterMillis How long the service asked to wait, or a negative value if it did not say
+     */
+    public synchronized void onThrottled(long retryAfterMillis) {
+        long now = System.nanoTime();
+        refill(now);
+        rate = Math.max(MIN_RATE, rate / 2);
+        // Drop any burst allowance so that requests resume at the reduced rate
+        tokens = Math.min(tokens, 0);
+        long pause = TimeUnit.MILLISECONDS.toNanos(retryAfterMillis >= 0 ? retryAfterMillis : DEFAULT_RETRY_AFTER_MILLIS);
+        pausedUntil = Math.max(pausedUntil, now + pause);
+        Metrics.get().increment("rate_limiter_throttled_total", "host", host);
+    }
+
+    /**
+     * @return The current permitted rate, in requests per second
+     */
+    public synchronized double getRate() {
+        return rate;
+    }
+
+    private void refill(long now) {
+        // Bursts are capped at one second's worth of requests
+        tokens = Math.min(Math.max(rate, 1), tokens + (now - refilledAt) / 1e9 * rate);
+        refilledAt = now;
+    }
+
+    /**
+     * Parses a Retry-After header, which is either a number of seconds or an HTTP date
+     *
+     * @return The delay in milliseconds, or -1 if absent or malformed
+     */
+    static long parseRetryAfter(String retryAfter) {
+        if (retryAfter == null || retryAfter.trim().isEmpty()) {
+            return -1;
+        }
+        try {
+            return Math.max(0, (long) (Double.parseDouble(retryAfter.trim()) * 1000));
+        } catch (NumberFormatException e) {
+            try {
+                ZonedDateTime at = ZonedDateTime.parse(retryAfter.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+                return Math.max(0, at.toInstant().toEpochMilli() - System.currentTimeMillis());
+            } catch (DateTimeParseException ignored) {
+                return -1;
+            }
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "RateLimiter{host=" + host + ", rate=" + String.format("%.1f", rate) + "/s}";
+    }
+}
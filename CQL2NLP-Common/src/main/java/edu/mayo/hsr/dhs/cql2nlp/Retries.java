@@ -0,0 +1,189 @@
+package edu.mayo.hsr.dhs.cql2nlp;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.web.client.HttpStatusCodeException;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+
+/**
+ * Retries UTS and VSAC calls that failed transiently: 429 (too many requests), 500, 502, 503 and 504 responses, and
+ * I/O errors such as timeouts. Retries back off exponentially with full jitter, and never sooner than a 429's
+ * Retry-After. Every attempt goes through the whole RestTemplate interceptor chain again, so each one obtains a fresh
+ * single-use service ticket and waits on the {@link RateLimiter}. <br/>
+ * <br/>
+ * Once attempts are exhausted the last failure is thrown as an {@link IOException}; callers never see an empty result
+ * in place of an error. Other failures, e.g. 404, are not retried and propagate unchanged. <br/>
+ * <br/>
+ * {@link #callAsync(String, Supplier)} applies the same policy to WebClient calls, scheduling retries on a timer
+ * instead of sleeping so that no thread is held while backing off.
+ */
+public final class Retries {
+
+    /**
+     * System property controlling how many times a call is attempted before giving up
+     */
+    public static final String MAX_ATTEMPTS_PROPERTY = "cql2nlp.http.maxAttempts";
+    /**
+     * System property controlling the backoff before the first retry, in milliseconds. It doubles with every retry
+     */
+    public static final String BACKOFF_MILLIS_PROPERTY = "cql2nlp.http.backoffMillis";
+    /**
+     * System property controlling connect and read timeouts, in milliseconds
+     */
+    public static final String TIMEOUT_MILLIS_PROPERTY = "cql2nlp.http.timeoutMillis";
+
+    private static final long MAX_BACKOFF_MILLIS = 60_000;
+    private static final ScheduledExecutorService RETRY_TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "cql2nlp-retry-timer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private Retries() {
+    }
+
+    /**
+     * A remote call, typically a single RestTemplate request
+     */
+    public interface Call<T> {
+        T call() throws IOException;
+    }
+
+    /**
+     * Makes a call, retrying transient failures
+     *
+     * @param endpoint Names the endpoint for metrics and error messages, e.g. uts/relations
+     * @param call     The call to make
+     * @return The call's result
+     * @throws IOException If the call failed permanently or still failed after the last attempt
+     */
+    public static <T> T call(String endpoint, Call<T> call) throws IOException {
+        int maxAttempts = maxAttempts();
+        for (int attempt = 1; ; attempt++) {
+            RuntimeException failure;
+            try {
+                return call.call();
+            } catch (HttpStatusCodeException | ResourceAccessException e) {
+                failure = e;
+            }
+            String reason = retryReason(failure);
+            if (reason == null) {
+                throw failure;
+            }
+            if (attempt >= maxAttempts) {
+                Metrics.get().increment("http_retries_exhausted_total", "endpoint", endpoint);
+                throw new IOException(endpoint + " failed after " + attempt + " attempts", failure);
+            }
+            Metrics.get().increment("http_retries_total", "endpoint", endpoint, "reason", reason);
+            sleep(backoffMillis(attempt, failure), endpoint);
+        }
+    }
+
+    /**
+     * Makes a non-blocking call, retrying transient failures
+     *
+     * @param endpoint Names the endpoint for metrics and error messages, e.g. uts/relations
+     * @param call     Starts one attempt of the call, typically a WebClient request
+     * @return The call's result, completed exceptionally with an IOException if the call still failed after the last
+     * attempt, or with the original failure if it is not retried
+     */
+    public static <T> CompletableFuture<T> callAsync(String endpoint, Supplier<CompletableFuture<T>> call) {
+        CompletableFuture<T> ret = new CompletableFuture<>();
+        attemptAsync(endpoint, call, 1, maxAttempts(), ret);
+        return ret;
+    }
+
+    private static <T> void attemptAsync(String endpoint, Supplier<CompletableFuture<T>> call, int attempt,
+                                         int maxAttempts, CompletableFuture<T> ret) {
+        if (ret.isDone()) {
+            // Cancelled by the caller while backing off
+            return;
+        }
+        call.get().whenComplete((value, t) -> {
+            if (t == null) {
+                ret.complete(value);
+                return;
+            }
+            Throwable failure = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+            String reason = retryReason(failure);
+            if (reason == null) {
+                ret.completeExceptionally(failure);
+            } else if (attempt >= maxAttempts) {
+                Metrics.get().increment("http_retries_exhausted_total", "endpoint", endpoint);
+                ret.completeExceptionally(new IOException(endpoint + " failed after " + attempt + " attempts", failure));
+            } else {
+                Metrics.get().increment("http_retries_total", "endpoint", endpoint, "reason", reason);
+                RETRY_TIMER.schedule(() -> attemptAsync(endpoint, call, attempt + 1, maxAttempts, ret),
+                        backoffMillis(attempt, failure), TimeUnit.MILLISECONDS);
+            }
+        });
+    }
+
+    /*
+     * The metrics label of a transient failure, or null if the failure is not retried
+     */
+    private static String retryReason(Throwable failure) {
+        int status;
+        if (failure instanceof HttpStatusCodeException) {
+            status = ((HttpStatusCodeException) failure).getRawStatusCode();
+        } else if (failure instanceof WebClientResponseException) {
+            status = ((WebClientResponseException) failure).getRawStatusCode();
+        } else if (failure instanceof ResourceAccessException || failure instanceof IOException
+                || failure instanceof TimeoutException) {
+            return "io";
+        } else {
+            return null;
+        }
+        return status == 429 || status == 500 || status == 502 || status == 503 || status == 504
+                ? String.valueOf(status) : null;
+    }
+
+    /*
+     * Exponential backoff with full jitter, but never sooner than a 429's Retry-After
+     */
+    private static long backoffMillis(int attempt, Throwable failure) {
+        HttpHeaders headers = null;
+        if (failure instanceof HttpStatusCodeException) {
+            headers = ((HttpStatusCodeException) failure).getResponseHeaders();
+        } else if (failure instanceof WebClientResponseException) {
+            headers = ((WebClientResponseException) failure).getHeaders();
+        }
+        long minDelayMillis = 0;
+        if ("429".equals(retryReason(failure)) && headers != null) {
+            minDelayMillis = RateLimiter.parseRetryAfter(headers.getFirst("Retry-After"));
+        }
+        long ceiling = Math.min(MAX_BACKOFF_MILLIS, Long.getLong(BACKOFF_MILLIS_PROPERTY, 500) << Math.min(attempt - 1, 20));
+        return Math.max(minDelayMillis, ThreadLocalRandom.current().nextLong(ceiling + 1));
+    }
+
+    private static int maxAttempts() {
+        return Math.max(1, Integer.getInteger(MAX_ATTEMPTS_PROPERTY, 6));
+    }
+
+    /**
+     * @return A request factory applying the {@link #TIMEOUT_MILLIS_PROPERTY} timeouts, so that a stalled connection
+     * surfaces as a retryable I/O error instead of blocking forever
+     */
+    public static SimpleClientHttpRequestFactory requestFactory() {
+        int timeout = Integer.getInteger(TIMEOUT_MILLIS_PROPERTY, 60_000);
+        SimpleClientHttpRequestFactory ret = new SimpleClientHttpRequestFactory();
+        ret.setConnectTimeout(timeout);
+        ret.setReadTimeout(timeout);
+        return ret;
+    }
+
+    private static void sleep(long millis, String endpoint) throws InterruptedIOException {
+        try {
+            TimeUnit.MILLISECONDS.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while backing off from " + endpoint);
+        }
+    }
+}
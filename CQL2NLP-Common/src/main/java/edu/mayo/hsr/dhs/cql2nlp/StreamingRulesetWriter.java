@@ -0,0 +1,83 @@
+package edu.mayo.hsr.dhs.cql2nlp;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.util.DefaultPrettyPrinter;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Incrementally writes a JSON object mapping value set identifiers to string arrays, the format of both
+ * nlp_export.json and cui_mappings.json. <br/>
+ * <br/>
+ * Each entry is written and flushed to disk as soon as it is supplied, so nothing has to be held in memory until the
+ * end of a run and entries finished before a crash remain on disk (the file then only lacks its closing brace). Entries
+ * may be written from multiple threads.
+ */
+public class StreamingRulesetWriter implements Closeable {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private final FileOutputStream out;
+    private final JsonGenerator generator;
+    private boolean closed;
+
+    public StreamingRulesetWriter(File file) throws IOException {
+        this.out = new FileOutputStream(file);
+        this.generator = JSON_FACTORY.createGenerator(out, JsonEncoding.UTF8);
+        this.generator.setPrettyPrinter(new DefaultPrettyPrinter());
+        this.generator.writeStartObject();
+        this.generator.flush();
+    }
+
+    /**
+     * Writes one value set's entries in the order given and flushes them to disk
+     *
+     * @param valueSetId The value set identifier
+     * @param values     The rules or CUIs generated for the value set, e.g. an already sorted ruleset from a
+     *                   {@link edu.mayo.hsr.dhs.cql2nlp.structs.RulesetStore}
+     */
+    public synchronized void write(String valueSetId, Collection<String> values) throws IOException {
+        if (closed) {
+            throw new IOException("Writer is already closed");
+        }
+        generator.writeArrayFieldStart(valueSetId);
+        for (String value : values) {
+            generator.writeString(value);
+        }
+        generator.writeEndArray();
+        generator.flush();
+        out.getFD().sync();
+    }
+
+    /**
+     * Sorts one value set's entries, e.g. those collected in a hash set, then writes them like
+     * {@link #write(String, Collection)}
+     */
+    public void writeSorted(String valueSetId, Collection<String> values) throws IOException {
+        // Sorted before taking the lock, so other writers are not held up
+        String[] sorted = values.toArray(new String[0]);
+        Arrays.sort(sorted);
+        write(valueSetId, Arrays.asList(sorted));
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            generator.writeEndObject();
+            generator.close();
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package edu.mayo.hsr.dhs.cql2nlp;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A group of tasks forked onto an executor that succeed or fail together. <br/>
+ * <br/>
+ * The first task to fail cancels (interrupts) the others, so e.g. the remaining lookups of a value set that can no
+ * longer be completed do not keep using up the rate limit. {@link #cancel()} does the same on request, e.g. when the
+ * user aborts. Scopes nest: a task that joins a scope of its own cancels that scope when it is itself cancelled, as
+ * {@link #join()} is interrupted. Closing a scope that was not joined cancels it, and both joining and closing wait
+ * until every task has stopped running, so no task outlives its scope.
+ */
+public final class TaskScope implements AutoCloseable {
+
+    private final ExecutorService executor;
+    private final List<FutureTask<?>> tasks = new ArrayList<>();
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private volatile boolean cancelled;
+    // Tasks that have been forked and have not yet stopped running, guarded by tasks
+    private int pending;
+    private boolean joined;
+
+    public TaskScope(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Starts a task in this scope
+     *
+     * @throws CancellationException If the scope has already been cancelled or a task has failed
+     */
+    public <T> Future<T> fork(Callable<T> task) {
+        // Claimed either by the task when it starts or by its cancellation if it never does, so that exactly one of
+        // them marks the task as no longer pending
+        AtomicBoolean claimed = new AtomicBoolean();
+        FutureTask<T> ret = new FutureTask<T>(() -> {
+            if (!claimed.compareAndSet(false, true)) {
+                return null;
+            }
+            try {
+                return task.call();
+            } catch (Throwable t) {
+                // Interruptions caused by cancellation are not failures
+                if (!cancelled && failure.compareAndSet(null, t)) {
+                    cancel();
+                }
+                throw t;
+            } finally {
+                finished();
+            }
+        }) {
+            @Override
+            protected void done() {
+                if (isCancelled() && claimed.compareAndSet(false, true)) {
+                    finished();
+                }
+            }
+        };
+        synchronized (tasks) {
+            if (cancelled) {
+                throw new CancellationException("Scope was cancelled");
+            }
+            tasks.add(ret);
+            pending++;
+        }
+        try {
+            executor.execute(ret);
+        } catch (RuntimeException e) {
+            ret.cancel(false);
+            throw e;
+        }
+        return ret;
+    }
+
+    private void finished() {
+        synchronized (tasks) {
+            if (--pending == 0) {
+                tasks.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Stops all tasks of this scope, interrupting those already running. Tasks forked afterwards are rejected
+     */
+    public void cancel() {
+        List<FutureTask<?>> running;
+        synchronized (tasks) {
+            cancelled = true;
+            running = new ArrayList<>(tasks);
+        }
+        running.forEach(f -> f.cancel(true));
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Waits for every task of this scope to finish. Cancelled tasks count as finished only once they have actually
+     * stopped running, not as soon as they are cancelled, so nothing a task uses may be released before this returns
+     *
+     * @throws IOException            The first failure, wrapped if it was not an IOException
+     * @throws CancellationException  If the scope was cancelled through {@link #cancel()}
+     * @throws InterruptedIOException If the waiting thread was interrupted, in which case the scope is cancelled and
+     *                                its tasks are still waited for
+     */
+    public void join() throws IOException {
+        if (awaitTasks()) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for tasks");
+        }
+        Throwable t = failure.get();
+        if (t instanceof IOException) {
+            throw (IOException) t;
+        } else if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        } else if (t instanceof Error) {
+            throw (Error) t;
+        } else if (t != null) {
+            throw new IOException(t);
+        }
+        if (cancelled) {
+            throw new CancellationException("Scope was cancelled");
+        }
+    }
+
+    /**
+     * Cancels this scope unless it was joined, and waits for its tasks to stop
+     */
+    @Override
+    public void close() {
+        synchronized (tasks) {
+            if (joined) {
+                return;
+            }
+        }
+        cancel();
+        if (awaitTasks()) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /*
+     * Waits until no task is running any more. An interruption cancels the scope, but is only reported once its tasks
+     * have stopped
+     */
+    private boolean awaitTasks() {
+        boolean interrupted = false;
+        synchronized (tasks) {
+            while (pending > 0) {
+                try {
+                    tasks.wait();
+                } catch (InterruptedException e) {
+                    if (!interrupted) {
+                        interrupted = true;
+                        cancel();
+                    }
+                }
+            }
+            joined = true;
+        }
+        return interrupted;
+    }
+}
@@ -0,0 +1,49 @@
+package edu.mayo.hsr.dhs.cql2nlp;
+
+import edu.mayo.hsr.dhs.cql2nlp.structs.UMLSSourceVocabulary;
+
+import java.io.IOException;
+import java.util.Set;
+
+/**
+ * Provides the subset of UMLS metathesaurus lookups required to expand value set codes into CUIs and display names
+ */
+public interface TerminologyService {
+    /**
+     * @return The UMLS release lookups are answered from, e.g. 2020AA
+     */
+    String getRelease() throws IOException;
+
+    /**
+     * Finds the concepts an ontology-specific code maps to
+     *
+     * @param sab  The source vocabulary the code belongs to
+     * @param code The source code, e.g. 84114007 for SNOMEDCT_US
+     * @return A set of CUIs, empty if the code does not map to any concept
+     */
+    Set<String> getCUIsForSourceCode(UMLSSourceVocabulary sab, String code) throws IOException;
+
+    /**
+     * Finds concepts related to a CUI via an RB relationship label
+     *
+     * @param cui The source concept
+     * @return A set of related CUIs, excluding the source concept itself
+     */
+    Set<String> getRBRelatedCUIs(String cui) throws IOException;
+
+    /**
+     * Gets the English atom names for a CUI
+     *
+     * @param cui The concept in question
+     * @return A set of unique, lower-cased atom names
+     */
+    Set<String> getEnglishAtomNames(String cui) throws IOException;
+
+    /**
+     * Gets the semantic types assigned to a CUI
+     *
+     * @param cui The concept in question
+     * @return A set of TUIs, e.g. T047
+     */
+    Set<String> getSemanticTypes(String cui) throws IOException;
+}
@@ -1,171 +1,234 @@
 package edu.mayo.hsr.dhs.cql2nlp;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import edu.mayo.hsr.dhs.cql2nlp.structs.CodeSet;
 import edu.mayo.hsr.dhs.cql2nlp.structs.CodifiedValueSetElement;
 import edu.mayo.hsr.dhs.cql2nlp.structs.VSACCodeSystem;
-import org.springframework.web.client.RestTemplate;
-import org.springframework.web.util.DefaultUriBuilderFactory;
 
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.*;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.*;
 
 /**
- * Handles usage of the UMLS metathesaurus REST service
+ * Handles usage of the UMLS metathesaurus, either via the UTS REST service or a local RRF-based installation. <br/>
+ * <br/>
+ * Relations are fetched on threads owned by the browser, and shared with the browsers it creates through
+ * {@link #forRun()}, so it is closed once neither it nor those are needed anymore.
  */
-public class UMLSBrowser {
-
-    private final ThreadLocal<RestTemplate> utsRest;
-    private final ThreadLocal<ObjectMapper> om = ThreadLocal.withInitial(ObjectMapper::new);
-    private final LoadingCache<CodifiedValueSetElement, JsonNode> cuiRlnCache =
-            CacheBuilder
-                    .newBuilder()
-                    .maximumSize(10000)
-                    .expireAfterAccess(5, TimeUnit.MINUTES)
-                    .build(new CacheLoader<CodifiedValueSetElement, JsonNode>() {
-                        @Override
-                        public JsonNode load(CodifiedValueSetElement code) throws Exception {
-                            try {
-                                return om.get().readTree(utsRest.get().getForObject("/content/current/CUI/" + code.getCode() + "/relations", String.class));
-                            } catch (Throwable t) {
-                                return JsonNodeFactory.instance.objectNode();
-                            }
-                        }
-                    });
-    private final LoadingCache<String, Set<String>> displayNameCache =
-            CacheBuilder
-                    .newBuilder()
-                    .maximumSize(10000)
-                    .expireAfterAccess(5, TimeUnit.MINUTES)
-                    .build(new CacheLoader<String, Set<String>>() {
-                        @Override
-                        public Set<String> load(String cui) throws Exception {
-                            try {
-                                return resolveDisplayNamesForCUI(cui);
-                            } catch (Throwable t) {
-                                return Collections.emptySet();
-                            }
-                        }
-                    });
+public class UMLSBrowser implements Closeable {
+
+    /**
+     * System property pointing at the META directory of a local UMLS installation to use instead of UTS
+     */
+    public static final String LOCAL_RRF_PROPERTY = "cql2nlp.umls.rrf";
+    /**
+     * System property overriding where the binary indexes for {@link #LOCAL_RRF_PROPERTY} are stored
+     */
+    public static final String LOCAL_INDEX_PROPERTY = "cql2nlp.umls.index";
+    /**
+     * System property controlling how many relation lookups may be in flight at once during hierarchy expansion
+     */
+    public static final String PARALLELISM_PROPERTY = "cql2nlp.umls.parallelism";
+
+    private final TerminologyService terminology;
+    private final ExecutorService relationFetchPool;
+    // False for browsers created by forRun(), which borrow the pool of the browser they were created from
+    private final boolean ownsRelationFetchPool;
+    private final LoadingCache<String, Set<String>> cuiRlnCache;
+    private final LoadingCache<String, Set<String>> displayNameCache;
 
     public UMLSBrowser(String utsAcct, String utsPass) {
-        this.utsRest = ThreadLocal.withInitial(() -> {
-            RestTemplate ret = new RestTemplate();
-            ret.setUriTemplateHandler(new DefaultUriBuilderFactory("https://uts-ws.nlm.nih.gov/rest"));
-            ret.setInterceptors(
-                    Collections.singletonList(new UTSAuthenticationInterceptor("https://utslogin.nlm.nih.gov/cas/v1/tickets", utsAcct, utsPass))
-            );
-            // TODO this may require further investigation as not sure if interceptor is thread safe
-            return ret;
+        this(new CachingTerminologyService(new UTSTerminologyService(utsAcct, utsPass), DiskCache.getDefault()));
+    }
+
+    public UMLSBrowser(TerminologyService terminology) {
+        this(terminology, false, IOExecutors.newExecutor("umls-relations", PARALLELISM_PROPERTY, 8), true);
+    }
+
+    private UMLSBrowser(TerminologyService terminology, boolean pinned, ExecutorService relationFetchPool,
+                        boolean ownsRelationFetchPool) {
+        this.terminology = terminology;
+        this.relationFetchPool = relationFetchPool;
+        this.ownsRelationFetchPool = ownsRelationFetchPool;
+        this.cuiRlnCache = newCache(pinned).build(new CacheLoader<String, Set<String>>() {
+            @Override
+            public Set<String> load(String cui) throws Exception {
+                return terminology.getRBRelatedCUIs(cui);
+            }
+        });
+        this.displayNameCache = newCache(pinned).build(new CacheLoader<String, Set<String>>() {
+            @Override
+            public Set<String> load(String cui) throws Exception {
+                return resolveDisplayNamesForCUI(cui);
+            }
         });
+        Metrics.get().registerCache("umls_relations", cuiRlnCache);
+        Metrics.get().registerCache("umls_display_names", displayNameCache);
     }
 
+    private static CacheBuilder<Object, Object> newCache(boolean pinned) {
+        CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder().recordStats();
+        if (pinned) {
+            return builder;
+        }
+        return builder.maximumSize(10000).expireAfterAccess(5, TimeUnit.MINUTES);
+    }
 
-    public Set<CodifiedValueSetElement> getCUIsForValueSetElement(CodifiedValueSetElement element, boolean traverseHierarchy) throws JsonProcessingException {
-        Set<CodifiedValueSetElement> ret = new HashSet<>();
-        getCUIsForValueSetElementRecurs(element, traverseHierarchy, ret);
-        return ret;
+    /**
+     * Creates a browser for a single generation run, sharing this browser's terminology service and relation fetch
+     * threads. Relations and display names are pinned for as long as the returned browser is in use instead of being
+     * bounded and expired, and concurrent lookups of the same CUI wait on one fetch, so each unique CUI costs at most
+     * one relation and one atom lookup however many value sets of the run share it.
+     *
+     * @return A browser to be closed once the run is complete, which releases its pinned entries but leaves the
+     * shared threads to this browser
+     */
+    public UMLSBrowser forRun() {
+        return new UMLSBrowser(terminology, true, relationFetchPool, false);
     }
 
-    private void getCUIsForValueSetElementRecurs(CodifiedValueSetElement element, boolean traverseHierarchy, Set<CodifiedValueSetElement> ret) throws JsonProcessingException {
-        Set<CodifiedValueSetElement> newCUIsThisIteration = new HashSet<>();
-        Map<String, Object> params = new HashMap<>();
-        if (!element.getCodeSystem().equals(VSACCodeSystem.UMLS)) {
-            params.put("sabs", element.getCodeSystem().getUmlsMapping().name());
-            params.put("inputType", "sourceUi");
-            params.put("string", element.getCode());
-            params.put("returnIdType", "concept");
-            params.put("searchType", "exact");
-            String resp = this.utsRest.get().getForObject("/search/current?sabs={sabs}&inputType={inputType}&string={string}&returnIdType={returnIdType}&searchType={searchType}", String.class, params);
-            JsonNode json = new ObjectMapper().readTree(resp);
-            if (json.has("result") && json.get("result").has("results")) {
-                JsonNode resultArray = json.get("result").get("results");
-                for (JsonNode child : resultArray) {
-                    String ui = child.get("ui").asText();
-                    if (ui.equalsIgnoreCase("NONE")) {
-                        return;
-                    } else {
-                        if (ret.add(new CodifiedValueSetElement(VSACCodeSystem.UMLS, ui))) {
-                            newCUIsThisIteration.add(new CodifiedValueSetElement(VSACCodeSystem.UMLS, ui));
-                        }
-                    }
-                }
-            }
-        } else {
-            if (ret.add(element)) {
-                newCUIsThisIteration.add(element);
+    /**
+     * Creates a browser backed by a local UMLS installation if the {@value #LOCAL_RRF_PROPERTY} system property is
+     * set, otherwise by the UTS REST service using the supplied credentials
+     *
+     * @param utsAcct A UTS Account Username
+     * @param utsPass A UTS Password
+     * @return A UMLS browser
+     */
+    public static UMLSBrowser create(String utsAcct, String utsPass) throws IOException {
+        String metaDir = System.getProperty(LOCAL_RRF_PROPERTY);
+        if (metaDir == null || metaDir.isEmpty()) {
+            return new UMLSBrowser(utsAcct, utsPass);
+        }
+        File indexDir = new File(System.getProperty(LOCAL_INDEX_PROPERTY, new File(metaDir, "cql2nlp-index").getPath()));
+        return new UMLSBrowser(RRFTerminologyService.fromRRF(new File(metaDir), indexDir));
+    }
+
+    /**
+     * @return The UMLS release lookups are answered from
+     */
+    public String getRelease() throws IOException {
+        return terminology.getRelease();
+    }
+
+    /**
+     * @return The terminology backend lookups go to, either rrf for a local UMLS installation or uts
+     */
+    public String getBackend() {
+        return terminology instanceof RRFTerminologyService ? "rrf" : "uts";
+    }
+
+    public Set<CodifiedValueSetElement> getCUIsForValueSetElement(CodifiedValueSetElement element, boolean traverseHierarchy) throws IOException {
+        return getCUIsForValueSetElement(element, traverseHierarchy, Integer.MAX_VALUE, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Maps a value set element to CUIs, optionally expanding the RB hierarchy below them breadth-first. Relations for
+     * every CUI in a level are fetched concurrently, so expansion time scales with hierarchy depth rather than size.
+     *
+     * @param element           The value set element to expand
+     * @param traverseHierarchy Whether to follow RB relations from the element's CUIs
+     * @param maxDepth          The maximum number of relation hops to follow from the element's CUIs
+     * @param maxNodes          The maximum number of CUIs to return
+     * @return The set of CUIs for the element
+     * @throws IOException If any lookup failed, rather than returning a partial hierarchy
+     */
+    public Set<CodifiedValueSetElement> getCUIsForValueSetElement(CodifiedValueSetElement element, boolean traverseHierarchy, int maxDepth, int maxNodes) throws IOException {
+        long start = System.nanoTime();
+        // Visited CUIs are tracked as CodeDictionary ids in a bitmap. Only relation lookups run on the pool, results
+        // are merged here in frontier order, so no synchronization is needed and truncation at maxNodes is repeatable
+        CodeSet visited = new CodeSet();
+        List<String> frontier = new ArrayList<>();
+        Collection<String> roots = element.getCodeSystem().equals(VSACCodeSystem.UMLS)
+                ? Collections.singleton(element.getCode())
+                : terminology.getCUIsForSourceCode(element.getCodeSystem().getUmlsMapping(), element.getCode());
+        for (String cui : roots) {
+            if (visited.size() < maxNodes && visited.add(VSACCodeSystem.UMLS, cui)) {
+                frontier.add(cui);
             }
         }
 
-        // If traverse hierarchy (comprehensive analysis), find synonyms and children CUIs as well for items that have
-        // not yet been visited (newCUIsThisIteration/not in ret already)
-        if (traverseHierarchy) {
-            for (CodifiedValueSetElement code : newCUIsThisIteration) {
-                JsonNode json;
+        // If traverse hierarchy (comprehensive analysis), find synonyms and children CUIs as well, one level at a time
+        int depth = 0;
+        while (traverseHierarchy && !frontier.isEmpty() && depth < maxDepth && visited.size() < maxNodes) {
+            List<Future<Set<String>>> level = new ArrayList<>(frontier.size());
+            for (String cui : frontier) {
+                level.add(relationFetchPool.submit(() -> lookup(cuiRlnCache, cui)));
+            }
+            List<String> next = new ArrayList<>();
+            for (Future<Set<String>> f : level) {
                 try {
-                    json = cuiRlnCache.get(code);
-                } catch (ExecutionException e) {
-                    continue;
-                }
-                if (json.has("result")) {
-                    for (JsonNode result : json.get("result")) {
-                        String relnType = result.get("relationLabel").asText();
-                        if (relnType.equalsIgnoreCase("RB")) {
-                            String cuiUrl = result.get("relatedId").asText();
-                            String cui = cuiUrl.split("/")[cuiUrl.split("/").length - 1];
-                            CodifiedValueSetElement subCode = new CodifiedValueSetElement(VSACCodeSystem.UMLS, cui);
-                            // Check if we already visited this relation, if not then proceed
-                            if (!ret.contains(subCode)) {
-                                getCUIsForValueSetElementRecurs(subCode, true, ret);
-                            }
+                    for (String related : f.get()) {
+                        // Check if we already visited this relation, if not then proceed
+                        if (visited.size() < maxNodes && visited.add(VSACCodeSystem.UMLS, related)) {
+                            next.add(related);
                         }
                     }
+                } catch (ExecutionException e) {
+                    // Incomplete hierarchies would silently drop CUIs from the ruleset, fail the element instead
+                    level.forEach(pending -> pending.cancel(true));
+                    throw e.getCause() instanceof IOException
+                            ? (IOException) e.getCause()
+                            : new IOException("Failed to expand hierarchy for " + element.getCode(), e.getCause());
+                } catch (InterruptedException e) {
+                    level.forEach(pending -> pending.cancel(true));
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while expanding hierarchy for " + element.getCode());
                 }
             }
+            frontier = next;
+            depth++;
         }
+        Metrics.get().recordSince("umls_traversal_seconds", start, "traverse", String.valueOf(traverseHierarchy));
+        return visited;
     }
 
-    public Set<String> getDisplayNamesForCUI(String cui) throws JsonProcessingException {
+    public Set<String> getDisplayNamesForCUI(String cui) throws IOException {
+        return lookup(displayNameCache, cui);
+    }
+
+    public Set<String> resolveDisplayNamesForCUI(String cui) throws IOException {
+        return terminology.getEnglishAtomNames(cui);
+    }
+
+    /*
+     * Failed loads are not cached, so a later lookup of the same CUI tries again
+     */
+    private static Set<String> lookup(LoadingCache<String, Set<String>> cache, String cui) throws IOException {
         try {
-            return displayNameCache.get(cui);
-        } catch (Throwable e) {
-            return Collections.emptySet();
+            return cache.get(cui);
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Failed to look up " + cui, e.getCause());
         }
     }
 
-    public Set<String> resolveDisplayNamesForCUI(String cui) throws JsonProcessingException {
-        Set<String> ret = new HashSet<>();
-        ObjectMapper om = new ObjectMapper();
-        String uriTemplate = "/content/current/CUI/" + cui + "/atoms?language={lang}&pageNumber={page}";
-        Map<String, String> uriVars = new HashMap<>();
-        uriVars.put("lang", "ENG");
-        int pageNum = 1;
-        uriVars.put("page", pageNum + "");
-        boolean hasResults = true;
-        while (hasResults) {
-            String resp = this.utsRest.get().getForObject(uriTemplate, String.class, uriVars);
-            JsonNode json = om.readTree(resp).get("result");
-            if (json.size() == 0) {
-                hasResults = false;
-                break;
-            }
-            for (JsonNode result : json) {
-                if (result.get("ui").asText().equalsIgnoreCase("NONE")) {
-                    hasResults = false;
-                    break;
-                } else {
-                    ret.add(result.get("name").asText().toLowerCase());
-                }
-            }
-            pageNum++;
-            uriVars.put("page", pageNum + "");
+    /**
+     * Discards the in-memory relation and display name caches, so that subsequent lookups go to the terminology
+     * service (and any persistent cache behind it) again
+     */
+    public void clearCaches() {
+        cuiRlnCache.invalidateAll();
+        displayNameCache.invalidateAll();
+    }
+
+    /**
+     * Discards the in-memory caches and, unless this browser was created by {@link #forRun()}, stops the relation
+     * fetch threads, interrupting lookups still in flight
+     */
+    @Override
+    public void close() {
+        clearCaches();
+        if (ownsRelationFetchPool) {
+            relationFetchPool.shutdownNow();
         }
-        return ret;
     }
 }
@@ -0,0 +1,351 @@
+package edu.mayo.hsr.dhs.cql2nlp;
+
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.RestTemplate;
+import org.springframework.web.util.DefaultUriBuilderFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Thread-safe holder of the UTS Ticket-Granting Ticket (TGT) for a single set of credentials. <br/>
+ * <br/>
+ * One instance is shared per account (see {@link #forCredentials(String, String, String)}), so every thread and
+ * client logs in once. Logins are serialized, and a small pool of single-use service tickets is kept filled by
+ * background threads so that requests do not have to wait on a ticket round trip. Asking for an account with a
+ * different password replaces its shared instance, and an instance whose credentials UTS rejected is no longer shared,
+ * so that neither outdated nor mistyped passwords are kept for the lifetime of the process. <br/>
+ * <br/>
+ * A failed login is not repeated by every waiting request and ticket filler: if UTS rejected the credentials, no
+ * further login is attempted until {@link #getTgt()} is called explicitly, and after any other failure logins are
+ * suspended for 30 seconds. Requests in the meantime fail with the original error. Likewise, while service tickets
+ * cannot be fetched the pool is not refilled, until a request has fetched one itself.
+ */
+public class UTSAuthenticator {
+
+    /**
+     * System property controlling how many pre-fetched service tickets are kept ready
+     */
+    public static final String TICKET_POOL_SIZE_PROPERTY = "cql2nlp.uts.ticketPoolSize";
+
+    // UTS TGT tickets expire every 8 hours
+    // Add 1-hour buffer to be safe (albeit not really necessary...) but expiry period is so long it doesn't matter anyways
+    private static final long TGT_VALID_LIMIT_MILLIS = 7 * 60 * 60 * 1000;
+    // Service tickets expire 5 minutes after issue, discard pooled ones a minute early
+    private static final long SERVICE_TICKET_VALID_LIMIT_MILLIS = 4 * 60 * 1000;
+    private static final long LOGIN_BACKOFF_MILLIS = 30 * 1000;
+
+    private static final MultiValueMap<String, String> UMLS_SINGLE_USE_SERVICE_TICKET_REQ_BODY = new LinkedMultiValueMap<>();
+
+    private static final Pattern TGT_MATCH_PATTERN = Pattern.compile("https?://[^\"]+");
+
+    private static final Map<List<String>, UTSAuthenticator> INSTANCES = new ConcurrentHashMap<>();
+    private static final AtomicInteger FILLER_THREAD_ID = new AtomicInteger();
+
+    static {
+        UMLS_SINGLE_USE_SERVICE_TICKET_REQ_BODY.put("service", Collections.singletonList("http://umlsks.nlm.nih.gov"));
+    }
+
+    private final List<String> key;
+    // Digest of the password or API key, to tell whether a shared instance was created for the same credential
+    private final byte[] credentialDigest;
+    private final MultiValueMap<String, String> tgtReqBody;
+    private final RestTemplate tgtRestTemplate = new RestTemplate(Retries.requestFactory());
+    private final Object tgtLock = new Object();
+    private volatile String currTgt = null;
+    private volatile long tgtRefreshTime = -1;
+    // The last login's failure until a login succeeds, guarded by tgtLock
+    private IOException loginFailure;
+    private long loginFailedAt;
+    private boolean credentialsRejected;
+
+    private final int poolSize;
+    private final BlockingQueue<PooledTicket> readyTickets = new LinkedBlockingQueue<>();
+    private final Semaphore ticketDemand = new Semaphore(0);
+    private final AtomicInteger outstandingFetches = new AtomicInteger();
+    // Set while the last service ticket fetch failed, so that fillers do not pile onto a failing endpoint
+    private volatile boolean ticketFetchFailing = false;
+    private volatile boolean fillersStarted = false;
+
+    private UTSAuthenticator(List<String> key, byte[] credentialDigest, String service,
+                             MultiValueMap<String, String> tgtReqBody) {
+        this.key = key;
+        this.credentialDigest = credentialDigest;
+        this.tgtReqBody = tgtReqBody;
+        this.tgtRestTemplate.setUriTemplateHandler(new DefaultUriBuilderFactory(service));
+        this.tgtRestTemplate.getMessageConverters().add(new org.springframework.http.converter.FormHttpMessageConverter());
+        this.tgtRestTemplate.setInterceptors(Arrays.asList(RateLimiter.interceptor(), Metrics.get().httpInterceptor()));
+        this.poolSize = Integer.getInteger(TICKET_POOL_SIZE_PROPERTY, 8);
+    }
+
+    /**
+     * Gets the shared authenticator for a UTS username and password
+     *
+     * @param service The Service to Authenticate against, e.g. https://utslogin.nlm.nih.gov/cas/v1/tickets
+     * @param utsUser A UTS Account Username
+     * @param utsPass A UTS Password
+     */
+    public static UTSAuthenticator forCredentials(String service, String utsUser, String utsPass) {
+        byte[] digest = digest(utsPass);
+        return INSTANCES.compute(Arrays.asList(service, "username", utsUser), (k, existing) -> {
+            if (existing != null && MessageDigest.isEqual(existing.credentialDigest, digest)) {
+                return existing;
+            }
+            MultiValueMap<String, String> body = new LinkedMultiValueMap<>();
+            body.put("username", Collections.singletonList(utsUser));
+            body.put("password", Collections.singletonList(utsPass));
+            return new UTSAuthenticator(k, digest, service, body);
+        });
+    }
+
+    /**
+     * Gets the shared authenticator for a UTS API key
+     *
+     * @param service   The Service to Authenticate against, e.g. https://utslogin.nlm.nih.gov/cas/v1/tickets
+     * @param utsApiKey A UTS API Key associated with a UTS account
+     */
+    public static UTSAuthenticator forApiKey(String service, String utsApiKey) {
+        byte[] digest = digest(utsApiKey);
+        // API keys identify their account, so they are only kept in the key as a digest
+        return INSTANCES.computeIfAbsent(Arrays.asList(service, "apikey", toHex(digest)), k -> {
+            MultiValueMap<String, String> body = new LinkedMultiValueMap<>();
+            body.put("apikey", Collections.singletonList(utsApiKey));
+            return new UTSAuthenticator(k, digest, service, body);
+        });
+    }
+
+    private static byte[] digest(String credential) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(credential.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder ret = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            ret.append(String.format("%02x", b));
+        }
+        return ret.toString();
+    }
+
+    /**
+     * Retrieves a single-use service ticket, preferring one from the pre-fetched pool
+     *
+     * @return A service ticket valid for exactly one UTS request
+     */
+    public String getServiceTicket() throws IOException {
+        startFillers();
+        try {
+            PooledTicket pooled;
+            while ((pooled = readyTickets.poll()) != null) {
+                if (pooled.issued + SERVICE_TICKET_VALID_LIMIT_MILLIS >= System.currentTimeMillis()) {
+                    Metrics.get().increment("uts_ticket_pool_total", "result", "hit");
+                    return pooled.ticket;
+                }
+            }
+            Metrics.get().increment("uts_ticket_pool_total", "result", "miss");
+            // Pool is drained (e.g. at startup or under a burst), fetch inline rather than wait on the fillers
+            return fetchServiceTicket();
+        } finally {
+            replenish();
+        }
+    }
+
+    /**
+     * Forces a new TGT to be retrieved, e.g. to validate credentials. This logs in even if an earlier login failed
+     *
+     * @return The new TGT
+     */
+    public String getTgt() throws IOException {
+        synchronized (tgtLock) {
+            return refreshTgt();
+        }
+    }
+
+    private String currentTgt() throws IOException {
+        String tgt = this.currTgt;
+        if (tgt != null && tgtRefreshTime + TGT_VALID_LIMIT_MILLIS >= System.currentTimeMillis()) {
+            return tgt;
+        }
+        // Only one thread logs in, the rest wait for and reuse its result
+        synchronized (tgtLock) {
+            if (currTgt == null || tgtRefreshTime + TGT_VALID_LIMIT_MILLIS < System.currentTimeMillis()) {
+                if (loginFailure != null
+                        && (credentialsRejected || System.currentTimeMillis() - loginFailedAt < LOGIN_BACKOFF_MILLIS)) {
+                    Metrics.get().increment("uts_login_suppressed_total");
+                    throw new IOException(loginFailure.getMessage(), loginFailure.getCause());
+                }
+                refreshTgt();
+            }
+            return currTgt;
+        }
+    }
+
+    /*
+     * Called with tgtLock held
+     */
+    private String refreshTgt() throws IOException {
+        long start = System.nanoTime();
+        try {
+            HttpHeaders headers = new HttpHeaders();
+            headers.setContentType(MediaType.APPLICATION_FORM_URLENCODED);
+            String tgt = "/" + Retries.call("uts/tgt",
+                    () -> this.tgtRestTemplate.postForObject("/", new HttpEntity<>(this.tgtReqBody, headers), String.class));
+            Matcher m = TGT_MATCH_PATTERN.matcher(tgt);
+            if (m.find()) {
+                // Used to handle UTS v1 auth endpoint only, others such as VSAC don't need to use this matcher
+                tgt = m.group();
+                tgt = tgt.split("/")[tgt.split("/").length - 1];
+            }
+            this.tgtRefreshTime = System.currentTimeMillis();
+            this.currTgt = tgt;
+            this.loginFailure = null;
+            Metrics.get().recordSince("uts_tgt_fetch_seconds", start);
+            return tgt;
+        } catch (Throwable t) {
+            this.loginFailure = new IOException("Failed to authenticate against UTS TGT Service", t);
+            this.loginFailedAt = System.currentTimeMillis();
+            // Transient failures, including 429, have already been retried and surface as IOExceptions
+            this.credentialsRejected = t instanceof HttpClientErrorException;
+            if (credentialsRejected) {
+                // Callers asking for these credentials again get a fresh instance, e.g. after the password was fixed
+                INSTANCES.remove(key, this);
+            }
+            throw loginFailure;
+        }
+    }
+
+    private String fetchServiceTicket() throws IOException {
+        long start = System.nanoTime();
+        try {
+            String ret = fetchServiceTicketUntimed();
+            ticketFetchFailing = false;
+            return ret;
+        } catch (IOException e) {
+            ticketFetchFailing = true;
+            throw e;
+        } finally {
+            Metrics.get().recordSince("uts_ticket_fetch_seconds", start);
+        }
+    }
+
+    private String fetchServiceTicketUntimed() throws IOException {
+        String tgt = currentTgt();
+        try {
+            return requestServiceTicket(tgt);
+        } catch (HttpClientErrorException e) {
+            if (!isTgtRejected(e.getRawStatusCode())) {
+                throw new IOException("Failed to retrieve Single-Use Service Ticket from UTS", e);
+            }
+            // TGT was revoked or expired server-side before our own limit, log in again once
+            synchronized (tgtLock) {
+                if (tgt.equals(currTgt)) {
+                    currTgt = null;
+                }
+            }
+            try {
+                return requestServiceTicket(currentTgt());
+            } catch (Throwable t) {
+                throw new IOException("Failed to retrieve Single-Use Service Ticket from UTS", t);
+            }
+        } catch (Throwable t) {
+            throw new IOException("Failed to retrieve Single-Use Service Ticket from UTS", t);
+        }
+    }
+
+    /*
+     * CAS answers 404 for a TGT it does not know (e.g. expired or revoked), and 400, 401 or 403 for one it refuses.
+     * Other client errors, in particular 429, say nothing about the TGT and must not cause another login
+     */
+    private static boolean isTgtRejected(int status) {
+        return status == 400 || status == 401 || status == 403 || status == 404;
+    }
+
+    private String requestServiceTicket(String tgt) throws IOException {
+        if (tgt.length() < 9) { // Blank TGT
+            throw new IOException("Failed to authenticate against UTS TGT Service, Double Check Credentials");
+        }
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_FORM_URLENCODED);
+        // Transient failures are retried here, so only a rejected TGT reaches the re-login in fetchServiceTicketUntimed
+        return Retries.call("uts/ticket",
+                () -> this.tgtRestTemplate.postForObject("/" + tgt + "/", new HttpEntity<>(UMLS_SINGLE_USE_SERVICE_TICKET_REQ_BODY, headers), String.class));
+    }
+
+    /*
+     * Requests enough background fetches to bring ready + in-flight tickets back up to the pool size. Skipped while
+     * fetches fail, until a request's own fetch succeeds again
+     */
+    private void replenish() {
+        if (ticketFetchFailing) {
+            return;
+        }
+        while (readyTickets.size() + outstandingFetches.get() < poolSize) {
+            outstandingFetches.incrementAndGet();
+            ticketDemand.release();
+        }
+    }
+
+    private void startFillers() {
+        if (fillersStarted || poolSize <= 0) {
+            return;
+        }
+        synchronized (this) {
+            if (fillersStarted) {
+                return;
+            }
+            int fillers = Math.min(poolSize, 4);
+            for (int i = 0; i < fillers; i++) {
+                Thread t = new Thread(this::fillTickets, "uts-ticket-filler-" + FILLER_THREAD_ID.incrementAndGet());
+                t.setDaemon(true);
+                t.start();
+            }
+            fillersStarted = true;
+        }
+    }
+
+    private void fillTickets() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                ticketDemand.acquire();
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                readyTickets.offer(new PooledTicket(fetchServiceTicket(), System.currentTimeMillis()));
+            } catch (IOException ignored) {
+                // Not retried here; the next request fetches inline and surfaces the error, then asks for a refill
+            } finally {
+                outstandingFetches.decrementAndGet();
+            }
+        }
+    }
+
+    private static final class PooledTicket {
+        private final String ticket;
+        private final long issued;
+
+        private PooledTicket(String ticket, long issued) {
+            this.ticket = ticket;
+            this.issued = issued;
+        }
+    }
+}
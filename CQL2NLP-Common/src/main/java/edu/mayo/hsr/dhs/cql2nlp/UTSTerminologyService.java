@@ -0,0 +1,185 @@
+package edu.mayo.hsr.dhs.cql2nlp;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import edu.mayo.hsr.dhs.cql2nlp.structs.UMLSSourceVocabulary;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.RestTemplate;
+import org.springframework.web.util.DefaultUriBuilderFactory;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * {@link TerminologyService} implementation backed by the UMLS Terminology Services (UTS) REST API
+ */
+public class UTSTerminologyService implements TerminologyService {
+
+    private final RestTemplate utsRest;
+    private final ObjectMapper om = new ObjectMapper();
+    private final RestTemplate releasesRest = new RestTemplate(Retries.requestFactory());
+    private final String releasesUrl;
+    private volatile String release;
+
+    public UTSTerminologyService(String utsAcct, String utsPass) {
+        this.releasesUrl = Endpoints.getUtsReleasesUrl();
+        this.releasesRest.setInterceptors(Arrays.asList(RateLimiter.interceptor(), Metrics.get().httpInterceptor()));
+        // RestTemplate and the interceptor (which shares one UTSAuthenticator per credential) are both thread safe
+        this.utsRest = new RestTemplate(Retries.requestFactory());
+        this.utsRest.setUriTemplateHandler(new DefaultUriBuilderFactory(Endpoints.getUtsRestUrl()));
+        // Rate limiting comes first so that tickets are not held while waiting for a permit, and metrics come after
+        // authentication so that recorded latencies exclude waiting for a service ticket. Lookups are wrapped in
+        // Retries, so every attempt runs the whole chain and gets a new single-use ticket
+        this.utsRest.setInterceptors(Arrays.asList(
+                RateLimiter.interceptor(),
+                new UTSAuthenticationInterceptor(Endpoints.getUtsLoginUrl(), utsAcct, utsPass),
+                Metrics.get().httpInterceptor()
+        ));
+    }
+
+    @Override
+    public String getRelease() throws IOException {
+        if (release == null) {
+            // The release listing is public and does not require a service ticket
+            JsonNode json = om.readTree(Retries.call("uts/releases",
+                    () -> releasesRest.getForObject(releasesUrl + "?releaseType=umls&current=true", String.class)));
+            if (!json.isArray() || json.size() == 0 || !json.get(0).has("releaseVersion")) {
+                throw new IOException("Could not determine the current UMLS release from UTS");
+            }
+            release = json.get(0).get("releaseVersion").asText();
+        }
+        return release;
+    }
+
+    @Override
+    public Set<String> getCUIsForSourceCode(UMLSSourceVocabulary sab, String code) throws IOException {
+        Map<String, Object> params = new HashMap<>();
+        params.put("sabs", sab.name());
+        params.put("inputType", "sourceUi");
+        params.put("string", code);
+        params.put("returnIdType", "concept");
+        params.put("searchType", "exact");
+        String resp = Retries.call("uts/search", () -> this.utsRest.getForObject("/search/current?sabs={sabs}&inputType={inputType}&string={string}&returnIdType={returnIdType}&searchType={searchType}", String.class, params));
+        return parseSearchResults(om.readTree(resp));
+    }
+
+    @Override
+    public Set<String> getRBRelatedCUIs(String cui) throws IOException {
+        Set<String> ret = new HashSet<>();
+        String uriTemplate = "/content/current/CUI/" + cui + "/relations?pageNumber={page}";
+        int pageNum = 1;
+        int pageCount = 1;
+        while (pageNum <= pageCount) {
+            int page = pageNum;
+            String resp = getOrNotFound("uts/relations", () -> this.utsRest.getForObject(uriTemplate, String.class, page));
+            if (resp == null) {
+                break;
+            }
+            JsonNode json = om.readTree(resp);
+            if (!json.has("result")) {
+                break;
+            }
+            ret.addAll(parseRBRelations(cui, json));
+            pageCount = json.path("pageCount").asInt(pageNum);
+            pageNum++;
+        }
+        return ret;
+    }
+
+    @Override
+    public Set<String> getEnglishAtomNames(String cui) throws IOException {
+        Set<String> ret = new HashSet<>();
+        String uriTemplate = "/content/current/CUI/" + cui + "/atoms?language={lang}&pageNumber={page}";
+        Map<String, String> uriVars = new HashMap<>();
+        uriVars.put("lang", "ENG");
+        int pageNum = 1;
+        int pageCount = 1;
+        while (pageNum <= pageCount) {
+            uriVars.put("page", pageNum + "");
+            String resp = getOrNotFound("uts/atoms", () -> this.utsRest.getForObject(uriTemplate, String.class, uriVars));
+            if (resp == null) {
+                break;
+            }
+            JsonNode json = om.readTree(resp);
+            JsonNode results = json.get("result");
+            if (results == null || results.size() == 0) {
+                break;
+            }
+            ret.addAll(parseAtomNames(json));
+            pageCount = json.path("pageCount").asInt(pageNum);
+            pageNum++;
+        }
+        return ret;
+    }
+
+    @Override
+    public Set<String> getSemanticTypes(String cui) throws IOException {
+        Set<String> ret = new HashSet<>();
+        String resp = getOrNotFound("uts/concept", () -> this.utsRest.getForObject("/content/current/CUI/" + cui, String.class));
+        if (resp == null) {
+            return ret;
+        }
+        JsonNode json = om.readTree(resp);
+        for (JsonNode semanticType : json.path("result").path("semanticTypes")) {
+            String tuiUrl = semanticType.get("uri").asText();
+            ret.add(tuiUrl.substring(tuiUrl.lastIndexOf('/') + 1));
+        }
+        return ret;
+    }
+
+    /*
+     * UTS answers 404 rather than an empty result for concepts without relations or atoms, e.g. leaf concepts, and for
+     * pages past the last one
+     */
+    private static String getOrNotFound(String endpoint, Retries.Call<String> call) throws IOException {
+        try {
+            return Retries.call(endpoint, call);
+        } catch (HttpClientErrorException.NotFound e) {
+            return null;
+        }
+    }
+
+    /*
+     * Response parsing shared with AsyncTerminologyClient
+     */
+    static Set<String> parseSearchResults(JsonNode json) {
+        Set<String> ret = new HashSet<>();
+        for (JsonNode child : json.path("result").path("results")) {
+            String ui = child.get("ui").asText();
+            if (ui.equalsIgnoreCase("NONE")) {
+                return Collections.emptySet();
+            }
+            ret.add(ui);
+        }
+        return ret;
+    }
+
+    static Set<String> parseRBRelations(String cui, JsonNode json) {
+        Set<String> ret = new HashSet<>();
+        for (JsonNode result : json.path("result")) {
+            if (result.get("relationLabel").asText().equalsIgnoreCase("RB")) {
+                String cuiUrl = result.get("relatedId").asText();
+                String related = cuiUrl.substring(cuiUrl.lastIndexOf('/') + 1);
+                if (!related.equals(cui)) {
+                    ret.add(related);
+                }
+            }
+        }
+        return ret;
+    }
+
+    static Set<String> parseAtomNames(JsonNode json) {
+        Set<String> ret = new HashSet<>();
+        for (JsonNode result : json.path("result")) {
+            if (!result.get("ui").asText().equalsIgnoreCase("NONE")) {
+                ret.add(result.get("name").asText().toLowerCase());
+            }
+        }
+        return ret;
+    }
+}
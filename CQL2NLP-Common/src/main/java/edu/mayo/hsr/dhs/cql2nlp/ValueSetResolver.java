@@ -1,29 +1,76 @@
 package edu.mayo.hsr.dhs.cql2nlp;
 
 import ca.uhn.fhir.context.FhirContext;
-import ca.uhn.fhir.parser.IParser;
+import edu.mayo.hsr.dhs.cql2nlp.structs.CodeSet;
 import edu.mayo.hsr.dhs.cql2nlp.structs.CodifiedValueSetElement;
 import edu.mayo.hsr.dhs.cql2nlp.structs.VSACCodeSystem;
+import edu.mayo.hsr.dhs.cql2nlp.structs.ValueSetExpansion;
 import org.hl7.fhir.r4.model.ValueSet;
 import org.springframework.http.client.support.BasicAuthenticationInterceptor;
 import org.springframework.web.client.RestTemplate;
 import org.springframework.web.util.DefaultUriBuilderFactory;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
 
 /**
- * Retrieves Value Sets as supplied to CQL from the NLM Value Set Authority Center and Renders them in as a FHIR R4 ValueSet
+ * Retrieves Value Sets as supplied to CQL from the NLM Value Set Authority Center and Renders them in as a FHIR R4 ValueSet.
+ * <br/>
+ * Referenced value sets are fetched on threads owned by the resolver, so it is closed once no longer needed.
  */
-public class ValueSetResolver {
+public class ValueSetResolver implements Closeable {
+
+    /**
+     * System property overriding how long (in hours) an unversioned value set may be served from the disk cache
+     */
+    public static final String LATEST_MAX_AGE_PROPERTY = "cql2nlp.cache.vsac.maxAgeHours";
+    /**
+     * System property controlling how many value sets may be fetched at once during concurrent expansion
+     */
+    public static final String PARALLELISM_PROPERTY = "cql2nlp.vsac.parallelism";
+
+    private static final String CACHE_NAMESPACE = "vsac";
+    private static final String LATEST_VERSION = "latest";
 
     private final RestTemplate restTemplate;
-    private final IParser parser;
+    private final FhirContext fhirContext;
+    private final DiskCache cache;
+    private final long latestMaxAgeMillis;
+    private final ExecutorService fetchPool = IOExecutors.newExecutor("vsac-fetch", PARALLELISM_PROPERTY, 8);
+    private final ConcurrentMap<String, CompletableFuture<ValueSet>> downloads = new ConcurrentHashMap<>();
+    // Complete expansions only
+    private final ConcurrentMap<String, ValueSetExpansion> expansions = new ConcurrentHashMap<>();
+    // Expansions being computed, so that concurrent callers wait for them rather than compute them again
+    private final ConcurrentMap<String, ExpansionFlight> expansionFlights = new ConcurrentHashMap<>();
+    // The flight each thread is waiting for, guarded by itself
+    private final Map<Thread, ExpansionFlight> waitingFor = new HashMap<>();
+    private volatile boolean concurrentExpansion = true;
 
     public ValueSetResolver(String utsAcct, String utsPass) {
-        this.restTemplate = new RestTemplate();
-        this.restTemplate.setUriTemplateHandler(new DefaultUriBuilderFactory("https://cts.nlm.nih.gov/fhir/ValueSet"));
-        this.restTemplate.setInterceptors(Collections.singletonList(new BasicAuthenticationInterceptor(utsAcct, utsPass)));
-        this.parser = FhirContext.forR4().newJsonParser();
+        this(utsAcct, utsPass, DiskCache.getDefault());
+    }
+
+    /**
+     * @param utsAcct A UTS Account Username
+     * @param utsPass A UTS Password
+     * @param cache   A persistent cache for retrieved value sets, or null to always query VSAC
+     */
+    public ValueSetResolver(String utsAcct, String utsPass, DiskCache cache) {
+        this.restTemplate = new RestTemplate(Retries.requestFactory());
+        this.restTemplate.setUriTemplateHandler(new DefaultUriBuilderFactory(Endpoints.getVsacUrl()));
+        this.restTemplate.setInterceptors(Arrays.asList(
+                RateLimiter.interceptor(),
+                new BasicAuthenticationInterceptor(utsAcct, utsPass),
+                Metrics.get().httpInterceptor()
+        ));
+        this.fhirContext = FhirContext.forR4();
+        this.cache = cache;
+        this.latestMaxAgeMillis = TimeUnit.HOURS.toMillis(Long.parseLong(System.getProperty(LATEST_MAX_AGE_PROPERTY, "24")));
     }
 
     /**
@@ -33,8 +80,155 @@ public class ValueSetResolver {
      * @return A FHIR ValueSet object. Note that the compose component can include links to other valuesets
      */
     public ValueSet getValueSetForOID(String oid) {
-        String serialized = this.restTemplate.getForEntity("/" + oid, String.class).getBody();
-        return this.parser.parseResource(ValueSet.class, serialized);
+        return getValueSetForOID(oid, null);
+    }
+
+    /**
+     * Gets a FHIR ValueSet for an OID at a specific version. Each distinct OID and version is downloaded at most once
+     * per resolver instance; concurrent requests for the same value set wait on a single download.
+     *
+     * @param oid     A VSAC OID, e.g. 2.16.840.1.113762.1.4.1223.9 for COVID-19
+     * @param version The value set version, e.g. from a CQL valueset version specifier, or null for the latest version
+     * @return A FHIR ValueSet object. Note that the compose component can include links to other valuesets
+     */
+    public ValueSet getValueSetForOID(String oid, String version) {
+        return singleFlight("downloads", downloads, memoKey(oid, version), () -> downloadValueSet(oid, version));
+    }
+
+    private ValueSet downloadValueSet(String oid, String version) {
+        // Without a requested version VSAC serves the latest one, so cached copies are only trusted for a limited time.
+        // Published versions never change and can be kept until evicted
+        String cacheVersion = version == null ? LATEST_VERSION : version;
+        long maxAge = version == null ? latestMaxAgeMillis : -1;
+        byte[] cached = this.cache == null ? null : this.cache.get(CACHE_NAMESPACE, cacheVersion, oid, maxAge);
+        Metrics.get().increment("vsac_disk_cache_total", "result", cached != null ? "hit" : "miss");
+        String serialized;
+        if (cached != null) {
+            serialized = new String(cached, StandardCharsets.UTF_8);
+        } else {
+            try {
+                serialized = Retries.call("vsac/valueset", () -> version == null
+                        ? this.restTemplate.getForEntity("/" + oid, String.class).getBody()
+                        : this.restTemplate.getForEntity("/" + oid + "?version={version}", String.class, version).getBody());
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not retrieve value set " + oid + " from VSAC", e);
+            }
+        }
+        // HAPI parsers are not thread safe, the context is
+        ValueSet ret = this.fhirContext.newJsonParser().parseResource(ValueSet.class, serialized);
+        if (version != null && ret.hasVersion() && !version.equals(ret.getVersion())) {
+            // Not cached, so that the next attempt asks VSAC again
+            throw new UncheckedIOException(new IOException("Requested version " + version + " of value set " + oid
+                    + " but VSAC returned version " + ret.getVersion()));
+        }
+        if (cached == null && this.cache != null && serialized != null) {
+            this.cache.put(CACHE_NAMESPACE, cacheVersion, oid, serialized);
+        }
+        return ret;
+    }
+
+    /**
+     * Expands a value set, including every value set it references, into its codes and display names. Expansions are
+     * memoized by OID and version for the lifetime of this resolver, so a value set referenced from several CQL
+     * definitions or from other value sets' includes and excludes is downloaded and expanded exactly once. Value sets
+     * that are part of a reference cycle are only memoized once expanded as the start of the cycle, as expanding them
+     * from within the cycle leaves out the value sets further up. <br/>
+     * <br/>
+     * Callers expanding a value set that another thread is already expanding wait for its result, unless that thread
+     * is itself waiting (directly or through others) for a value set the caller is expanding, as happens when two
+     * threads enter a reference cycle at different value sets. The caller then expands the value set itself.
+     *
+     * @param oid     A VSAC OID
+     * @param version The value set version, or null for the latest version
+     * @return The immutable, shared expansion
+     */
+    public ValueSetExpansion expand(String oid, String version) {
+        ValueSetExpansion memoized = expansions.get(memoKey(oid, version));
+        if (memoized != null) {
+            Metrics.get().increment("vsac_memo_total", "memo", "expansions", "result", "hit");
+            return memoized;
+        }
+        ValueSet valueSet = getValueSetForOID(oid, version);
+        if (concurrentExpansion) {
+            fetchReferencedValueSets(valueSet);
+        }
+        return expand(oid, version, new HashSet<>(), new HashSet<>());
+    }
+
+    /**
+     * Expands an already retrieved value set. Value sets it references are expanded through the same memo as
+     * {@link #expand(String, String)}
+     *
+     * @param valueSet The value set in question
+     * @return The expansion
+     */
+    public ValueSetExpansion expand(ValueSet valueSet) {
+        String oid = valueSet.hasId() ? valueSet.getIdElement().getIdPart() : null;
+        String version = valueSet.hasVersion() ? valueSet.getVersion() : null;
+        if (concurrentExpansion) {
+            fetchReferencedValueSets(valueSet);
+        }
+        Set<String> path = new HashSet<>();
+        if (oid != null) {
+            path.add(memoKey(oid, null));
+        }
+        return computeExpansion(oid, version, valueSet, path, new HashSet<>());
+    }
+
+    /**
+     * Sets whether value sets referenced via compose.include/exclude.valueSet are fetched concurrently ahead of
+     * resolution (the default) or one at a time as they are encountered
+     */
+    public void setConcurrentExpansion(boolean concurrentExpansion) {
+        this.concurrentExpansion = concurrentExpansion;
+    }
+
+    /**
+     * Stops the threads referenced value sets are fetched on, fetches still in flight are interrupted
+     */
+    @Override
+    public void close() {
+        fetchPool.shutdownNow();
+    }
+
+    /**
+     * Fetches every value set transitively referenced by a value set's compose includes and excludes. Each level of
+     * references is fetched in parallel, so the time taken scales with the depth of the reference chain rather than
+     * the number of referenced value sets.
+     *
+     * @param valueSet The value set to start from
+     * @return The referenced value sets by OID. Value sets that could not be fetched are omitted
+     */
+    public Map<String, ValueSet> fetchReferencedValueSets(ValueSet valueSet) {
+        Map<String, ValueSet> ret = new HashMap<>();
+        Set<String> seen = new HashSet<>();
+        List<ValueSet> frontier = Collections.singletonList(valueSet);
+        while (!frontier.isEmpty()) {
+            Map<String, Future<ValueSet>> level = new LinkedHashMap<>();
+            for (ValueSet vs : frontier) {
+                for (String oid : getReferencedOIDs(vs)) {
+                    if (seen.add(oid)) {
+                        level.put(oid, fetchPool.submit(() -> getValueSetForOID(oid)));
+                    }
+                }
+            }
+            List<ValueSet> next = new ArrayList<>();
+            for (Map.Entry<String, Future<ValueSet>> e : level.entrySet()) {
+                try {
+                    ValueSet child = e.getValue().get();
+                    ret.put(e.getKey(), child);
+                    next.add(child);
+                } catch (ExecutionException ex) {
+                    // Left out so that resolution retries and surfaces the failure where the reference is used
+                } catch (InterruptedException ex) {
+                    level.values().forEach(f -> f.cancel(true));
+                    Thread.currentThread().interrupt();
+                    return ret;
+                }
+            }
+            frontier = next;
+        }
+        return ret;
     }
 
     /**
@@ -44,10 +238,7 @@ public class ValueSetResolver {
      * @return A set of unique display names
      */
     public Set<String> resolveValueSetDisplayNames(ValueSet valueSet) {
-        Set<String> ret = new HashSet<>();
-        Set<String> visitedOIDs = new HashSet<>();
-        resolveValueSetDisplayNamesRecurs(valueSet, ret, visitedOIDs);
-        return ret;
+        return new HashSet<>(expand(valueSet).getDisplayNames());
     }
 
     /**
@@ -57,127 +248,205 @@ public class ValueSetResolver {
      * @return A set of unique display names
      */
     public Set<CodifiedValueSetElement> resolveValueSetCodes(ValueSet valueSet) {
-        Set<CodifiedValueSetElement> ret = new HashSet<>();
-        Set<String> visitedOIDs = new HashSet<>();
-        resolveValueSetCodesRecurs(valueSet, ret, visitedOIDs);
+        return CodeSet.copyOf(expand(valueSet).getCodes());
+    }
+
+    /*
+     * Memoized expansion, path holds the value sets currently being expanded by this call chain to break cycles. A
+     * value set reached again through a cycle contributes nothing where it is reached, and is added to cuts. Results
+     * missing a value set further up the path are incomplete, so they are only memoized if the value set itself was
+     * the only one cut
+     */
+    private ValueSetExpansion expand(String oid, String version, Set<String> path, Set<String> cuts) {
+        String key = memoKey(oid, version);
+        ValueSetExpansion memoized = expansions.get(key);
+        Metrics.get().increment("vsac_memo_total", "memo", "expansions", "result", memoized != null ? "hit" : "miss");
+        if (memoized != null) {
+            return memoized;
+        }
+        if (path.contains(key)) {
+            // Cyclic reference, the value set's contents are already being accumulated further up the chain
+            cuts.add(key);
+            return new ValueSetExpansion(oid, version, new CodeSet(), Collections.emptySet());
+        }
+        ExpansionFlight flight = new ExpansionFlight();
+        ExpansionFlight existing = expansionFlights.putIfAbsent(key, flight);
+        if (existing != null) {
+            ValueSetExpansion awaited = await(existing);
+            if (awaited != null) {
+                return awaited;
+            }
+            // Expanded here after all, without letting others wait for it
+            flight = null;
+        } else if ((memoized = expansions.get(key)) != null) {
+            // Memoized by a flight that finished just before this one started
+            expansionFlights.remove(key, flight);
+            flight.result.complete(memoized);
+            return memoized;
+        }
+        path.add(key);
+        Set<String> childCuts = new HashSet<>();
+        ValueSetExpansion ret = null;
+        try {
+            ret = computeExpansion(oid, version, getValueSetForOID(oid, version), path, childCuts);
+            childCuts.remove(key);
+            if (childCuts.isEmpty()) {
+                expansions.put(key, ret);
+            } else {
+                cuts.addAll(childCuts);
+            }
+        } finally {
+            path.remove(key);
+            if (flight != null) {
+                expansionFlights.remove(key, flight);
+                // Waiters expand the value set themselves if it failed or is incomplete
+                flight.result.complete(ret != null && childCuts.isEmpty() ? ret : null);
+            }
+        }
         return ret;
     }
 
     /*
-     * Utility function to visit and construct display names recursively
+     * Waits for another thread's expansion, unless that thread is waiting for this one, directly or through others.
+     * Returns null if the caller must expand the value set itself
      */
-    private void resolveValueSetDisplayNamesRecurs(ValueSet curr, Set<String> ret, Set<String> visitedOIDs) {
-        if (curr.hasId()) {
-            if (visitedOIDs.contains(curr.getId())) {
-                return;
+    private ValueSetExpansion await(ExpansionFlight flight) {
+        Thread current = Thread.currentThread();
+        synchronized (waitingFor) {
+            for (ExpansionFlight f = flight; f != null; f = waitingFor.get(f.owner)) {
+                if (f.owner == current) {
+                    return null;
+                }
+            }
+            waitingFor.put(current, flight);
+        }
+        try {
+            return flight.result.join();
+        } finally {
+            synchronized (waitingFor) {
+                waitingFor.remove(current);
             }
-            visitedOIDs.add(curr.getId());
-        } else {
-            // Short circuit here to make sure cyclic dependencies with no IDs don't happen
-            return; // TODO warning message?
         }
+    }
+
+    /*
+     * Single pass over compose so that codes and display names are built together. Codes are accumulated in a CodeSet,
+     * so including and excluding referenced value sets are bitmap unions and differences
+     */
+    private ValueSetExpansion computeExpansion(String oid, String version, ValueSet curr, Set<String> path,
+                                               Set<String> cuts) {
+        CodeSet codes = new CodeSet();
+        Set<String> displayNames = new HashSet<>();
         ValueSet.ValueSetComposeComponent compose = curr.getCompose();
         compose.getInclude().forEach(include -> {
             if (include.hasConcept()) {
+                String codeSystem = include.hasSystem() ? include.getSystemElement().getValue() : "UNSPECIFIED ONTOLOGY";
                 include.getConcept().forEach(concept -> {
+                    if (concept.hasCode()) {
+                        codes.add(VSACCodeSystem.ofUrl(codeSystem), concept.getCode());
+                    }
                     if (concept.hasDisplay()) {
-                        ret.add(concept.getDisplay());
+                        displayNames.add(concept.getDisplay());
                     }
                 });
             }
             if (include.hasValueSet()) {
                 include.getValueSet().forEach(includedValueSet -> {
                     if (includedValueSet.hasValue()) {
-                        HashSet<String> child = new HashSet<>();
-                        String url = includedValueSet.getValue();
-                        String oid = url.split("/")[url.split("/").length - 1];
-                        resolveValueSetDisplayNamesRecurs(getValueSetForOID(oid), child, visitedOIDs);
-                        ret.addAll(child);
+                        ValueSetExpansion child = expand(oidOf(includedValueSet.getValue()), null, path, cuts);
+                        codes.addAll(child.getCodes());
+                        displayNames.addAll(child.getDisplayNames());
                     }
                 });
             }
         });
         compose.getExclude().forEach(exclude -> {
             if (exclude.hasConcept()) {
+                String codeSystem = exclude.hasSystem() ? exclude.getSystemElement().getValue() : "UNSPECIFIED ONTOLOGY";
                 exclude.getConcept().forEach(concept -> {
+                    if (concept.hasCode()) {
+                        codes.remove(VSACCodeSystem.ofUrl(codeSystem), concept.getCode());
+                    }
                     if (concept.hasDisplay()) {
-                        ret.remove(concept.getDisplay());
+                        displayNames.remove(concept.getDisplay());
                     }
                 });
             }
             if (exclude.hasValueSet()) {
                 exclude.getValueSet().forEach(excludedValueSet -> {
                     if (excludedValueSet.hasValue()) {
-                        HashSet<String> child = new HashSet<>();
-                        String url = excludedValueSet.getValue();
-                        String oid = url.split("/")[url.split("/").length - 1];
-                        resolveValueSetDisplayNamesRecurs(getValueSetForOID(oid), child, visitedOIDs);
-                        ret.removeAll(child);
+                        ValueSetExpansion child = expand(oidOf(excludedValueSet.getValue()), null, path, cuts);
+                        codes.removeAll(child.getCodes());
+                        displayNames.removeAll(child.getDisplayNames());
                     }
                 });
             }
         });
+        return new ValueSetExpansion(oid, version, codes, displayNames);
     }
 
+    private static String memoKey(String oid, String version) {
+        return version == null ? oid : oid + "|" + version;
+    }
 
     /*
-     * Utility function to visit and construct codes recursively
+     * Computes a value at most once per key. Callers arriving while it is being computed wait for that result, failed
+     * computations are forgotten so that they can be retried
      */
-    private void resolveValueSetCodesRecurs(ValueSet curr, Set<CodifiedValueSetElement> ret, Set<String> visitedOIDs) {
-        if (curr.hasId()) {
-            if (visitedOIDs.contains(curr.getId())) {
-                return;
+    private static <T> T singleFlight(String memoName, ConcurrentMap<String, CompletableFuture<T>> memo, String key, Supplier<T> loader) {
+        CompletableFuture<T> created = new CompletableFuture<>();
+        CompletableFuture<T> existing = memo.putIfAbsent(key, created);
+        Metrics.get().increment("vsac_memo_total", "memo", memoName, "result", existing != null ? "hit" : "miss");
+        if (existing != null) {
+            try {
+                return existing.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                } else if (e.getCause() instanceof Error) {
+                    throw (Error) e.getCause();
+                }
+                throw e;
             }
-            visitedOIDs.add(curr.getId());
-        } else {
-            // Short circuit here to make sure cyclic dependencies with no IDs don't happen
-            return; // TODO warning message?
         }
-        ValueSet.ValueSetComposeComponent compose = curr.getCompose();
-        compose.getInclude().forEach(include -> {
-            if (include.hasConcept()) {
+        try {
+            T ret = loader.get();
+            created.complete(ret);
+            return ret;
+        } catch (Throwable t) {
+            // Errors too, waiters would otherwise block forever
+            memo.remove(key, created);
+            created.completeExceptionally(t);
+            throw t;
+        }
+    }
 
-                String codeSystem = include.hasSystem() ? include.getSystemElement().getValue() : "UNSPECIFIED ONTOLOGY";
-                include.getConcept().forEach(concept -> {
-                    if (concept.hasCode()) {
-                        ret.add(new CodifiedValueSetElement(VSACCodeSystem.ofUrl(codeSystem), concept.getCode()));
-                    }
-                });
-            }
-            if (include.hasValueSet()) {
-                include.getValueSet().forEach(includedValueSet -> {
-                    if (includedValueSet.hasValue()) {
-                        HashSet<CodifiedValueSetElement> child = new HashSet<>();
-                        String url = includedValueSet.getValue();
-                        String oid = url.split("/")[url.split("/").length - 1];
-                        resolveValueSetCodesRecurs(getValueSetForOID(oid), child, visitedOIDs);
-                        ret.addAll(child);
-                    }
-                });
-            }
-        });
-        compose.getExclude().forEach(exclude -> {
-            String codeSystem = exclude.hasSystem() ? exclude.getSystemElement().getValue() : "UNSPECIFIED ONTOLOGY";
+    /*
+     * An expansion being computed by its owner thread. Completes with null if the expansion failed or is incomplete
+     */
+    private static final class ExpansionFlight {
+        private final Thread owner = Thread.currentThread();
+        private final CompletableFuture<ValueSetExpansion> result = new CompletableFuture<>();
+    }
 
-            if (exclude.hasConcept()) {
-                exclude.getConcept().forEach(concept -> {
-                    if (concept.hasCode()) {
-                        ret.remove(new CodifiedValueSetElement(VSACCodeSystem.ofUrl(codeSystem), concept.getCode()));
-                    }
-                });
+    private static List<String> getReferencedOIDs(ValueSet valueSet) {
+        List<String> ret = new ArrayList<>();
+        ValueSet.ValueSetComposeComponent compose = valueSet.getCompose();
+        for (List<ValueSet.ConceptSetComponent> components : Arrays.asList(compose.getInclude(), compose.getExclude())) {
+            for (ValueSet.ConceptSetComponent component : components) {
+                if (component.hasValueSet()) {
+                    component.getValueSet().forEach(ref -> {
+                        if (ref.hasValue()) {
+                            ret.add(oidOf(ref.getValue()));
+                        }
+                    });
+                }
             }
-            if (exclude.hasValueSet()) {
-                exclude.getValueSet().forEach(excludedValueSet -> {
-                    if (excludedValueSet.hasValue()) {
-                        HashSet<CodifiedValueSetElement> child = new HashSet<>();
-                        String url = excludedValueSet.getValue();
-                        String oid = url.split("/")[url.split("/").length - 1];
-                        resolveValueSetCodesRecurs(getValueSetForOID(oid), child, visitedOIDs);
-                        ret.remove(child);
-                    }
-                });
-            }
-        });
+        }
+        return ret;
     }
 
+    private static String oidOf(String url) {
+        return url.split("/")[url.split("/").length - 1];
+    }
 }
@@ -0,0 +1,206 @@
+package edu.mayo.hsr.dhs.cql2nlp.simulator;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Content and behaviour of a {@link TerminologySimulator}. Defaults are read from cql2nlp.sim.* system properties
+ * (see {@link #fromSystemProperties()}) and can be changed with the fluent setters before the simulator is started.
+ */
+public class SimulatorSettings {
+
+    public static final String PORT_PROPERTY = "cql2nlp.sim.port";
+    public static final String LATENCY_MILLIS_PROPERTY = "cql2nlp.sim.latencyMillis";
+    public static final String LATENCY_JITTER_MILLIS_PROPERTY = "cql2nlp.sim.latencyJitterMillis";
+    public static final String ERROR_RATE_PROPERTY = "cql2nlp.sim.errorRate";
+    public static final String RATE_LIMIT_PROPERTY = "cql2nlp.sim.rateLimitPerSecond";
+    public static final String CONCEPTS_PROPERTY = "cql2nlp.sim.concepts";
+    public static final String FAN_OUT_PROPERTY = "cql2nlp.sim.fanOut";
+    public static final String VALUE_SET_SIZE_PROPERTY = "cql2nlp.sim.valueSetSize";
+    public static final String PAGE_SIZE_PROPERTY = "cql2nlp.sim.pageSize";
+    public static final String RECORDINGS_PROPERTY = "cql2nlp.sim.recordings";
+    public static final String SEED_PROPERTY = "cql2nlp.sim.seed";
+    public static final String THREADS_PROPERTY = "cql2nlp.sim.threads";
+
+    private int port;
+    private long latencyMillis;
+    private long latencyJitterMillis;
+    private double errorRate;
+    private int rateLimitPerSecond;
+    private int concepts;
+    private int fanOut;
+    private int valueSetSize;
+    private int pageSize;
+    private Path recordings;
+    private long seed;
+    private int threads;
+
+    /**
+     * @return Settings initialized from cql2nlp.sim.* system properties where set
+     */
+    public static SimulatorSettings fromSystemProperties() {
+        SimulatorSettings ret = new SimulatorSettings();
+        ret.port = Integer.getInteger(PORT_PROPERTY, 8089);
+        ret.latencyMillis = Long.getLong(LATENCY_MILLIS_PROPERTY, 0);
+        ret.latencyJitterMillis = Long.getLong(LATENCY_JITTER_MILLIS_PROPERTY, 0);
+        ret.errorRate = Double.parseDouble(System.getProperty(ERROR_RATE_PROPERTY, "0"));
+        ret.rateLimitPerSecond = Integer.getInteger(RATE_LIMIT_PROPERTY, 0);
+        ret.concepts = Integer.getInteger(CONCEPTS_PROPERTY, 100000);
+        ret.fanOut = Integer.getInteger(FAN_OUT_PROPERTY, 3);
+        ret.valueSetSize = Integer.getInteger(VALUE_SET_SIZE_PROPERTY, 50);
+        ret.pageSize = Integer.getInteger(PAGE_SIZE_PROPERTY, 25);
+        String recordings = System.getProperty(RECORDINGS_PROPERTY);
+        ret.recordings = recordings == null || recordings.isEmpty() ? null : Paths.get(recordings);
+        ret.seed = Long.getLong(SEED_PROPERTY, 42);
+        ret.threads = Integer.getInteger(THREADS_PROPERTY, 64);
+        return ret;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * @param port The port to listen on, 0 for any free port
+     */
+    public SimulatorSettings setPort(int port) {
+        this.port = port;
+        return this;
+    }
+
+    public long getLatencyMillis() {
+        return latencyMillis;
+    }
+
+    /**
+     * @param latencyMillis The time each response is delayed by
+     */
+    public SimulatorSettings setLatencyMillis(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+        return this;
+    }
+
+    public long getLatencyJitterMillis() {
+        return latencyJitterMillis;
+    }
+
+    /**
+     * @param latencyJitterMillis Up to this much additional, uniformly distributed delay per response
+     */
+    public SimulatorSettings setLatencyJitterMillis(long latencyJitterMillis) {
+        this.latencyJitterMillis = latencyJitterMillis;
+        return this;
+    }
+
+    public double getErrorRate() {
+        return errorRate;
+    }
+
+    /**
+     * @param errorRate The fraction (0 to 1) of requests answered with a 500 error
+     */
+    public SimulatorSettings setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+        return this;
+    }
+
+    public int getRateLimitPerSecond() {
+        return rateLimitPerSecond;
+    }
+
+    /**
+     * @param rateLimitPerSecond Requests accepted per second before answering 429 with a Retry-After header, as UTS
+     *                           does, or 0 for no limit
+     */
+    public SimulatorSettings setRateLimitPerSecond(int rateLimitPerSecond) {
+        this.rateLimitPerSecond = rateLimitPerSecond;
+        return this;
+    }
+
+    public int getConcepts() {
+        return concepts;
+    }
+
+    /**
+     * @param concepts The number of concepts in the synthetic UMLS hierarchy
+     */
+    public SimulatorSettings setConcepts(int concepts) {
+        this.concepts = concepts;
+        return this;
+    }
+
+    public int getFanOut() {
+        return fanOut;
+    }
+
+    /**
+     * @param fanOut The number of RB related (narrower) concepts of each synthetic concept
+     */
+    public SimulatorSettings setFanOut(int fanOut) {
+        this.fanOut = fanOut;
+        return this;
+    }
+
+    public int getValueSetSize() {
+        return valueSetSize;
+    }
+
+    /**
+     * @param valueSetSize The number of codes in each synthetic value set
+     */
+    public SimulatorSettings setValueSetSize(int valueSetSize) {
+        this.valueSetSize = valueSetSize;
+        return this;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * @param pageSize The number of results per page of relations and atoms
+     */
+    public SimulatorSettings setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+        return this;
+    }
+
+    public Path getRecordings() {
+        return recordings;
+    }
+
+    /**
+     * @param recordings A directory of recorded responses served in preference to synthetic ones, or null. A request
+     *                   for /fhir/ValueSet/{oid} is answered from fhir/ValueSet/{oid}.json, and a UTS request such as
+     *                   /rest/content/current/CUI/{cui}/relations?pageNumber=2 from
+     *                   rest/content/current/CUI/{cui}/relations.2.json (.json alone for the first page)
+     */
+    public SimulatorSettings setRecordings(Path recordings) {
+        this.recordings = recordings;
+        return this;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * @param seed Seeds latency jitter and error injection, so runs with the same request sequence behave the same
+     */
+    public SimulatorSettings setSeed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * @param threads The number of requests served at once
+     */
+    public SimulatorSettings setThreads(int threads) {
+        this.threads = threads;
+        return this;
+    }
+}
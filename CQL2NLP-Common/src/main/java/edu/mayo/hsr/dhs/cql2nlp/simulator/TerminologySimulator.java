@@ -0,0 +1,464 @@
+package edu.mayo.hsr.dhs.cql2nlp.simulator;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import edu.mayo.hsr.dhs.cql2nlp.Endpoints;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Embedded stand-in for the UTS CAS login, UTS REST and VSAC FHIR services, for load testing and reproducing
+ * performance issues offline. <br/>
+ * <br/>
+ * Serves CAS ticket-granting and single-use service tickets, the current release listing, source code searches,
+ * paged CUI relations and atoms, CUI semantic types, and FHIR ValueSets. Responses come from a directory of
+ * recordings where one exists (see {@link SimulatorSettings#setRecordings(Path)}) and are synthesized otherwise: a
+ * complete RB hierarchy of {@link SimulatorSettings#getConcepts()} CUIs, source codes mapped onto it by hash, and
+ * value sets of {@link SimulatorSettings#getValueSetSize()} SNOMED CT codes. Response latency, injected 500 errors and
+ * UTS-style 429 rate limiting are configurable; jitter and errors are derived from the seed and the request's arrival
+ * order so that repeated runs behave alike. <br/>
+ * <br/>
+ * Clients in the same JVM are pointed at a started simulator with {@link #configureClients()}, clients in another JVM
+ * with the -D flags printed by {@link #main(String...)}. As responses are synthetic, use a separate
+ * {@link edu.mayo.hsr.dhs.cql2nlp.DiskCache#CACHE_DIR_PROPERTY cache directory} for simulated runs.
+ */
+public class TerminologySimulator implements Closeable {
+
+    public static final String RELEASE = "SIMULATED";
+
+    private static final String LOGIN_PATH = "/cas/v1/tickets";
+    private static final String VALUE_SET_PATH = "/fhir/ValueSet";
+    private static final String SNOMEDCT_URL = "http://snomed.info/sct";
+    private static final AtomicInteger THREAD_ID = new AtomicInteger();
+
+    private final SimulatorSettings settings;
+    private final ObjectMapper om = new ObjectMapper();
+    private final AtomicLong requestSequence = new AtomicLong();
+    private final AtomicLong ticketSequence = new AtomicLong();
+    private final Set<String> grantingTickets = ConcurrentHashMap.newKeySet();
+    private final Set<String> serviceTickets = ConcurrentHashMap.newKeySet();
+    private final Object rateLimitLock = new Object();
+    private double availablePermits;
+    private long lastRefillNanos = System.nanoTime();
+    private HttpServer server;
+    private ExecutorService executor;
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder rateLimited = new LongAdder();
+    private final LongAdder injectedErrors = new LongAdder();
+    private final LongAdder unauthorized = new LongAdder();
+    private final LongAdder recordedResponses = new LongAdder();
+
+    public TerminologySimulator(SimulatorSettings settings) {
+        this.settings = settings;
+        this.availablePermits = settings.getRateLimitPerSecond();
+    }
+
+    /**
+     * Starts a simulator configured from cql2nlp.sim.* system properties and prints how to point CQL2NLP at it. <br/>
+     * <br/>
+     * Usage: TerminologySimulator [port]
+     */
+    public static void main(String... args) throws IOException, InterruptedException {
+        SimulatorSettings settings = SimulatorSettings.fromSystemProperties();
+        if (args.length > 0) {
+            settings.setPort(Integer.parseInt(args[0]));
+        }
+        TerminologySimulator simulator = new TerminologySimulator(settings);
+        simulator.start();
+        System.out.println("Simulating UTS and VSAC at " + simulator.getBaseUrl() + ", point CQL2NLP at it with:");
+        simulator.getClientProperties().forEach((k, v) -> System.out.println("  -D" + k + "=" + v));
+        while (true) {
+            Thread.sleep(TimeUnit.SECONDS.toMillis(30));
+            System.out.println(simulator);
+        }
+    }
+
+    public synchronized void start() throws IOException {
+        if (server != null) {
+            throw new IllegalStateException("Simulator is already running");
+        }
+        executor = Executors.newFixedThreadPool(Math.max(1, settings.getThreads()), r -> {
+            Thread t = new Thread(r, "uts-simulator-" + THREAD_ID.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        server = HttpServer.create(new InetSocketAddress("localhost", settings.getPort()), 0);
+        server.createContext("/", this::handle);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (server != null) {
+            server.stop(0);
+            executor.shutdownNow();
+            server = null;
+        }
+    }
+
+    /**
+     * @return The root URL of the running simulator, e.g. http://localhost:8089
+     */
+    public String getBaseUrl() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    /**
+     * @return The system properties that point CQL2NLP's clients at this simulator
+     */
+    public Map<String, String> getClientProperties() {
+        Map<String, String> ret = new HashMap<>();
+        ret.put(Endpoints.UTS_URL_PROPERTY, getBaseUrl());
+        ret.put(Endpoints.UTS_LOGIN_URL_PROPERTY, getBaseUrl() + LOGIN_PATH);
+        ret.put(Endpoints.VSAC_URL_PROPERTY, getBaseUrl() + VALUE_SET_PATH);
+        return ret;
+    }
+
+    /**
+     * Points clients subsequently created in this JVM at the simulator
+     */
+    public void configureClients() {
+        getClientProperties().forEach(System::setProperty);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            long sequence = requestSequence.getAndIncrement();
+            requests.increment();
+            String path = exchange.getRequestURI().getPath();
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            drain(exchange.getRequestBody());
+
+            long retryAfter = acquirePermit();
+            if (retryAfter > 0) {
+                rateLimited.increment();
+                exchange.getResponseHeaders().set("Retry-After", String.valueOf(retryAfter));
+                send(exchange, 429, "text/plain", "Too Many Requests");
+                return;
+            }
+            long delay = settings.getLatencyMillis()
+                    + (long) (uniform(sequence, 1) * settings.getLatencyJitterMillis());
+            if (delay > 0) {
+                Thread.sleep(delay);
+            }
+            if (uniform(sequence, 2) < settings.getErrorRate()) {
+                injectedErrors.increment();
+                send(exchange, 500, "text/plain", "Simulated failure");
+                return;
+            }
+
+            if (path.startsWith(LOGIN_PATH)) {
+                handleLogin(exchange, path, query);
+            } else if (path.startsWith(VALUE_SET_PATH + "/")) {
+                if (exchange.getRequestHeaders().getFirst("Authorization") == null) {
+                    unauthorized.increment();
+                    send(exchange, 401, "text/plain", "Unauthorized");
+                    return;
+                }
+                String oid = path.substring(VALUE_SET_PATH.length() + 1);
+                if (!sendRecording(exchange, path, query)) {
+                    sendJson(exchange, 200, valueSet(oid, query.get("version")));
+                }
+            } else if (path.equals("/releases")) {
+                ArrayNode releases = om.createArrayNode();
+                releases.addObject().put("fileName", "umls-" + RELEASE + "-full.zip").put("releaseVersion", RELEASE)
+                        .put("current", true);
+                sendJson(exchange, 200, releases);
+            } else if (path.startsWith("/rest/")) {
+                String ticket = query.get("ticket");
+                if (ticket == null || !serviceTickets.remove(ticket)) {
+                    unauthorized.increment();
+                    send(exchange, 401, "application/json", "{\"error\":\"Invalid or missing service ticket\"}");
+                    return;
+                }
+                if (!sendRecording(exchange, path, query)) {
+                    handleRest(exchange, path, query);
+                }
+            } else {
+                send(exchange, 404, "text/plain", "Not Found");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Throwable t) {
+            t.printStackTrace();
+            send(exchange, 500, "text/plain", String.valueOf(t.getMessage()));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /*
+     * CAS: POST /cas/v1/tickets grants a TGT, POST /cas/v1/tickets/{tgt} issues a single-use service ticket
+     */
+    private void handleLogin(HttpExchange exchange, String path, Map<String, String> query) throws IOException {
+        String rest = path.substring(LOGIN_PATH.length()).replace("/", "");
+        if (rest.isEmpty()) {
+            String tgt = "TGT-" + ticketSequence.incrementAndGet() + "-simulated";
+            grantingTickets.add(tgt);
+            String action = getBaseUrl() + LOGIN_PATH + "/" + tgt;
+            send(exchange, 201, "text/html", "<!DOCTYPE HTML PUBLIC \"-//IETF//DTD HTML 2.0//EN\"><html><head><title>201 Created</title></head><body>"
+                    + "<h1>TGT Created</h1><form action=\"" + action + "\" method=\"POST\">Service:<input type=\"text\" name=\"service\" value=\"\">"
+                    + "<br><input type=\"submit\" value=\"Submit\"></form></body></html>");
+        } else if (grantingTickets.contains(rest)) {
+            String ticket = "ST-" + ticketSequence.incrementAndGet() + "-simulated";
+            serviceTickets.add(ticket);
+            send(exchange, 200, "text/plain", ticket);
+        } else {
+            unauthorized.increment();
+            send(exchange, 404, "text/plain", "TGT " + rest + " does not exist");
+        }
+    }
+
+    private void handleRest(HttpExchange exchange, String path, Map<String, String> query) throws IOException {
+        String[] parts = path.split("/");
+        // /rest/search/current
+        if (parts.length == 4 && parts[2].equals("search")) {
+            String code = query.getOrDefault("string", "");
+            ObjectNode ret = om.createObjectNode().put("pageSize", settings.getPageSize()).put("pageNumber", 1);
+            ObjectNode result = ret.putObject("result").put("classType", "searchResults");
+            String cui = cui(Math.floorMod((query.get("sabs") + "|" + code).hashCode(), settings.getConcepts()));
+            result.putArray("results").addObject().put("ui", cui)
+                    .put("rootSource", query.get("sabs"))
+                    .put("uri", getBaseUrl() + "/rest/content/current/CUI/" + cui)
+                    .put("name", name(cui));
+            sendJson(exchange, 200, ret);
+            return;
+        }
+        // /rest/content/current/CUI/{cui}[/relations|/atoms]
+        if (parts.length >= 6 && parts[2].equals("content") && parts[4].equals("CUI")) {
+            String cui = parts[5];
+            int index = cuiIndex(cui);
+            if (index < 0) {
+                send(exchange, 404, "application/json", "{\"error\":\"No concept " + cui + "\"}");
+                return;
+            }
+            if (parts.length == 6) {
+                ObjectNode ret = om.createObjectNode();
+                ObjectNode result = ret.putObject("result").put("classType", "Concept").put("ui", cui).put("name", name(cui));
+                result.putArray("semanticTypes").addObject().put("name", "Disease or Syndrome")
+                        .put("uri", getBaseUrl() + "/rest/semantic-network/" + RELEASE + "/TUI/T047");
+                sendJson(exchange, 200, ret);
+            } else if (parts[6].equals("relations")) {
+                sendRelations(exchange, index, page(query));
+            } else if (parts[6].equals("atoms")) {
+                sendAtoms(exchange, cui, page(query));
+            } else {
+                send(exchange, 404, "text/plain", "Not Found");
+            }
+            return;
+        }
+        send(exchange, 404, "text/plain", "Not Found");
+    }
+
+    /*
+     * Concept i is broader than i * fanOut + 1 ... i * fanOut + fanOut; RB relations point at the narrower concepts
+     * and an RN relation back at the parent
+     */
+    private void sendRelations(HttpExchange exchange, int index, int page) throws IOException {
+        int fanOut = settings.getFanOut();
+        int firstChild = (int) Math.min((long) index * fanOut + 1, settings.getConcepts());
+        int lastChild = (int) Math.min((long) index * fanOut + fanOut, settings.getConcepts() - 1);
+        int children = Math.max(0, lastChild - firstChild + 1);
+        int total = children + (index > 0 ? 1 : 0);
+        int pageSize = Math.max(1, settings.getPageSize());
+        int pageCount = (total + pageSize - 1) / pageSize;
+        if (total == 0 || page > pageCount) {
+            // As UTS does, concepts without (further) relations are a 404 rather than an empty result
+            send(exchange, 404, "application/json", "{\"error\":\"No relations found\"}");
+            return;
+        }
+        ObjectNode ret = om.createObjectNode().put("pageSize", pageSize).put("pageNumber", page).put("pageCount", pageCount);
+        ArrayNode result = ret.putArray("result");
+        for (int i = (page - 1) * pageSize; i < Math.min(total, page * pageSize); i++) {
+            boolean child = i < children;
+            String related = cui(child ? firstChild + i : (index - 1) / fanOut);
+            result.addObject().put("classType", "ConceptRelation")
+                    .put("relationLabel", child ? "RB" : "RN")
+                    .put("relatedId", getBaseUrl() + "/rest/content/" + RELEASE + "/CUI/" + related)
+                    .put("relatedIdName", name(related));
+        }
+        sendJson(exchange, 200, ret);
+    }
+
+    private void sendAtoms(HttpExchange exchange, String cui, int page) throws IOException {
+        String[] names = {name(cui), "concept " + cui.substring(1), name(cui) + " (disorder)"};
+        int pageSize = Math.max(1, settings.getPageSize());
+        int pageCount = (names.length + pageSize - 1) / pageSize;
+        if (page > pageCount) {
+            send(exchange, 404, "application/json", "{\"error\":\"No atoms found\"}");
+            return;
+        }
+        ObjectNode ret = om.createObjectNode().put("pageSize", pageSize).put("pageNumber", page).put("pageCount", pageCount);
+        ArrayNode result = ret.putArray("result");
+        for (int i = (page - 1) * pageSize; i < Math.min(names.length, page * pageSize); i++) {
+            result.addObject().put("classType", "Atom").put("ui", "A" + cui.substring(1) + i)
+                    .put("name", names[i]).put("language", "ENG");
+        }
+        sendJson(exchange, 200, ret);
+    }
+
+    private ObjectNode valueSet(String oid, String version) {
+        ObjectNode ret = om.createObjectNode().put("resourceType", "ValueSet").put("id", oid)
+                .put("url", getBaseUrl() + VALUE_SET_PATH + "/" + oid)
+                .put("version", version == null ? "simulated" : version)
+                .put("name", "Simulated value set " + oid)
+                .put("status", "active");
+        ArrayNode concepts = ret.putObject("compose").putArray("include").addObject()
+                .put("system", SNOMEDCT_URL).putArray("concept");
+        int seed = oid.hashCode();
+        for (int i = 0; i < settings.getValueSetSize(); i++) {
+            String code = String.valueOf(100000 + Math.floorMod(seed + i * 7919, 10000000));
+            concepts.addObject().put("code", code).put("display", "Simulated concept " + code);
+        }
+        return ret;
+    }
+
+    /*
+     * Serves a recorded response for a GET if one exists
+     */
+    private boolean sendRecording(HttpExchange exchange, String path, Map<String, String> query) throws IOException {
+        Path recordings = settings.getRecordings();
+        if (recordings == null) {
+            return false;
+        }
+        int page = page(query);
+        Path file = recordings.resolve(path.substring(1) + (page > 1 ? "." + page : "") + ".json").normalize();
+        if (!file.startsWith(recordings.normalize()) || !Files.isRegularFile(file)) {
+            return false;
+        }
+        recordedResponses.increment();
+        send(exchange, 200, "application/json", new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+        return true;
+    }
+
+    /*
+     * Token bucket refilled at the configured rate, returns 0 if a request may proceed or the seconds to wait
+     */
+    private long acquirePermit() {
+        int rate = settings.getRateLimitPerSecond();
+        if (rate <= 0) {
+            return 0;
+        }
+        synchronized (rateLimitLock) {
+            long now = System.nanoTime();
+            availablePermits = Math.min(rate, availablePermits + (now - lastRefillNanos) * rate / 1e9);
+            lastRefillNanos = now;
+            if (availablePermits >= 1) {
+                availablePermits--;
+                return 0;
+            }
+            return Math.max(1, (long) Math.ceil((1 - availablePermits) / rate));
+        }
+    }
+
+    /*
+     * Deterministic uniform value in [0, 1) for a request and purpose (SplitMix64 finalizer)
+     */
+    private double uniform(long sequence, int purpose) {
+        long z = settings.getSeed() + sequence * 0x9E3779B97F4A7C15L + purpose * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        z = z ^ (z >>> 31);
+        return (z >>> 11) * 0x1.0p-53;
+    }
+
+    private String cui(int index) {
+        return String.format("C%07d", index);
+    }
+
+    private int cuiIndex(String cui) {
+        try {
+            int index = Integer.parseInt(cui.substring(1));
+            return cui.charAt(0) == 'C' && index < settings.getConcepts() ? index : -1;
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+
+    private static String name(String cui) {
+        return "simulated concept " + cui.substring(1);
+    }
+
+    private static int page(Map<String, String> query) {
+        try {
+            return Math.max(1, Integer.parseInt(query.getOrDefault("pageNumber", "1")));
+        } catch (NumberFormatException e) {
+            return 1;
+        }
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) throws IOException {
+        Map<String, String> ret = new HashMap<>();
+        if (rawQuery == null) {
+            return ret;
+        }
+        for (String param : rawQuery.split("&")) {
+            int eq = param.indexOf('=');
+            String key = eq < 0 ? param : param.substring(0, eq);
+            String value = eq < 0 ? "" : param.substring(eq + 1);
+            ret.put(URLDecoder.decode(key, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+        }
+        return ret;
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        byte[] buf = new byte[4096];
+        while (in.read(buf) >= 0) {
+            // Request bodies (CAS forms) carry nothing the simulator needs
+        }
+    }
+
+    private void sendJson(HttpExchange exchange, int status, Object body) throws IOException {
+        send(exchange, status, "application/json", om.writeValueAsString(body));
+    }
+
+    private static void send(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType + ";charset=UTF-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    public long getRateLimited() {
+        return rateLimited.sum();
+    }
+
+    public long getInjectedErrors() {
+        return injectedErrors.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d requests: %d rate limited, %d injected errors, %d unauthorized, %d served from recordings",
+                getRequests(), getRateLimited(), getInjectedErrors(), unauthorized.sum(), recordedResponses.sum());
+    }
+}
@@ -0,0 +1,134 @@
+package edu.mayo.hsr.dhs.cql2nlp.structs;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Process-wide encoding of codes as non-negative ints, so that code sets can be stored as {@link IntBitmap}s. <br/>
+ * <br/>
+ * Well-formed CUIs encode as their numeric part (C0018802 is 18802) without any lookup. All other codes, e.g. SNOMED
+ * CT identifiers too long for an int, are interned: each distinct code string is assigned the next id the first time
+ * it is seen and keeps it for the lifetime of the process. Ids are only meaningful within one code system's set. <br/>
+ * <br/>
+ * Interned codes are never freed: ids are held by code sets anywhere in the process (memos, caches, journals), so an id
+ * can never be known to be unused or be reassigned. The dictionary is bounded by the distinct codes of the value sets
+ * and mappings a process has handled, which at most are those of the source vocabularies, at roughly 60 bytes per code.
+ * Up to {@value #MAX_CODES} codes can be interned.
+ */
+public final class CodeDictionary {
+
+    /**
+     * CUIs are C followed by seven digits, so their numeric parts are below this
+     */
+    static final int CUI_LIMIT = 10_000_000;
+    /**
+     * The most codes that can be interned, so that UMLS codes interned above {@link #CUI_LIMIT} still fit an int
+     */
+    static final int MAX_CODES = Integer.MAX_VALUE - CUI_LIMIT;
+
+    private static final ConcurrentMap<String, Integer> IDS = new ConcurrentHashMap<>();
+    private static final Object LOCK = new Object();
+    private static volatile String[] codes = new String[1024];
+    private static int count;
+
+    private CodeDictionary() {
+    }
+
+    /**
+     * @return Whether a code is a well-formed CUI, e.g. C0018802
+     */
+    public static boolean isCui(String code) {
+        if (code.length() != 8 || code.charAt(0) != 'C') {
+            return false;
+        }
+        for (int i = 1; i < 8; i++) {
+            char c = code.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param cui A well-formed CUI
+     * @return Its numeric part
+     */
+    public static int cuiToInt(String cui) {
+        int ret = 0;
+        for (int i = 1; i < cui.length(); i++) {
+            ret = ret * 10 + (cui.charAt(i) - '0');
+        }
+        return ret;
+    }
+
+    /**
+     * @return The CUI with a numeric part, zero padded to seven digits
+     */
+    public static String intToCui(int cui) {
+        char[] ret = {'C', '0', '0', '0', '0', '0', '0', '0'};
+        for (int i = ret.length - 1; i > 0 && cui > 0; i--) {
+            ret[i] = (char) ('0' + cui % 10);
+            cui /= 10;
+        }
+        return new String(ret);
+    }
+
+    /**
+     * Encodes a code of a code system. UMLS codes that are not well-formed CUIs are interned above the CUI range
+     */
+    public static int encode(VSACCodeSystem codeSystem, String code) {
+        if (codeSystem == VSACCodeSystem.UMLS) {
+            return isCui(code) ? cuiToInt(code) : CUI_LIMIT + intern(code);
+        }
+        return intern(code);
+    }
+
+    /**
+     * Reverses {@link #encode(VSACCodeSystem, String)}
+     */
+    public static String decode(VSACCodeSystem codeSystem, int id) {
+        if (codeSystem == VSACCodeSystem.UMLS) {
+            return id < CUI_LIMIT ? intToCui(id) : codes[id - CUI_LIMIT];
+        }
+        return codes[id];
+    }
+
+    /**
+     * @return The interned id of a code, without assigning one
+     */
+    static int lookup(VSACCodeSystem codeSystem, String code) {
+        if (codeSystem == VSACCodeSystem.UMLS && isCui(code)) {
+            return cuiToInt(code);
+        }
+        Integer id = IDS.get(code);
+        if (id == null) {
+            return -1;
+        }
+        return codeSystem == VSACCodeSystem.UMLS ? CUI_LIMIT + id : id;
+    }
+
+    private static int intern(String code) {
+        Integer id = IDS.get(code);
+        if (id != null) {
+            return id;
+        }
+        synchronized (LOCK) {
+            id = IDS.get(code);
+            if (id != null) {
+                return id;
+            }
+            if (count == MAX_CODES) {
+                throw new IllegalStateException("More than " + MAX_CODES + " distinct codes");
+            }
+            if (count == codes.length) {
+                codes = Arrays.copyOf(codes, (int) Math.min((long) count * 2, MAX_CODES));
+            }
+            // Written before the id is published through IDS, so whoever obtains the id can decode it
+            codes[count] = code;
+            IDS.put(code, count);
+            return count++;
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package edu.mayo.hsr.dhs.cql2nlp.structs;
+
+import java.util.*;
+
+/**
+ * Compact set of codes, with one {@link IntBitmap} of {@link CodeDictionary} ids per code system. <br/>
+ * <br/>
+ * Elements are only materialized as {@link CodifiedValueSetElement}s while iterating, so a set of a million SNOMED
+ * codes costs a few megabytes instead of a million objects and hash table entries. {@link #addAll(Collection)} and
+ * {@link #removeAll(Collection)} with another CodeSet are bitmap unions and differences. Instances can be frozen once
+ * built, after which they are read-only and safe to share between threads.
+ */
+public final class CodeSet extends AbstractSet<CodifiedValueSetElement> {
+
+    private static final VSACCodeSystem[] SYSTEMS = VSACCodeSystem.values();
+    // Codes of unrecognized code systems (a null VSACCodeSystem) are kept in the last slot
+    private static final int UNKNOWN_SYSTEM = SYSTEMS.length;
+
+    private final IntBitmap[] bitmaps = new IntBitmap[SYSTEMS.length + 1];
+    private boolean frozen;
+
+    public CodeSet() {
+    }
+
+    public static CodeSet copyOf(Collection<CodifiedValueSetElement> codes) {
+        CodeSet ret = new CodeSet();
+        ret.addAll(codes);
+        return ret;
+    }
+
+    /**
+     * Makes this set read-only and releases unused capacity
+     *
+     * @return This set
+     */
+    public CodeSet freeze() {
+        for (IntBitmap bitmap : bitmaps) {
+            if (bitmap != null) {
+                bitmap.trim();
+            }
+        }
+        frozen = true;
+        return this;
+    }
+
+    public boolean add(VSACCodeSystem codeSystem, String code) {
+        checkMutable();
+        return bitmap(codeSystem, true).add(CodeDictionary.encode(codeSystem, code));
+    }
+
+    @Override
+    public boolean add(CodifiedValueSetElement element) {
+        return add(element.getCodeSystem(), element.getCode());
+    }
+
+    public boolean contains(VSACCodeSystem codeSystem, String code) {
+        IntBitmap bitmap = bitmap(codeSystem, false);
+        if (bitmap == null) {
+            return false;
+        }
+        int id = CodeDictionary.lookup(codeSystem, code);
+        return id >= 0 && bitmap.contains(id);
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        if (!(o instanceof CodifiedValueSetElement)) {
+            return false;
+        }
+        CodifiedValueSetElement element = (CodifiedValueSetElement) o;
+        return element.getCode() != null && contains(element.getCodeSystem(), element.getCode());
+    }
+
+    public boolean remove(VSACCodeSystem codeSystem, String code) {
+        checkMutable();
+        IntBitmap bitmap = bitmap(codeSystem, false);
+        if (bitmap == null) {
+            return false;
+        }
+        int id = CodeDictionary.lookup(codeSystem, code);
+        return id >= 0 && bitmap.remove(id);
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!(o instanceof CodifiedValueSetElement)) {
+            return false;
+        }
+        CodifiedValueSetElement element = (CodifiedValueSetElement) o;
+        return element.getCode() != null && remove(element.getCodeSystem(), element.getCode());
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends CodifiedValueSetElement> c) {
+        checkMutable();
+        if (!(c instanceof CodeSet)) {
+            return super.addAll(c);
+        }
+        int before = size();
+        IntBitmap[] other = ((CodeSet) c).bitmaps;
+        for (int i = 0; i < bitmaps.length; i++) {
+            if (other[i] == null || other[i].isEmpty()) {
+                continue;
+            }
+            if (bitmaps[i] == null) {
+                bitmaps[i] = other[i].copy();
+            } else {
+                bitmaps[i].or(other[i]);
+            }
+        }
+        return size() != before;
+    }
+
+    @Override
+    public boolean removeAll(Collection<?> c) {
+        checkMutable();
+        if (!(c instanceof CodeSet)) {
+            boolean changed = false;
+            for (Object o : c) {
+                changed |= remove(o);
+            }
+            return changed;
+        }
+        int before = size();
+        IntBitmap[] other = ((CodeSet) c).bitmaps;
+        for (int i = 0; i < bitmaps.length; i++) {
+            if (bitmaps[i] != null && other[i] != null) {
+                bitmaps[i].andNot(other[i]);
+            }
+        }
+        return size() != before;
+    }
+
+    @Override
+    public void clear() {
+        checkMutable();
+        Arrays.fill(bitmaps, null);
+    }
+
+    @Override
+    public int size() {
+        int ret = 0;
+        for (IntBitmap bitmap : bitmaps) {
+            if (bitmap != null) {
+                ret += bitmap.cardinality();
+            }
+        }
+        return ret;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        for (IntBitmap bitmap : bitmaps) {
+            if (bitmap != null && !bitmap.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The ids of one code system's codes, see {@link CodeDictionary#decode(VSACCodeSystem, int)}. Must not be
+     * modified
+     */
+    public IntBitmap getIds(VSACCodeSystem codeSystem) {
+        IntBitmap ret = bitmap(codeSystem, false);
+        return ret == null ? new IntBitmap() : ret;
+    }
+
+    /**
+     * Iterates by code system, then by id. Removal through the iterator is not supported
+     */
+    @Override
+    public Iterator<CodifiedValueSetElement> iterator() {
+        return new Iterator<CodifiedValueSetElement>() {
+            private int system = -1;
+            private PrimitiveIterator.OfInt ids;
+
+            @Override
+            public boolean hasNext() {
+                while (ids == null || !ids.hasNext()) {
+                    if (++system >= bitmaps.length) {
+                        return false;
+                    }
+                    ids = bitmaps[system] == null ? null : bitmaps[system].iterator();
+                }
+                return true;
+            }
+
+            @Override
+            public CodifiedValueSetElement next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                VSACCodeSystem codeSystem = system == UNKNOWN_SYSTEM ? null : SYSTEMS[system];
+                return new CodifiedValueSetElement(codeSystem, CodeDictionary.decode(codeSystem, ids.nextInt()));
+            }
+        };
+    }
+
+    private IntBitmap bitmap(VSACCodeSystem codeSystem, boolean create) {
+        int slot = codeSystem == null ? UNKNOWN_SYSTEM : codeSystem.ordinal();
+        if (bitmaps[slot] == null && create) {
+            bitmaps[slot] = new IntBitmap();
+        }
+        return bitmaps[slot];
+    }
+
+    private void checkMutable() {
+        if (frozen) {
+            throw new UnsupportedOperationException("Code set is frozen");
+        }
+    }
+}
@@ -39,6 +39,7 @@ public class CodifiedValueSetElement {
 
     @Override
     public int hashCode() {
-        return Objects.hash(codeSystem, code);
+        // Same value as Objects.hash(codeSystem, code), without allocating a varargs array on every lookup
+        return 31 * (31 + Objects.hashCode(codeSystem)) + Objects.hashCode(code);
     }
 }
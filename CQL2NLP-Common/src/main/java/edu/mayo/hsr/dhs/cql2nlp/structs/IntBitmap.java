@@ -0,0 +1,480 @@
+package edu.mayo.hsr.dhs.cql2nlp.structs;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.function.IntConsumer;
+
+/**
+ * Compressed set of non-negative ints, laid out like a Roaring bitmap. <br/>
+ * <br/>
+ * Values are grouped by their upper 16 bits into containers, kept sorted by that key. A container holding at most
+ * {@value #ARRAY_MAX} values is a sorted char array of the lower 16 bits, a denser one is a fixed 8KB bitmap. Sparse
+ * and clustered sets (CUIs of one subtree, interned codes of one value set) therefore cost about two bytes per value,
+ * and unions and differences work a container at a time rather than a value at a time. Not thread safe.
+ */
+public final class IntBitmap {
+
+    private static final int ARRAY_MAX = 4096;
+    private static final int BITMAP_WORDS = 1024;
+
+    private char[] keys;
+    // Each either a char[] of sorted low bits or a long[BITMAP_WORDS]
+    private Object[] containers;
+    private int[] counts;
+    private int size;
+    private int cardinality;
+
+    public IntBitmap() {
+        this.keys = new char[4];
+        this.containers = new Object[4];
+        this.counts = new int[4];
+    }
+
+    private IntBitmap(IntBitmap other) {
+        this.keys = Arrays.copyOf(other.keys, Math.max(other.size, 1));
+        this.containers = new Object[keys.length];
+        this.counts = Arrays.copyOf(other.counts, keys.length);
+        for (int i = 0; i < other.size; i++) {
+            Object c = other.containers[i];
+            containers[i] = c instanceof long[] ? ((long[]) c).clone() : Arrays.copyOf((char[]) c, other.counts[i]);
+        }
+        this.size = other.size;
+        this.cardinality = other.cardinality;
+    }
+
+    public static IntBitmap of(int... values) {
+        IntBitmap ret = new IntBitmap();
+        for (int v : values) {
+            ret.add(v);
+        }
+        return ret;
+    }
+
+    public IntBitmap copy() {
+        return new IntBitmap(this);
+    }
+
+    public int cardinality() {
+        return cardinality;
+    }
+
+    public boolean isEmpty() {
+        return cardinality == 0;
+    }
+
+    public boolean contains(int value) {
+        int i = indexOf((char) (value >>> 16));
+        if (i < 0) {
+            return false;
+        }
+        Object c = containers[i];
+        char low = (char) value;
+        return c instanceof long[]
+                ? (((long[]) c)[low >>> 6] & (1L << low)) != 0
+                : Arrays.binarySearch((char[]) c, 0, counts[i], low) >= 0;
+    }
+
+    /**
+     * @return Whether the value was not already present
+     */
+    public boolean add(int value) {
+        char key = (char) (value >>> 16);
+        char low = (char) value;
+        int i = indexOf(key);
+        if (i < 0) {
+            i = -i - 1;
+            insertContainer(i, key, new char[]{low}, 1);
+            cardinality++;
+            return true;
+        }
+        Object c = containers[i];
+        if (c instanceof long[]) {
+            long[] words = (long[]) c;
+            long bit = 1L << low;
+            if ((words[low >>> 6] & bit) != 0) {
+                return false;
+            }
+            words[low >>> 6] |= bit;
+        } else {
+            char[] values = (char[]) c;
+            int pos = Arrays.binarySearch(values, 0, counts[i], low);
+            if (pos >= 0) {
+                return false;
+            }
+            pos = -pos - 1;
+            if (counts[i] == ARRAY_MAX) {
+                long[] words = toWords(values, counts[i]);
+                words[low >>> 6] |= 1L << low;
+                containers[i] = words;
+            } else {
+                if (counts[i] == values.length) {
+                    values = Arrays.copyOf(values, Math.min(ARRAY_MAX, values.length * 2));
+                    containers[i] = values;
+                }
+                System.arraycopy(values, pos, values, pos + 1, counts[i] - pos);
+                values[pos] = low;
+            }
+        }
+        counts[i]++;
+        cardinality++;
+        return true;
+    }
+
+    /**
+     * @return Whether the value was present
+     */
+    public boolean remove(int value) {
+        int i = indexOf((char) (value >>> 16));
+        if (i < 0) {
+            return false;
+        }
+        Object c = containers[i];
+        char low = (char) value;
+        if (c instanceof long[]) {
+            long[] words = (long[]) c;
+            long bit = 1L << low;
+            if ((words[low >>> 6] & bit) == 0) {
+                return false;
+            }
+            words[low >>> 6] &= ~bit;
+        } else {
+            char[] values = (char[]) c;
+            int pos = Arrays.binarySearch(values, 0, counts[i], low);
+            if (pos < 0) {
+                return false;
+            }
+            System.arraycopy(values, pos + 1, values, pos, counts[i] - pos - 1);
+        }
+        counts[i]--;
+        cardinality--;
+        normalize(i);
+        return true;
+    }
+
+    /**
+     * Adds every value of another bitmap to this one
+     */
+    public void or(IntBitmap other) {
+        int i = 0;
+        int j = 0;
+        while (j < other.size) {
+            if (i == size || keys[i] > other.keys[j]) {
+                Object c = other.containers[j];
+                insertContainer(i, other.keys[j],
+                        c instanceof long[] ? ((long[]) c).clone() : Arrays.copyOf((char[]) c, other.counts[j]),
+                        other.counts[j]);
+                cardinality += other.counts[j];
+                i++;
+                j++;
+            } else if (keys[i] < other.keys[j]) {
+                i++;
+            } else {
+                cardinality -= counts[i];
+                orContainer(i, other.containers[j], other.counts[j]);
+                cardinality += counts[i];
+                i++;
+                j++;
+            }
+        }
+    }
+
+    /**
+     * Removes every value of another bitmap from this one
+     */
+    public void andNot(IntBitmap other) {
+        int i = 0;
+        int j = 0;
+        while (i < size && j < other.size) {
+            if (keys[i] < other.keys[j]) {
+                i++;
+            } else if (keys[i] > other.keys[j]) {
+                j++;
+            } else {
+                cardinality -= counts[i];
+                andNotContainer(i, other.containers[j], other.counts[j]);
+                cardinality += counts[i];
+                // Normalizing may have removed container i, in which case i already refers to the next one
+                if (!normalize(i)) {
+                    i++;
+                }
+                j++;
+            }
+        }
+    }
+
+    public void forEach(IntConsumer action) {
+        for (int i = 0; i < size; i++) {
+            int high = keys[i] << 16;
+            Object c = containers[i];
+            if (c instanceof long[]) {
+                long[] words = (long[]) c;
+                for (int w = 0; w < BITMAP_WORDS; w++) {
+                    long word = words[w];
+                    while (word != 0) {
+                        action.accept(high | (w << 6) + Long.numberOfTrailingZeros(word));
+                        word &= word - 1;
+                    }
+                }
+            } else {
+                char[] values = (char[]) c;
+                for (int k = 0; k < counts[i]; k++) {
+                    action.accept(high | values[k]);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The values in ascending order
+     */
+    public PrimitiveIterator.OfInt iterator() {
+        return new PrimitiveIterator.OfInt() {
+            private int container;
+            private int pos;
+            private int word;
+            private long bits;
+            private boolean loaded;
+
+            @Override
+            public boolean hasNext() {
+                while (container < size) {
+                    Object c = containers[container];
+                    if (c instanceof long[]) {
+                        long[] words = (long[]) c;
+                        if (!loaded) {
+                            bits = words[0];
+                            word = 0;
+                            loaded = true;
+                        }
+                        while (bits == 0 && word < BITMAP_WORDS - 1) {
+                            bits = words[++word];
+                        }
+                        if (bits != 0) {
+                            return true;
+                        }
+                    } else if (pos < counts[container]) {
+                        return true;
+                    }
+                    container++;
+                    pos = 0;
+                    loaded = false;
+                }
+                return false;
+            }
+
+            @Override
+            public int nextInt() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                int high = keys[container] << 16;
+                if (containers[container] instanceof long[]) {
+                    int ret = high | (word << 6) + Long.numberOfTrailingZeros(bits);
+                    bits &= bits - 1;
+                    return ret;
+                }
+                return high | ((char[]) containers[container])[pos++];
+            }
+        };
+    }
+
+    public int[] toArray() {
+        int[] ret = new int[cardinality];
+        int[] n = {0};
+        forEach(v -> ret[n[0]++] = v);
+        return ret;
+    }
+
+    /**
+     * Releases unused capacity, e.g. once a bitmap is complete and will be kept
+     */
+    public void trim() {
+        for (int i = 0; i < size; i++) {
+            if (containers[i] instanceof char[] && ((char[]) containers[i]).length > counts[i]) {
+                containers[i] = Arrays.copyOf((char[]) containers[i], counts[i]);
+            }
+        }
+        keys = Arrays.copyOf(keys, Math.max(size, 1));
+        containers = Arrays.copyOf(containers, keys.length);
+        counts = Arrays.copyOf(counts, keys.length);
+    }
+
+    private int indexOf(char key) {
+        return Arrays.binarySearch(keys, 0, size, key);
+    }
+
+    private void insertContainer(int i, char key, Object container, int count) {
+        if (size == keys.length) {
+            int capacity = Math.max(4, size * 2);
+            keys = Arrays.copyOf(keys, capacity);
+            containers = Arrays.copyOf(containers, capacity);
+            counts = Arrays.copyOf(counts, capacity);
+        }
+        System.arraycopy(keys, i, keys, i + 1, size - i);
+        System.arraycopy(containers, i, containers, i + 1, size - i);
+        System.arraycopy(counts, i, counts, i + 1, size - i);
+        keys[i] = key;
+        containers[i] = container;
+        counts[i] = count;
+        size++;
+    }
+
+    /*
+     * Converts a container that has become sparse back to an array, and drops it if empty
+     *
+     * @return Whether the container was removed
+     */
+    private boolean normalize(int i) {
+        if (counts[i] == 0) {
+            System.arraycopy(keys, i + 1, keys, i, size - i - 1);
+            System.arraycopy(containers, i + 1, containers, i, size - i - 1);
+            System.arraycopy(counts, i + 1, counts, i, size - i - 1);
+            size--;
+            containers[size] = null;
+            return true;
+        }
+        if (counts[i] <= ARRAY_MAX && containers[i] instanceof long[]) {
+            containers[i] = toValues((long[]) containers[i], counts[i]);
+        }
+        return false;
+    }
+
+    private void orContainer(int i, Object other, int otherCount) {
+        Object c = containers[i];
+        if (c instanceof long[] || other instanceof long[] || counts[i] + otherCount > ARRAY_MAX) {
+            long[] words = c instanceof long[] ? (long[]) c : toWords((char[]) c, counts[i]);
+            if (other instanceof long[]) {
+                long[] otherWords = (long[]) other;
+                for (int w = 0; w < BITMAP_WORDS; w++) {
+                    words[w] |= otherWords[w];
+                }
+            } else {
+                char[] otherValues = (char[]) other;
+                for (int k = 0; k < otherCount; k++) {
+                    words[otherValues[k] >>> 6] |= 1L << otherValues[k];
+                }
+            }
+            int count = bitCount(words);
+            if (count <= ARRAY_MAX) {
+                containers[i] = toValues(words, count);
+            } else {
+                containers[i] = words;
+            }
+            counts[i] = count;
+            return;
+        }
+        // Both sparse, merge the sorted arrays
+        char[] a = (char[]) c;
+        char[] b = (char[]) other;
+        int na = counts[i];
+        char[] merged = new char[na + otherCount];
+        int x = 0;
+        int y = 0;
+        int n = 0;
+        while (x < na && y < otherCount) {
+            if (a[x] < b[y]) {
+                merged[n++] = a[x++];
+            } else if (a[x] > b[y]) {
+                merged[n++] = b[y++];
+            } else {
+                merged[n++] = a[x++];
+                y++;
+            }
+        }
+        while (x < na) {
+            merged[n++] = a[x++];
+        }
+        while (y < otherCount) {
+            merged[n++] = b[y++];
+        }
+        containers[i] = merged;
+        counts[i] = n;
+    }
+
+    private void andNotContainer(int i, Object other, int otherCount) {
+        Object c = containers[i];
+        if (c instanceof long[]) {
+            long[] words = (long[]) c;
+            if (other instanceof long[]) {
+                long[] otherWords = (long[]) other;
+                for (int w = 0; w < BITMAP_WORDS; w++) {
+                    words[w] &= ~otherWords[w];
+                }
+            } else {
+                char[] otherValues = (char[]) other;
+                for (int k = 0; k < otherCount; k++) {
+                    words[otherValues[k] >>> 6] &= ~(1L << otherValues[k]);
+                }
+            }
+            counts[i] = bitCount(words);
+            return;
+        }
+        char[] values = (char[]) c;
+        int n = 0;
+        for (int k = 0; k < counts[i]; k++) {
+            char v = values[k];
+            boolean excluded = other instanceof long[]
+                    ? (((long[]) other)[v >>> 6] & (1L << v)) != 0
+                    : Arrays.binarySearch((char[]) other, 0, otherCount, v) >= 0;
+            if (!excluded) {
+                values[n++] = v;
+            }
+        }
+        counts[i] = n;
+    }
+
+    private static long[] toWords(char[] values, int count) {
+        long[] words = new long[BITMAP_WORDS];
+        for (int k = 0; k < count; k++) {
+            words[values[k] >>> 6] |= 1L << values[k];
+        }
+        return words;
+    }
+
+    private static char[] toValues(long[] words, int count) {
+        char[] values = new char[count];
+        int n = 0;
+        for (int w = 0; w < BITMAP_WORDS; w++) {
+            long word = words[w];
+            while (word != 0) {
+                values[n++] = (char) ((w << 6) + Long.numberOfTrailingZeros(word));
+                word &= word - 1;
+            }
+        }
+        return values;
+    }
+
+    private static int bitCount(long[] words) {
+        int ret = 0;
+        for (long word : words) {
+            ret += Long.bitCount(word);
+        }
+        return ret;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof IntBitmap)) return false;
+        IntBitmap that = (IntBitmap) o;
+        if (cardinality != that.cardinality) {
+            return false;
+        }
+        PrimitiveIterator.OfInt a = iterator();
+        PrimitiveIterator.OfInt b = that.iterator();
+        while (a.hasNext()) {
+            if (a.nextInt() != b.nextInt()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int[] ret = {cardinality};
+        forEach(v -> ret[0] = 31 * ret[0] + v);
+        return ret[0];
+    }
+}
@@ -0,0 +1,250 @@
+package edu.mayo.hsr.dhs.cql2nlp.structs;
+
+import java.util.*;
+
+/**
+ * Generated NLP rulesets, i.e. per value set the "CUI|surface form" terms an NLP engine should match. <br/>
+ * <br/>
+ * Surface forms are interned once for the whole store, so a display name shared by several CUIs or value sets is held
+ * once. Each value set is stored as CUI to surface form postings in primitive arrays (CUI ids ascending, each CUI's
+ * surface forms in string order), roughly 4 bytes per term plus 8 per CUI, rather than as one concatenated string per
+ * term. Terms are materialized only when read through {@link #get(String)}, which iterates in sorted order without
+ * any sorting or copying. Well-formed CUIs order exactly as their strings would; other codes order after them. <br/>
+ * <br/>
+ * Surface forms are reference counted by the value sets using them. Forms no longer used by any value set are kept
+ * (and reused if they are added again) until they make up half of all forms, at which point the forms are compacted
+ * and the postings of every value set are renumbered. <br/>
+ * <br/>
+ * Thread safe; value sets may be added concurrently with reads.
+ */
+public final class RulesetStore {
+
+    private final Map<String, Postings> valueSets = new TreeMap<>();
+    // Open addressing table of surface form id + 1, 0 for empty
+    private int[] table = new int[1 << 10];
+    private String[] forms = new String[1 << 9];
+    // Number of value set postings referencing each form
+    private int[] refs = new int[1 << 9];
+    private int formCount;
+    // Forms with no references left, still interned until the next compaction
+    private int deadForms;
+
+    /**
+     * Adds or replaces a value set's ruleset
+     *
+     * @param valueSetId          The value set identifier
+     * @param surfaceFormsByCui   The surface forms (e.g. English atom names) to match for each of the value set's CUIs
+     */
+    public void put(String valueSetId, Map<String, ? extends Collection<String>> surfaceFormsByCui) {
+        // Order CUIs by id without boxing: id in the upper half, position in the entry array in the lower
+        List<Map.Entry<String, ? extends Collection<String>>> entries = new ArrayList<>(surfaceFormsByCui.entrySet());
+        long[] order = new long[entries.size()];
+        int termCount = 0;
+        for (int i = 0; i < order.length; i++) {
+            int cui = CodeDictionary.encode(VSACCodeSystem.UMLS, entries.get(i).getKey());
+            order[i] = (long) cui << 32 | i;
+            termCount += entries.get(i).getValue().size();
+        }
+        Arrays.sort(order);
+
+        int[] cuis = new int[order.length];
+        int[] starts = new int[order.length + 1];
+        int[] formIds = new int[termCount];
+        int cuiCount = 0;
+        int n = 0;
+        synchronized (this) {
+            for (long key : order) {
+                Collection<String> names = entries.get((int) key).getValue();
+                if (names.isEmpty()) {
+                    continue;
+                }
+                String[] sorted = names.toArray(new String[0]);
+                Arrays.sort(sorted);
+                cuis[cuiCount] = (int) (key >>> 32);
+                starts[cuiCount] = n;
+                for (int i = 0; i < sorted.length; i++) {
+                    if (i == 0 || !sorted[i].equals(sorted[i - 1])) {
+                        formIds[n++] = intern(sorted[i]);
+                    }
+                }
+                cuiCount++;
+            }
+            starts[cuiCount] = n;
+            // Released after the new postings were interned, so forms shared by both are not dropped in between
+            release(valueSets.put(valueSetId, new Postings(Arrays.copyOf(cuis, cuiCount),
+                    Arrays.copyOf(starts, cuiCount + 1), n == formIds.length ? formIds : Arrays.copyOf(formIds, n))));
+        }
+    }
+
+    /**
+     * @return A read-only, sorted view of a value set's "CUI|surface form" terms, or null if the value set is unknown
+     */
+    public synchronized List<String> get(String valueSetId) {
+        Postings postings = valueSets.get(valueSetId);
+        return postings == null ? null : new TermList(postings, forms);
+    }
+
+    public synchronized boolean contains(String valueSetId) {
+        return valueSets.containsKey(valueSetId);
+    }
+
+    public synchronized void remove(String valueSetId) {
+        release(valueSets.remove(valueSetId));
+    }
+
+    /**
+     * @return A snapshot of the stored value set identifiers, in sorted order
+     */
+    public synchronized List<String> getValueSetIds() {
+        return new ArrayList<>(valueSets.keySet());
+    }
+
+    /**
+     * @return The number of distinct surface forms across all value sets
+     */
+    public synchronized int getSurfaceFormCount() {
+        return formCount - deadForms;
+    }
+
+    /**
+     * @return The number of terms across all value sets
+     */
+    public synchronized long getTermCount() {
+        long ret = 0;
+        for (Postings postings : valueSets.values()) {
+            ret += postings.forms.length;
+        }
+        return ret;
+    }
+
+    private int intern(String form) {
+        int mask = table.length - 1;
+        int slot = form.hashCode() & mask;
+        while (table[slot] != 0) {
+            int id = table[slot] - 1;
+            if (forms[id].equals(form)) {
+                if (refs[id]++ == 0) {
+                    deadForms--;
+                }
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (formCount == forms.length) {
+            forms = Arrays.copyOf(forms, formCount * 2);
+            refs = Arrays.copyOf(refs, formCount * 2);
+        }
+        forms[formCount] = form;
+        refs[formCount] = 1;
+        table[slot] = ++formCount;
+        // Keep the table at most half full
+        if (formCount * 2 > table.length) {
+            rehash(table.length * 2);
+        }
+        return formCount - 1;
+    }
+
+    private void rehash(int size) {
+        table = new int[size];
+        int mask = size - 1;
+        for (int id = 0; id < formCount; id++) {
+            int s = forms[id].hashCode() & mask;
+            while (table[s] != 0) {
+                s = (s + 1) & mask;
+            }
+            table[s] = id + 1;
+        }
+    }
+
+    private void release(Postings postings) {
+        if (postings == null) {
+            return;
+        }
+        for (int id : postings.forms) {
+            if (--refs[id] == 0) {
+                deadForms++;
+            }
+        }
+        if (deadForms * 2 > formCount) {
+            compact();
+        }
+    }
+
+    /*
+     * Drops unreferenced forms and renumbers the others. The arrays of existing postings and forms are replaced rather
+     * than modified, as lists returned by get(String) keep reading them
+     */
+    private void compact() {
+        int live = formCount - deadForms;
+        int capacity = Math.max(1 << 9, Integer.highestOneBit(Math.max(live, 1)) * 2);
+        String[] newForms = new String[capacity];
+        int[] newRefs = new int[capacity];
+        int[] remap = new int[formCount];
+        int n = 0;
+        for (int id = 0; id < formCount; id++) {
+            if (refs[id] > 0) {
+                newForms[n] = forms[id];
+                newRefs[n] = refs[id];
+                remap[id] = n++;
+            }
+        }
+        for (Map.Entry<String, Postings> entry : valueSets.entrySet()) {
+            Postings postings = entry.getValue();
+            int[] ids = new int[postings.forms.length];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = remap[postings.forms[i]];
+            }
+            entry.setValue(new Postings(postings.cuis, postings.starts, ids));
+        }
+        forms = newForms;
+        refs = newRefs;
+        formCount = n;
+        deadForms = 0;
+        rehash(capacity * 2);
+    }
+
+    /*
+     * CSR layout: the surface forms of cuis[i] are forms[starts[i]] to forms[starts[i + 1] - 1]
+     */
+    private static final class Postings {
+        private final int[] cuis;
+        private final int[] starts;
+        private final int[] forms;
+
+        private Postings(int[] cuis, int[] starts, int[] forms) {
+            this.cuis = cuis;
+            this.starts = starts;
+            this.forms = forms;
+        }
+    }
+
+    private final class TermList extends AbstractList<String> implements RandomAccess {
+        private final Postings postings;
+        // The forms the postings' ids refer to, compaction renumbers into a new array
+        private final String[] forms;
+
+        private TermList(Postings postings, String[] forms) {
+            this.postings = postings;
+            this.forms = forms;
+        }
+
+        @Override
+        public String get(int index) {
+            if (index < 0 || index >= postings.forms.length) {
+                throw new IndexOutOfBoundsException(String.valueOf(index));
+            }
+            // Last CUI whose postings start at or before the index
+            int i = Arrays.binarySearch(postings.starts, 0, postings.cuis.length, index);
+            if (i < 0) {
+                i = -i - 2;
+            }
+            // Forms are only ever appended to this array, so it need not be read under the store's lock
+            return CodeDictionary.decode(VSACCodeSystem.UMLS, postings.cuis[i]) + "|" + forms[postings.forms[index]];
+        }
+
+        @Override
+        public int size() {
+            return postings.forms.length;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package edu.mayo.hsr.dhs.cql2nlp.structs;
+
+import java.util.Objects;
+
+/**
+ * A valueset declaration within a CQL library
+ */
+public final class ValueSetDefinition {
+    private final String identifier;
+    private final String oid;
+    private final String version;
+
+    public ValueSetDefinition(String identifier, String oid, String version) {
+        this.identifier = identifier;
+        this.oid = oid;
+        this.version = version;
+    }
+
+    public String getIdentifier() {
+        return identifier;
+    }
+
+    public String getOid() {
+        return oid;
+    }
+
+    /**
+     * @return The version specified in the declaration, or null if none was given
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        ValueSetDefinition that = (ValueSetDefinition) o;
+        return Objects.equals(identifier, that.identifier) &&
+                Objects.equals(oid, that.oid) &&
+                Objects.equals(version, that.version);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(identifier, oid, version);
+    }
+}
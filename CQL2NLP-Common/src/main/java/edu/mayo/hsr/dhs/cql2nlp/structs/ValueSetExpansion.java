@@ -0,0 +1,42 @@
+package edu.mayo.hsr.dhs.cql2nlp.structs;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Immutable result of expanding a value set (including any value sets it references) into its codes and display names.
+ * Codes are held in a frozen {@link CodeSet}
+ */
+public final class ValueSetExpansion {
+    private final String oid;
+    private final String version;
+    private final CodeSet codes;
+    private final Set<String> displayNames;
+
+    public ValueSetExpansion(String oid, String version, Set<CodifiedValueSetElement> codes, Set<String> displayNames) {
+        this.oid = oid;
+        this.version = version;
+        this.codes = CodeSet.copyOf(codes).freeze();
+        this.displayNames = Collections.unmodifiableSet(new HashSet<>(displayNames));
+    }
+
+    public String getOid() {
+        return oid;
+    }
+
+    /**
+     * @return The requested value set version, or null if the latest version was used
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    public CodeSet getCodes() {
+        return codes;
+    }
+
+    public Set<String> getDisplayNames() {
+        return displayNames;
+    }
+}
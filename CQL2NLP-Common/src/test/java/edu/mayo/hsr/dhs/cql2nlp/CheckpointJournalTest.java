@@ -0,0 +1,144 @@
+package edu.mayo.hsr.dhs.cql2nlp;
+
+import edu.mayo.hsr.dhs.cql2nlp.structs.CodifiedValueSetElement;
+import edu.mayo.hsr.dhs.cql2nlp.structs.VSACCodeSystem;
+import edu.mayo.hsr.dhs.cql2nlp.structs.ValueSetDefinition;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class CheckpointJournalTest {
+
+    private static final String RELEASE = "2020AA";
+    private static final String BACKEND = "uts";
+    private static final ValueSetDefinition DIABETES = new ValueSetDefinition("Diabetes", "2.16.840.1.113883.3.464.1003.103.12.1001", "20190315");
+    private static final ValueSetDefinition ASTHMA = new ValueSetDefinition("Asthma", "2.16.840.1.113883.3.526.3.362", null);
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("checkpoint", ".jsonl");
+        Files.delete(file.toPath());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file.toPath());
+        Files.deleteIfExists(new File(file.getPath() + ".tmp").toPath());
+    }
+
+    @Test
+    public void reusesEntriesOfTheSameDefinition() throws IOException {
+        try (CheckpointJournal journal = CheckpointJournal.open(file, RELEASE, BACKEND)) {
+            append(journal, "Diabetes", DIABETES, "C0011849");
+        }
+        try (CheckpointJournal journal = CheckpointJournal.open(file, RELEASE, BACKEND)) {
+            CheckpointJournal.Entry entry = journal.get("Diabetes", DIABETES);
+            assertNotNull(entry);
+            assertEquals(Collections.singleton("C0011849"), entry.getCuis());
+            assertEquals(1, entry.getCodes().size());
+            assertEquals(Collections.singleton("c0011849 name"), entry.getDisplayNames().get("C0011849"));
+            assertEquals(RELEASE, entry.getRelease());
+            assertEquals(BACKEND, entry.getBackend());
+            assertNull(journal.get("Diabetes", new ValueSetDefinition("Diabetes", DIABETES.getOid(), "20200101")));
+        }
+    }
+
+    @Test
+    public void dropsTornTail() throws IOException {
+        try (CheckpointJournal journal = CheckpointJournal.open(file, RELEASE, BACKEND)) {
+            append(journal, "Diabetes", DIABETES, "C0011849");
+        }
+        Files.write(file.toPath(), "{\"id\":\"Asthma\",\"ident".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        try (CheckpointJournal journal = CheckpointJournal.open(file, RELEASE, BACKEND)) {
+            assertNotNull(journal.get("Diabetes", DIABETES));
+            assertNull(journal.get("Asthma", ASTHMA));
+            // Appended after the rewritten journal rather than onto the torn line
+            append(journal, "Asthma", ASTHMA, "C0004096");
+        }
+        assertEquals(2, lines().size());
+        try (CheckpointJournal journal = CheckpointJournal.open(file, RELEASE, BACKEND)) {
+            assertNotNull(journal.get("Diabetes", DIABETES));
+            assertNotNull(journal.get("Asthma", ASTHMA));
+        }
+    }
+
+    @Test
+    public void laterEntriesSupersedeEarlierOnes() throws IOException {
+        try (CheckpointJournal journal = CheckpointJournal.open(file, RELEASE, BACKEND)) {
+            append(journal, "Diabetes", DIABETES, "C0011849");
+            append(journal, "Diabetes", DIABETES, "C0011860");
+        }
+        assertEquals(2, lines().size());
+        try (CheckpointJournal journal = CheckpointJournal.open(file, RELEASE, BACKEND)) {
+            assertEquals(Collections.singleton("C0011860"), journal.get("Diabetes", DIABETES).getCuis());
+        }
+        assertEquals(1, lines().size());
+    }
+
+    @Test
+    public void dropsExpiredEntriesOfUnversionedDefinitions() throws IOException {
+        try (CheckpointJournal journal = CheckpointJournal.open(file, RELEASE, BACKEND)) {
+            append(journal, "Diabetes", DIABETES, "C0011849");
+            append(journal, "Asthma", ASTHMA, "C0004096");
+        }
+        // As if both were finished long ago, only the versioned one is still valid
+        List<String> aged = new ArrayList<>();
+        for (String line : lines()) {
+            aged.add(line.replaceAll("\"finishedAt\":\\d+", "\"finishedAt\":0"));
+        }
+        Files.write(file.toPath(), aged, StandardCharsets.UTF_8);
+        try (CheckpointJournal journal = CheckpointJournal.open(file, RELEASE, BACKEND)) {
+            assertNotNull(journal.get("Diabetes", DIABETES));
+            assertNull(journal.get("Asthma", ASTHMA));
+        }
+        assertEquals(1, lines().size());
+    }
+
+    @Test
+    public void dropsEntriesOfOtherReleasesAndBackends() throws IOException {
+        try (CheckpointJournal journal = CheckpointJournal.open(file, RELEASE, BACKEND)) {
+            append(journal, "Diabetes", DIABETES, "C0011849");
+        }
+        try (CheckpointJournal journal = CheckpointJournal.open(file, RELEASE, "rrf")) {
+            assertNull(journal.get("Diabetes", DIABETES));
+            append(journal, "Diabetes", DIABETES, "C0011849");
+        }
+        try (CheckpointJournal journal = CheckpointJournal.open(file, "2020AB", "rrf")) {
+            assertNull(journal.get("Diabetes", DIABETES));
+        }
+        assertTrue(lines().isEmpty());
+    }
+
+    @Test
+    public void deleteRemovesTheJournal() throws IOException {
+        CheckpointJournal journal = CheckpointJournal.open(file, RELEASE, BACKEND);
+        append(journal, "Diabetes", DIABETES, "C0011849");
+        journal.delete();
+        assertFalse(file.exists());
+        try (CheckpointJournal reopened = CheckpointJournal.open(file, RELEASE, BACKEND)) {
+            assertNull(reopened.get("Diabetes", DIABETES));
+        }
+    }
+
+    private static void append(CheckpointJournal journal, String id, ValueSetDefinition definition, String cui)
+            throws IOException {
+        journal.append(id, definition, Collections.singleton(new CodifiedValueSetElement(VSACCodeSystem.UMLS, cui)),
+                Collections.singleton(cui),
+                Collections.singletonMap(cui, Collections.singleton(cui.toLowerCase() + " name")));
+    }
+
+    private List<String> lines() throws IOException {
+        return Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+    }
+}
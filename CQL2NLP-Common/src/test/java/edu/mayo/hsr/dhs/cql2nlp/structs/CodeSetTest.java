@@ -0,0 +1,97 @@
+package edu.mayo.hsr.dhs.cql2nlp.structs;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class CodeSetTest {
+
+    private static final CodifiedValueSetElement DIABETES_CUI = new CodifiedValueSetElement(VSACCodeSystem.UMLS, "C0011849");
+    private static final CodifiedValueSetElement DIABETES_SNOMED = new CodifiedValueSetElement(VSACCodeSystem.SNOMEDCT, "73211009");
+    private static final CodifiedValueSetElement ASTHMA_SNOMED = new CodifiedValueSetElement(VSACCodeSystem.SNOMEDCT, "195967001");
+    private static final CodifiedValueSetElement GLUCOSE_LOINC = new CodifiedValueSetElement(VSACCodeSystem.LOINC, "2345-7");
+    // Interned above the CUI range rather than parsed
+    private static final CodifiedValueSetElement MALFORMED_CUI = new CodifiedValueSetElement(VSACCodeSystem.UMLS, "CL123456");
+
+    @Test
+    public void sameCodeInDifferentSystemsIsDistinct() {
+        CodeSet codes = new CodeSet();
+        assertTrue(codes.add(VSACCodeSystem.SNOMEDCT, "2345-7"));
+        assertTrue(codes.add(GLUCOSE_LOINC));
+        assertFalse(codes.add(VSACCodeSystem.LOINC, "2345-7"));
+        assertEquals(2, codes.size());
+        assertTrue(codes.contains(GLUCOSE_LOINC));
+        assertFalse(codes.contains(VSACCodeSystem.RXNORM, "2345-7"));
+        assertTrue(codes.remove(VSACCodeSystem.SNOMEDCT, "2345-7"));
+        assertTrue(codes.contains(GLUCOSE_LOINC));
+        assertEquals(1, codes.size());
+    }
+
+    @Test
+    public void addAllOfCodeSetIsUnion() {
+        CodeSet a = CodeSet.copyOf(Arrays.asList(DIABETES_CUI, DIABETES_SNOMED));
+        CodeSet b = CodeSet.copyOf(Arrays.asList(DIABETES_SNOMED, ASTHMA_SNOMED, GLUCOSE_LOINC, MALFORMED_CUI));
+        assertTrue(a.addAll(b));
+        assertEquals(set(DIABETES_CUI, DIABETES_SNOMED, ASTHMA_SNOMED, GLUCOSE_LOINC, MALFORMED_CUI), new HashSet<>(a));
+        assertEquals(5, a.size());
+        assertFalse(a.addAll(b));
+        // The source is not shared with the target
+        b.remove(GLUCOSE_LOINC);
+        assertTrue(a.contains(GLUCOSE_LOINC));
+    }
+
+    @Test
+    public void removeAllOfCodeSetIsDifference() {
+        CodeSet a = CodeSet.copyOf(Arrays.asList(DIABETES_CUI, DIABETES_SNOMED, ASTHMA_SNOMED, MALFORMED_CUI));
+        CodeSet b = CodeSet.copyOf(Arrays.asList(DIABETES_SNOMED, MALFORMED_CUI, GLUCOSE_LOINC));
+        assertTrue(a.removeAll(b));
+        assertEquals(set(DIABETES_CUI, ASTHMA_SNOMED), new HashSet<>(a));
+        assertFalse(a.removeAll(b));
+        assertTrue(a.removeAll(Collections.singleton(DIABETES_CUI)));
+        assertEquals(set(ASTHMA_SNOMED), new HashSet<>(a));
+    }
+
+    @Test
+    public void iteratesEveryCodeOnce() {
+        List<CodifiedValueSetElement> all = Arrays.asList(DIABETES_CUI, DIABETES_SNOMED, ASTHMA_SNOMED, GLUCOSE_LOINC,
+                MALFORMED_CUI);
+        CodeSet codes = CodeSet.copyOf(all);
+        List<CodifiedValueSetElement> iterated = new ArrayList<>();
+        codes.forEach(iterated::add);
+        assertEquals(all.size(), iterated.size());
+        assertEquals(new HashSet<>(all), new HashSet<>(iterated));
+        assertEquals(new HashSet<>(all), codes);
+    }
+
+    @Test
+    public void frozenSetIsReadOnly() {
+        CodeSet codes = CodeSet.copyOf(Arrays.asList(DIABETES_CUI, ASTHMA_SNOMED)).freeze();
+        assertTrue(codes.contains(ASTHMA_SNOMED));
+        try {
+            codes.add(GLUCOSE_LOINC);
+            fail("Added to a frozen set");
+        } catch (UnsupportedOperationException expected) {
+        }
+        try {
+            codes.removeAll(CodeSet.copyOf(Collections.singleton(ASTHMA_SNOMED)));
+            fail("Removed from a frozen set");
+        } catch (UnsupportedOperationException expected) {
+        }
+        assertEquals(2, codes.size());
+    }
+
+    @Test
+    public void clearEmptiesEverySystem() {
+        CodeSet codes = CodeSet.copyOf(Arrays.asList(DIABETES_CUI, ASTHMA_SNOMED, GLUCOSE_LOINC));
+        codes.clear();
+        assertTrue(codes.isEmpty());
+        assertFalse(codes.iterator().hasNext());
+        assertTrue(codes.getIds(VSACCodeSystem.SNOMEDCT).isEmpty());
+    }
+
+    private static Set<CodifiedValueSetElement> set(CodifiedValueSetElement... elements) {
+        return new HashSet<>(Arrays.asList(elements));
+    }
+}
@@ -0,0 +1,132 @@
+package edu.mayo.hsr.dhs.cql2nlp.structs;
+
+import org.junit.Test;
+
+import java.util.TreeSet;
+
+import static org.junit.Assert.*;
+
+public class IntBitmapTest {
+
+    // More values than an array container holds, so the container is converted to a bitmap
+    private static final int DENSE = 5000;
+
+    @Test
+    public void addRemoveContains() {
+        IntBitmap bitmap = new IntBitmap();
+        assertTrue(bitmap.isEmpty());
+        assertTrue(bitmap.add(7));
+        assertFalse(bitmap.add(7));
+        assertTrue(bitmap.add(70_000));
+        assertTrue(bitmap.contains(7));
+        assertTrue(bitmap.contains(70_000));
+        assertFalse(bitmap.contains(8));
+        assertEquals(2, bitmap.cardinality());
+        assertTrue(bitmap.remove(7));
+        assertFalse(bitmap.remove(7));
+        assertFalse(bitmap.contains(7));
+        assertEquals(1, bitmap.cardinality());
+    }
+
+    @Test
+    public void toArrayIsSortedAcrossContainers() {
+        IntBitmap bitmap = IntBitmap.of(200_000, 3, 65_536, 65_535, 0);
+        assertArrayEquals(new int[]{0, 3, 65_535, 65_536, 200_000}, bitmap.toArray());
+    }
+
+    @Test
+    public void denseContainersConvertBothWays() {
+        IntBitmap bitmap = new IntBitmap();
+        for (int i = 0; i < DENSE; i++) {
+            bitmap.add(i * 2);
+        }
+        assertEquals(DENSE, bitmap.cardinality());
+        assertTrue(bitmap.contains(2 * (DENSE - 1)));
+        assertFalse(bitmap.contains(1));
+        for (int i = 0; i < DENSE - 10; i++) {
+            bitmap.remove(i * 2);
+        }
+        assertEquals(10, bitmap.cardinality());
+        assertEquals(IntBitmap.of(expected(DENSE - 10, DENSE)), bitmap);
+    }
+
+    @Test
+    public void orMatchesSetUnion() {
+        for (int[] sizes : new int[][]{{10, 20}, {10, DENSE}, {DENSE, 10}, {DENSE, DENSE}}) {
+            IntBitmap a = sample(sizes[0], 3);
+            IntBitmap b = sample(sizes[1], 5);
+            TreeSet<Integer> union = toSet(a);
+            union.addAll(toSet(b));
+            a.or(b);
+            assertEquals(union, toSet(a));
+            assertEquals(union.size(), a.cardinality());
+        }
+    }
+
+    @Test
+    public void andNotMatchesSetDifference() {
+        for (int[] sizes : new int[][]{{20, 10}, {DENSE, 10}, {10, DENSE}, {DENSE, DENSE}}) {
+            IntBitmap a = sample(sizes[0], 3);
+            IntBitmap b = sample(sizes[1], 5);
+            TreeSet<Integer> difference = toSet(a);
+            difference.removeAll(toSet(b));
+            a.andNot(b);
+            assertEquals(difference, toSet(a));
+            assertEquals(difference.size(), a.cardinality());
+        }
+    }
+
+    @Test
+    public void andNotRemovesEmptiedContainers() {
+        IntBitmap a = IntBitmap.of(1, 2, 70_000, 140_000);
+        a.andNot(IntBitmap.of(1, 2, 70_000));
+        assertArrayEquals(new int[]{140_000}, a.toArray());
+        a.andNot(IntBitmap.of(140_000));
+        assertTrue(a.isEmpty());
+        assertEquals(new IntBitmap(), a);
+    }
+
+    @Test
+    public void copyIsIndependent() {
+        IntBitmap a = sample(DENSE, 3);
+        IntBitmap b = a.copy();
+        b.add(1);
+        b.remove(0);
+        assertFalse(a.contains(1));
+        assertTrue(a.contains(0));
+        assertEquals(a.hashCode(), sample(DENSE, 3).hashCode());
+    }
+
+    @Test
+    public void equalsIgnoresCapacity() {
+        IntBitmap a = sample(DENSE, 3);
+        IntBitmap b = a.copy();
+        b.trim();
+        assertEquals(a, b);
+        assertEquals(a.hashCode(), b.hashCode());
+        assertFalse(a.equals(sample(DENSE, 5)));
+    }
+
+    // Multiples of a step, spread over several containers
+    private static IntBitmap sample(int count, int step) {
+        IntBitmap ret = new IntBitmap();
+        for (int i = 0; i < count; i++) {
+            ret.add(i * step + (i / 1000) * 65_536);
+        }
+        return ret;
+    }
+
+    private static int[] expected(int from, int to) {
+        int[] ret = new int[to - from];
+        for (int i = from; i < to; i++) {
+            ret[i - from] = i * 2;
+        }
+        return ret;
+    }
+
+    private static TreeSet<Integer> toSet(IntBitmap bitmap) {
+        TreeSet<Integer> ret = new TreeSet<>();
+        bitmap.forEach(ret::add);
+        return ret;
+    }
+}
@@ -0,0 +1,97 @@
+package edu.mayo.hsr.dhs.cql2nlp.structs;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class RulesetStoreTest {
+
+    @Test
+    public void termsAreSortedAndDistinct() {
+        RulesetStore store = new RulesetStore();
+        Map<String, List<String>> forms = new LinkedHashMap<>();
+        forms.put("C0020538", Arrays.asList("hypertension", "HTN", "hypertension"));
+        forms.put("C0011849", Arrays.asList("diabetes"));
+        forms.put("C0004096", Collections.emptyList());
+        store.put("vs", forms);
+        assertEquals(Arrays.asList("C0011849|diabetes", "C0020538|HTN", "C0020538|hypertension"), store.get("vs"));
+        assertEquals(3, store.getTermCount());
+        assertEquals(3, store.getSurfaceFormCount());
+    }
+
+    @Test
+    public void removeKeepsOtherValueSets() {
+        RulesetStore store = new RulesetStore();
+        store.put("a", forms("C0011849", "diabetes", "diabetes mellitus"));
+        store.put("b", forms("C0011849", "diabetes", "DM"));
+        store.remove("a");
+        assertFalse(store.contains("a"));
+        assertNull(store.get("a"));
+        assertEquals(Arrays.asList("C0011849|DM", "C0011849|diabetes"), store.get("b"));
+        assertEquals(Collections.singletonList("b"), store.getValueSetIds());
+        assertEquals(2, store.getTermCount());
+        assertEquals(2, store.getSurfaceFormCount());
+    }
+
+    @Test
+    public void replacingReleasesOldForms() {
+        RulesetStore store = new RulesetStore();
+        store.put("a", forms("C0011849", "diabetes", "diabetes mellitus"));
+        store.put("a", forms("C0011849", "diabetes", "DM"));
+        assertEquals(Arrays.asList("C0011849|DM", "C0011849|diabetes"), store.get("a"));
+        assertEquals(2, store.getSurfaceFormCount());
+    }
+
+    @Test
+    public void removedFormsCanBeAddedAgain() {
+        RulesetStore store = new RulesetStore();
+        store.put("a", forms("C0011849", "diabetes"));
+        store.put("b", forms("C0020538", "hypertension", "HTN", "high blood pressure"));
+        store.remove("a");
+        assertEquals(3, store.getSurfaceFormCount());
+        store.put("a", forms("C0011849", "diabetes"));
+        assertEquals(Collections.singletonList("C0011849|diabetes"), store.get("a"));
+        assertEquals(4, store.getSurfaceFormCount());
+    }
+
+    @Test
+    public void compactionKeepsPostingsConsistent() {
+        RulesetStore store = new RulesetStore();
+        Map<String, List<String>> expected = new TreeMap<>();
+        for (int v = 0; v < 200; v++) {
+            Map<String, List<String>> forms = new HashMap<>();
+            for (int c = 0; c < 5; c++) {
+                // Every value set has forms of its own and forms shared with the next one
+                forms.put(CodeDictionary.intToCui(v * 10 + c), Arrays.asList("form " + v + "/" + c, "shared " + (v / 2)));
+            }
+            store.put("vs" + v, forms);
+        }
+        for (int v = 0; v < 200; v++) {
+            expected.put("vs" + v, new ArrayList<>(store.get("vs" + v)));
+        }
+        List<String> keptBeforeCompaction = store.get("vs1");
+        // Removing most value sets leaves more unused forms than used ones, which compacts the forms
+        for (int v = 0; v < 200; v++) {
+            if (v % 10 != 1) {
+                store.remove("vs" + v);
+                expected.remove("vs" + v);
+            }
+        }
+        assertEquals(20 * 6, store.getSurfaceFormCount());
+        for (Map.Entry<String, List<String>> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), store.get(entry.getKey()));
+        }
+        assertEquals(expected.get("vs1"), keptBeforeCompaction);
+        // Forms interned after compaction do not collide with the renumbered ones
+        store.put("new", forms("C0011849", "diabetes", "form 1/0"));
+        assertEquals(Arrays.asList("C0011849|diabetes", "C0011849|form 1/0"), store.get("new"));
+        assertEquals(expected.get("vs1"), store.get("vs1"));
+        assertEquals(20 * 6 + 1, store.getSurfaceFormCount());
+    }
+
+    private static Map<String, List<String>> forms(String cui, String... forms) {
+        return Collections.singletonMap(cui, Arrays.asList(forms));
+    }
+}
@@ -3,21 +3,23 @@ package edu.mayo.dhs.cql2nlp.gui;
 import com.intellij.uiDesigner.core.GridConstraints;
 import com.intellij.uiDesigner.core.GridLayoutManager;
 import com.intellij.uiDesigner.core.Spacer;
-import edu.mayo.hsr.dhs.cql2nlp.CQLParser;
+import edu.mayo.hsr.dhs.cql2nlp.IncrementalValueSetExtractor;
+import edu.mayo.hsr.dhs.cql2nlp.structs.ValueSetDefinition;
 
 import javax.swing.*;
+import javax.swing.Timer;
 import javax.swing.event.DocumentEvent;
 import javax.swing.event.DocumentListener;
 import javax.swing.text.BadLocationException;
 import java.awt.*;
 import java.awt.event.*;
-import java.io.IOException;
 import java.util.List;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
 
 public class CQLEditing extends JDialog {
 
-    public static Map<String, String> valueSetsToResolve;
+    public static Map<String, ValueSetDefinition> valueSetsToResolve;
 
     private JTextPane cqlInput;
     private JList<String> valueSetList;
@@ -25,6 +27,14 @@ public class CQLEditing extends JDialog {
     private JPanel cqlPane;
     private JButton refreshButton;
 
+    private static final int ANALYSIS_DEBOUNCE_MILLIS = 250;
+
+    private final IncrementalValueSetExtractor extractor = new IncrementalValueSetExtractor();
+    private final Timer analysisDebounce;
+    // Only touched on the event thread
+    private SwingWorker<Map<String, ValueSetDefinition>, Void> pendingAnalysis;
+    private long analysisGeneration;
+
     public CQLEditing() {
         setContentPane(cqlPane);
         setModal(true);
@@ -44,62 +54,38 @@ public class CQLEditing extends JDialog {
             }
         }, KeyStroke.getKeyStroke(KeyEvent.VK_ESCAPE, 0), JComponent.WHEN_ANCESTOR_OF_FOCUSED_COMPONENT);
 
-        CQLParser parser = new CQLParser();
-//        this.cqlInput.getDocument().addDocumentListener(new DocumentListener() {
-//            @Override
-//            public void insertUpdate(DocumentEvent e) {
-//                try {
-//                    Set<String> keys = parser.getValueSets(e.getDocument().getText(0, e.getDocument().getLength())).keySet();
-//                    String[] arr = keys.toArray(new String[0]);
-//                    Arrays.sort(arr);
-//                    valueSetList.setListData(arr);
-//                    submitButton.setEnabled(true);
-//                } catch (BadLocationException | IOException t) {
-//                    valueSetList.setListData(new String[]{"Invalid CQL"});
-//                    submitButton.setEnabled(false);
-//                }
-//            }
-//
-//            @Override
-//            public void removeUpdate(DocumentEvent e) {
-//                try {
-//                    Set<String> keys = parser.getValueSets(e.getDocument().getText(0, e.getDocument().getLength())).keySet();
-//                    String[] arr = keys.toArray(new String[0]);
-//                    Arrays.sort(arr);
-//                    valueSetList.setListData(arr);
-//                    submitButton.setEnabled(true);
-//                } catch (BadLocationException | IOException t) {
-//                    valueSetList.setListData(new String[]{"Invalid CQL"});
-//                    submitButton.setEnabled(false);
-//                }
-//            }
-//
-//            @Override
-//            public void changedUpdate(DocumentEvent e) {
-//                try {
-//                    Set<String> keys = parser.getValueSets(e.getDocument().getText(0, e.getDocument().getLength())).keySet();
-//                    String[] arr = keys.toArray(new String[0]);
-//                    Arrays.sort(arr);
-//                    valueSetList.setListData(arr);
-//                    submitButton.setEnabled(true);
-//                } catch (BadLocationException | IOException t) {
-//                    valueSetList.setListData(new String[]{"Invalid CQL"});
-//                    submitButton.setEnabled(false);
-//                }
-//            }
-//        });
+        // Edits restart the debounce timer, when it fires the current text is analyzed off the event thread
+        analysisDebounce = new Timer(ANALYSIS_DEBOUNCE_MILLIS, e -> scheduleAnalysis());
+        analysisDebounce.setRepeats(false);
+        this.cqlInput.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                analysisDebounce.restart();
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                analysisDebounce.restart();
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+                // Attribute-only changes do not alter the text
+            }
+        });
         submitButton.addActionListener(e -> {
             List<String> toKeep = valueSetList.getSelectedValuesList();
             try {
-                Map<String, String> vals = parser.getValueSets(this.cqlInput.getDocument().getText(0, this.cqlInput.getDocument().getLength()));
+                // Declarations are cached by the extractor, so this only parses edits made since the last analysis
+                Map<String, ValueSetDefinition> vals = extractor.extract(this.cqlInput.getDocument().getText(0, this.cqlInput.getDocument().getLength()));
                 valueSetsToResolve = new HashMap<>();
-                toKeep.forEach(s -> valueSetsToResolve.put(s, vals.get(s)));
+                toKeep.stream().filter(vals::containsKey).forEach(s -> valueSetsToResolve.put(s, vals.get(s)));
                 synchronized (GUI.nextPhaseFlag) {
                     GUI.nextPhaseFlag.set(true);
                     GUI.nextPhaseFlag.notifyAll();
                 }
                 dispose();
-            } catch (IOException | BadLocationException ex) {
+            } catch (BadLocationException ex) {
                 ex.printStackTrace();
                 JOptionPane.showMessageDialog(null, "An error occurred, please check your console");
             }
@@ -107,18 +93,56 @@ public class CQLEditing extends JDialog {
         refreshButton.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent e) {
+                analysisDebounce.stop();
+                scheduleAnalysis();
+            }
+        });
+    }
+
+    /*
+     * Starts analyzing the current text in the background, superseding any analysis still in progress. Must be called
+     * on the event thread
+     */
+    private void scheduleAnalysis() {
+        String text;
+        try {
+            text = cqlInput.getDocument().getText(0, cqlInput.getDocument().getLength());
+        } catch (BadLocationException e) {
+            e.printStackTrace();
+            return;
+        }
+        if (pendingAnalysis != null) {
+            pendingAnalysis.cancel(true);
+        }
+        long generation = ++analysisGeneration;
+        pendingAnalysis = new SwingWorker<Map<String, ValueSetDefinition>, Void>() {
+            @Override
+            protected Map<String, ValueSetDefinition> doInBackground() {
+                return extractor.extract(text);
+            }
+
+            @Override
+            protected void done() {
+                // A newer edit may have been scheduled while this one was running, only the latest result is shown
+                if (isCancelled() || generation != analysisGeneration) {
+                    return;
+                }
                 try {
-                    Set<String> keys = parser.getValueSets(cqlInput.getDocument().getText(0, cqlInput.getDocument().getLength())).keySet();
-                    String[] arr = keys.toArray(new String[0]);
+                    String[] arr = get().keySet().toArray(new String[0]);
                     Arrays.sort(arr);
+                    List<String> selected = valueSetList.getSelectedValuesList();
                     valueSetList.setListData(arr);
-                    submitButton.setEnabled(true);
-                } catch (BadLocationException | IOException t) {
+                    List<String> names = Arrays.asList(arr);
+                    valueSetList.setSelectedIndices(selected.stream().mapToInt(names::indexOf).filter(i -> i >= 0).toArray());
+                    submitButton.setEnabled(arr.length > 0);
+                } catch (InterruptedException | ExecutionException t) {
+                    t.printStackTrace();
                     valueSetList.setListData(new String[]{"Invalid CQL"});
                     submitButton.setEnabled(false);
                 }
             }
-        });
+        };
+        pendingAnalysis.execute();
     }
 
     {
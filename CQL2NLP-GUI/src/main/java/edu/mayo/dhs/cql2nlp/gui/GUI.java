@@ -6,16 +6,25 @@ import com.intellij.uiDesigner.core.GridLayoutManager;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
+import java.io.File;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class GUI extends JDialog {
 
+    /**
+     * System property naming the directory nlp_export.json, cui_mappings.json and the metrics snapshot are written to,
+     * by default the working directory
+     */
+    public static final String OUTPUT_DIR_PROPERTY = "cql2nlp.gui.outputDir";
+
     public static String utsUser;
     public static char[] utsPass;
 
     public static final AtomicBoolean nextPhaseFlag = new AtomicBoolean(false);
+    // Set when the ruleset editor is left to edit the CQL and regenerate, rather than to export
+    public static final AtomicBoolean regenerateFlag = new AtomicBoolean(false);
 
     private JPanel contentPane;
 
@@ -39,6 +48,15 @@ public class GUI extends JDialog {
         }, KeyStroke.getKeyStroke(KeyEvent.VK_ESCAPE, 0), JComponent.WHEN_ANCESTOR_OF_FOCUSED_COMPONENT);
     }
 
+    /**
+     * @return The directory configured via {@value #OUTPUT_DIR_PROPERTY}, created if it does not exist yet
+     */
+    public static File getOutputDir() {
+        File ret = new File(System.getProperty(OUTPUT_DIR_PROPERTY, ".")).getAbsoluteFile();
+        ret.mkdirs();
+        return ret;
+    }
+
     // Utility method that locks execution thread until sub-phase is complete by setting nextPhaseFlag to true
     private void holdForNextPhase() {
         synchronized (nextPhaseFlag) {
@@ -70,18 +88,22 @@ public class GUI extends JDialog {
         loginPane.pack();
         loginPane.setVisible(true);
         dialog.holdForNextPhase();
+        // Reused across regenerations so that the CQL, its analysis and the value set selection are kept
         CQLEditing cqlPane = new CQLEditing();
-        cqlPane.pack();
-        cqlPane.setVisible(true);
-        dialog.holdForNextPhase();
-        NLPRuleSetGenerationProgress progressPane = new NLPRuleSetGenerationProgress();
-        progressPane.pack();
-        progressPane.setVisible(true);
-        dialog.holdForNextPhase();
-        NLPRulesetEditor editor = new NLPRulesetEditor();
-        editor.pack();
-        editor.setVisible(true);
-        dialog.holdForNextPhase();
+        do {
+            cqlPane.pack();
+            cqlPane.setVisible(true);
+            dialog.holdForNextPhase();
+            NLPRuleSetGenerationProgress progressPane = new NLPRuleSetGenerationProgress();
+            progressPane.pack();
+            progressPane.setVisible(true);
+            dialog.holdForNextPhase();
+            NLPRulesetEditor editor = new NLPRulesetEditor();
+            editor.pack();
+            editor.setVisible(true);
+            dialog.holdForNextPhase();
+        } while (regenerateFlag.getAndSet(false));
+        NLPRuleSetGenerationProgress.closeSession();
         System.exit(0);
     }
 
@@ -2,6 +2,7 @@ package edu.mayo.dhs.cql2nlp.gui;
 
 import com.intellij.uiDesigner.core.GridConstraints;
 import com.intellij.uiDesigner.core.GridLayoutManager;
+import edu.mayo.hsr.dhs.cql2nlp.Endpoints;
 import edu.mayo.hsr.dhs.cql2nlp.UTSAuthenticationInterceptor;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
@@ -43,7 +44,7 @@ public class LoginPane extends JDialog {
             headers.setContentType(MediaType.APPLICATION_FORM_URLENCODED);
             GUI.utsUser = userInput.getText();
             GUI.utsPass = passwordInput.getPassword();
-            UTSAuthenticationInterceptor interceptor = new UTSAuthenticationInterceptor("https://utslogin.nlm.nih.gov/cas/v1/tickets", GUI.utsUser, new String(GUI.utsPass));
+            UTSAuthenticationInterceptor interceptor = new UTSAuthenticationInterceptor(Endpoints.getUtsLoginUrl(), GUI.utsUser, new String(GUI.utsPass));
             try {
                 interceptor.getTgt();
                 synchronized (GUI.nextPhaseFlag) {
@@ -1,17 +1,24 @@
 package edu.mayo.dhs.cql2nlp.gui;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.ObjectWriter;
 import com.intellij.uiDesigner.core.GridConstraints;
 import com.intellij.uiDesigner.core.GridLayoutManager;
+import edu.mayo.hsr.dhs.cql2nlp.BatchRulesetGenerator;
+import edu.mayo.hsr.dhs.cql2nlp.CheckpointJournal;
+import edu.mayo.hsr.dhs.cql2nlp.IOExecutors;
+import edu.mayo.hsr.dhs.cql2nlp.Metrics;
+import edu.mayo.hsr.dhs.cql2nlp.StreamingRulesetWriter;
+import edu.mayo.hsr.dhs.cql2nlp.TaskScope;
 import edu.mayo.hsr.dhs.cql2nlp.UMLSBrowser;
 import edu.mayo.hsr.dhs.cql2nlp.ValueSetResolver;
+import edu.mayo.hsr.dhs.cql2nlp.structs.CodeSet;
 import edu.mayo.hsr.dhs.cql2nlp.structs.CodifiedValueSetElement;
+import edu.mayo.hsr.dhs.cql2nlp.structs.RulesetStore;
 import edu.mayo.hsr.dhs.cql2nlp.structs.VSACCodeSystem;
-import org.hl7.fhir.r4.model.ValueSet;
+import edu.mayo.hsr.dhs.cql2nlp.structs.ValueSetDefinition;
 
 import javax.swing.*;
+import javax.swing.Timer;
+import javax.swing.table.AbstractTableModel;
 import javax.swing.text.BadLocationException;
 import java.awt.*;
 import java.awt.event.*;
@@ -19,108 +26,225 @@ import java.io.File;
 import java.io.IOException;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.stream.Collectors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 public class NLPRuleSetGenerationProgress extends JDialog {
 
-    public static Map<String, Set<String>> rulesets;
+    public static RulesetStore rulesets;
 
+    // What the stored rulesets were generated from. Kept for the whole session along with the resolver, browser and
+    // rulesets, so that regenerating after editing the CQL only resolves value sets that were added or changed
+    private static final Map<String, GeneratedValueSet> generated = new ConcurrentHashMap<>();
+    private static ValueSetResolver rls;
+    private static UMLSBrowser session;
+
+    // Resolution of the progress bar
+    private static final int PROGRESS_SCALE = 1000;
+    // How far back the request rate is measured
+    private static final long RATE_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    // Value sets are generated concurrently, their lookups are fanned out on a separately bounded executor so that
+    // value sets waiting on lookups never hold up the lookups themselves
+    private final ExecutorService valueSetPool =
+            IOExecutors.newExecutor("cql2nlp-valuesets", BatchRulesetGenerator.PARALLELISM_PROPERTY, 16);
+    private final ExecutorService lookupPool =
+            IOExecutors.newExecutor("cql2nlp-lookups", IOExecutors.PARALLELISM_PROPERTY, 16);
+    private final TaskScope run = new TaskScope(valueSetPool);
+    // Pins every CUI this run looks up, so value sets sharing CUIs (e.g. heart failure variants) only fetch each of
+    // them once. Closed once the run is done, later runs start from the session browser's terminology service and its
+    // disk cache
+    private final UMLSBrowser oet;
+    private final ValueSetTableModel tableModel = new ValueSetTableModel();
+    private final Timer refreshTimer;
+    private final long startNanos = System.nanoTime();
+    // Samples of {System.nanoTime(), HTTP requests made so far} over the last RATE_WINDOW_NANOS
+    private final Deque<long[]> requestSamples = new ArrayDeque<>();
     private JPanel currentProgressText;
+    private JLabel statusLabel;
+    private JProgressBar progressBar;
+    private JTable valueSetTable;
     private JButton abortButton;
 
     public NLPRuleSetGenerationProgress() {
         setContentPane(currentProgressText);
         setModal(true);
 
-        // call onCancel() when cross is clicked
+        // call onAbort() when cross is clicked
         setDefaultCloseOperation(DO_NOTHING_ON_CLOSE);
         addWindowListener(new WindowAdapter() {
             public void windowClosing(WindowEvent e) {
-                System.exit(0);
+                onAbort();
             }
         });
 
-        // call onCancel() on ESCAPE
+        // call onAbort() on ESCAPE
         currentProgressText.registerKeyboardAction(new ActionListener() {
             public void actionPerformed(ActionEvent e) {
-                System.exit(0);
+                onAbort();
             }
         }, KeyStroke.getKeyStroke(KeyEvent.VK_ESCAPE, 0), JComponent.WHEN_ANCESTOR_OF_FOCUSED_COMPONENT);
 
-        ValueSetResolver rls = new ValueSetResolver(GUI.utsUser, new String(GUI.utsPass));
-        UMLSBrowser oet = new UMLSBrowser(GUI.utsUser, new String(GUI.utsPass));
-        rulesets = new ConcurrentHashMap<>();
-        ConcurrentHashMap<String, Set<String>> cuiSets = new ConcurrentHashMap<>();
-        SwingWorker<Void, Object> worker = new SwingWorker<Void, Object>() {
+        if (rls == null) {
+            rls = new ValueSetResolver(GUI.utsUser, new String(GUI.utsPass));
+            session = createUMLSBrowser();
+            rulesets = new RulesetStore();
+        }
+        oet = session.forRun();
+        // Metrics, including the request rate shown below, cover this run only rather than the whole session
+        Metrics.get().reset();
+        // Every value set is listed up front, in the order they are started
+        List<String> ids = new ArrayList<>(CQLEditing.valueSetsToResolve.keySet());
+        Collections.sort(ids);
+        tableModel.setValueSets(ids);
+        valueSetTable.setModel(tableModel);
+        progressBar.setMaximum(PROGRESS_SCALE);
+        refreshSummary();
+        // Keeps the rates, ETA and running times current while no value set is making progress
+        refreshTimer = new Timer(1000, e -> {
+            refreshSummary();
+            valueSetTable.repaint();
+        });
+        new GenerationWorker(ids).execute();
+        refreshTimer.start();
+        abortButton.addActionListener(new ActionListener() {
             @Override
-            protected Void doInBackground() {
-                try {
-                    CQLEditing.valueSetsToResolve.forEach((id, oid) -> {
-                        try {
-                            ValueSet vs = rls.getValueSetForOID(oid);
-                            Set<CodifiedValueSetElement> codes = rls.resolveValueSetCodes(vs);
-                            Set<String> displayNames = ConcurrentHashMap.newKeySet();
-                            for (CodifiedValueSetElement element : codes) {
-                                Set<CodifiedValueSetElement> vals = null;
-                                try {
-                                    vals = oet.getCUIsForValueSetElement(element, true);
-                                } catch (JsonProcessingException e) {
-                                    e.printStackTrace();
-                                    continue;
-                                }
-                                new ArrayList<>(vals).parallelStream().forEach(
-                                        val -> {
-                                            try {
-                                                oet.getDisplayNamesForCUI(val.getCode()).stream().map(s -> val.getCode() + "|" + s).forEach(displayNames::add);
-                                            } catch (JsonProcessingException e) {
-                                                e.printStackTrace();
-                                            }
-                                        }
-                                );
-                                cuiSets.computeIfAbsent(id, k -> ConcurrentHashMap.newKeySet())
-                                        .addAll(vals.stream()
-                                                .filter(c -> c.getCodeSystem().equals(VSACCodeSystem.UMLS))
-                                                .map(CodifiedValueSetElement::getCode).collect(Collectors.toSet())
-                                        );
-                            }
-
-                            rulesets.put(id, displayNames);
-                        } catch (Throwable t) {
-                            t.printStackTrace();
-                        }
-                    });
-                    ObjectWriter ow = new ObjectMapper().writerWithDefaultPrettyPrinter();
-                    try {
-                        ow.writeValue(new File("cui_mappings.json"), cuiSets);
-                    } catch (Throwable t) {
-                        t.printStackTrace();
-                    }
-                    synchronized (GUI.nextPhaseFlag) {
-                        GUI.nextPhaseFlag.set(true);
-                        GUI.nextPhaseFlag.notifyAll();
-                    }
-                    dispose();
-                } catch (Throwable ex) {
-                    ex.printStackTrace();
-                    JOptionPane.showMessageDialog(null, "An error occurred, please check your console");
-                }
-                return null;
+            public void actionPerformed(ActionEvent e) {
+                onAbort();
             }
+        });
+    }
+
+    /**
+     * Releases the resolver and browser kept for the session, once no more rulesets will be generated
+     */
+    public static void closeSession() {
+        if (rls != null) {
+            rls.close();
+            session.close();
+            rls = null;
+            session = null;
+        }
+    }
 
-            // Can safely update the GUI from this method.
-            protected void process(List<Object> chunks) {
+    /*
+     * Interrupts in-flight lookups, value sets that have already finished are kept and passed on to the editor once the
+     * others have stopped. The dialog closes itself at that point
+     */
+    private void onAbort() {
+        abortButton.setEnabled(false);
+        abortButton.setText("Aborting...");
+        run.cancel();
+    }
 
+    /*
+     * Updates the summary line and progress bar from the table, on the event dispatch thread
+     */
+    private void refreshSummary() {
+        long now = System.nanoTime();
+        int done = 0;
+        int reused = 0;
+        int failed = 0;
+        int cancelled = 0;
+        int running = 0;
+        long cuis = 0;
+        double progress = 0;
+        for (ValueSetRow row : tableModel.rows) {
+            if (row.stage.isReused()) {
+                // Took no time in this run, so they count towards neither the rates nor the ETA
+                reused++;
+                continue;
             }
-        };
-        worker.execute();
-        abortButton.addActionListener(new ActionListener() {
-            @Override
-            public void actionPerformed(ActionEvent e) {
-                System.exit(0);
+            if (row.stage == Stage.DONE) {
+                done++;
+            } else if (row.stage == Stage.FAILED) {
+                failed++;
+            } else if (row.stage == Stage.CANCELLED) {
+                cancelled++;
+            } else if (row.stage != Stage.QUEUED) {
+                running++;
             }
-        });
+            // Value sets in progress count by the share of their elements that have been looked up
+            if (row.stage.isFinished()) {
+                progress++;
+            } else if (row.elements > 0) {
+                progress += row.elementsDone / (double) row.elements;
+            }
+            cuis += row.cuis;
+        }
+        int total = tableModel.rows.size();
+        double fraction = total == reused ? 1 : progress / (total - reused);
+        long elapsed = now - startNanos;
+        double elapsedSeconds = elapsed / 1e9;
+        progressBar.setValue((int) Math.round((reused + progress) / Math.max(total, 1) * PROGRESS_SCALE));
+        String eta = "";
+        if (fraction > 0 && fraction < 1) {
+            eta = ", about " + formatDuration((long) (elapsed * (1 - fraction) / fraction)) + " left";
+        }
+        progressBar.setString(Math.round((reused + progress) * 100 / Math.max(total, 1)) + "%" + eta);
+        statusLabel.setText(String.format("%d of %d value sets done%s, %d running%s%s - %,d CUIs (%.1f/s), %.1f requests/s, %s elapsed",
+                done + reused, total, reused > 0 ? " (" + reused + " reused)" : "", running,
+                failed > 0 ? ", " + failed + " failed" : "", cancelled > 0 ? ", " + cancelled + " cancelled" : "",
+                cuis, elapsedSeconds > 0 ? cuis / elapsedSeconds : 0, requestRate(now), formatDuration(elapsed)));
+    }
+
+    /*
+     * HTTP requests per second to UTS and VSAC over the last RATE_WINDOW_NANOS, cache hits are not counted
+     */
+    private double requestRate(long now) {
+        requestSamples.addLast(new long[]{now, Metrics.get().getCount("http_requests_total")});
+        while (requestSamples.size() > 2 && now - requestSamples.peekFirst()[0] > RATE_WINDOW_NANOS) {
+            requestSamples.removeFirst();
+        }
+        long[] oldest = requestSamples.peekFirst();
+        long nanos = now - oldest[0];
+        return nanos == 0 ? 0 : (requestSamples.peekLast()[1] - oldest[1]) * 1e9 / nanos;
+    }
+
+    private static String formatDuration(long nanos) {
+        long seconds = TimeUnit.NANOSECONDS.toSeconds(nanos);
+        return String.format("%d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60);
+    }
+
+    /*
+     * Compares the value sets to generate with those of the session's earlier runs by identifier, OID and version. The
+     * rulesets and edits of value sets that were removed or changed are dropped, so that only those are generated again
+     */
+    private static void discardChangedValueSets() {
+        for (String id : rulesets.getValueSetIds()) {
+            ValueSetDefinition def = CQLEditing.valueSetsToResolve.get(id);
+            GeneratedValueSet previous = generated.get(id);
+            // Rulesets without a definition are left over from a value set that was cancelled while being written
+            if (previous == null || !previous.definition.equals(def)) {
+                rulesets.remove(id);
+                generated.remove(id);
+                NLPRulesetEditor.discardEdits(id);
+            }
+        }
+    }
+
+    private CheckpointJournal openJournal() {
+        try {
+            // Entries are only reused for the release and backend this run looks CUIs up in
+            return CheckpointJournal.open(CheckpointJournal.getDefaultFile(), oet.getRelease(), oet.getBackend());
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private static UMLSBrowser createUMLSBrowser() {
+        try {
+            return UMLSBrowser.create(GUI.utsUser, new String(GUI.utsPass));
+        } catch (IOException e) {
+            e.printStackTrace();
+            JOptionPane.showMessageDialog(null, "Could not load the local UMLS installation, falling back to UTS");
+            return new UMLSBrowser(GUI.utsUser, new String(GUI.utsPass));
+        }
     }
 
     {
@@ -139,13 +263,20 @@ public class NLPRuleSetGenerationProgress extends JDialog {
      */
     private void $$$setupUI$$$() {
         currentProgressText = new JPanel();
-        currentProgressText.setLayout(new GridLayoutManager(2, 1, new Insets(0, 0, 0, 0), -1, -1));
-        final JLabel label1 = new JLabel();
-        label1.setText("Generating NLP Rulesets for Specified Valuesets...");
-        currentProgressText.add(label1, new GridConstraints(0, 0, 1, 1, GridConstraints.ANCHOR_WEST, GridConstraints.FILL_NONE, GridConstraints.SIZEPOLICY_FIXED, GridConstraints.SIZEPOLICY_FIXED, null, null, null, 0, false));
+        currentProgressText.setLayout(new GridLayoutManager(4, 1, new Insets(0, 0, 0, 0), -1, -1));
+        statusLabel = new JLabel();
+        statusLabel.setText("Generating NLP Rulesets for Specified Valuesets...");
+        currentProgressText.add(statusLabel, new GridConstraints(0, 0, 1, 1, GridConstraints.ANCHOR_WEST, GridConstraints.FILL_HORIZONTAL, GridConstraints.SIZEPOLICY_CAN_SHRINK | GridConstraints.SIZEPOLICY_CAN_GROW, GridConstraints.SIZEPOLICY_FIXED, null, null, null, 0, false));
+        progressBar = new JProgressBar();
+        progressBar.setStringPainted(true);
+        currentProgressText.add(progressBar, new GridConstraints(1, 0, 1, 1, GridConstraints.ANCHOR_CENTER, GridConstraints.FILL_HORIZONTAL, GridConstraints.SIZEPOLICY_CAN_GROW | GridConstraints.SIZEPOLICY_WANT_GROW, GridConstraints.SIZEPOLICY_FIXED, null, null, null, 0, false));
+        final JScrollPane scrollPane1 = new JScrollPane();
+        currentProgressText.add(scrollPane1, new GridConstraints(2, 0, 1, 1, GridConstraints.ANCHOR_CENTER, GridConstraints.FILL_BOTH, GridConstraints.SIZEPOLICY_CAN_SHRINK | GridConstraints.SIZEPOLICY_WANT_GROW, GridConstraints.SIZEPOLICY_CAN_SHRINK | GridConstraints.SIZEPOLICY_WANT_GROW, null, new Dimension(600, 300), null, 0, false));
+        valueSetTable = new JTable();
+        scrollPane1.setViewportView(valueSetTable);
         final JPanel panel1 = new JPanel();
         panel1.setLayout(new GridLayoutManager(1, 1, new Insets(0, 0, 0, 0), -1, -1));
-        currentProgressText.add(panel1, new GridConstraints(1, 0, 1, 1, GridConstraints.ANCHOR_CENTER, GridConstraints.FILL_BOTH, GridConstraints.SIZEPOLICY_CAN_SHRINK | GridConstraints.SIZEPOLICY_CAN_GROW, GridConstraints.SIZEPOLICY_CAN_SHRINK | GridConstraints.SIZEPOLICY_CAN_GROW, null, null, null, 0, false));
+        currentProgressText.add(panel1, new GridConstraints(3, 0, 1, 1, GridConstraints.ANCHOR_CENTER, GridConstraints.FILL_BOTH, GridConstraints.SIZEPOLICY_CAN_SHRINK | GridConstraints.SIZEPOLICY_CAN_GROW, GridConstraints.SIZEPOLICY_CAN_SHRINK | GridConstraints.SIZEPOLICY_CAN_GROW, null, null, null, 0, false));
         abortButton = new JButton();
         abortButton.setText("Abort");
         panel1.add(abortButton, new GridConstraints(0, 0, 1, 1, GridConstraints.ANCHOR_CENTER, GridConstraints.FILL_HORIZONTAL, GridConstraints.SIZEPOLICY_CAN_SHRINK | GridConstraints.SIZEPOLICY_CAN_GROW, GridConstraints.SIZEPOLICY_FIXED, null, null, null, 0, false));
@@ -158,4 +289,347 @@ public class NLPRuleSetGenerationProgress extends JDialog {
         return currentProgressText;
     }
 
+    private class GenerationWorker extends SwingWorker<Void, ProgressEvent> {
+        private final List<String> ids;
+        private final List<String> failed = Collections.synchronizedList(new ArrayList<>());
+        private volatile boolean aborted;
+
+        private GenerationWorker(List<String> ids) {
+            this.ids = ids;
+        }
+
+        @Override
+        protected Void doInBackground() {
+            discardChangedValueSets();
+            // Without a journal the run works the same, it just cannot be resumed
+            CheckpointJournal journal = openJournal();
+            // Each value set's CUIs are written out as soon as it is finished rather than all at the end
+            try (StreamingRulesetWriter cuiWriter = new StreamingRulesetWriter(new File(GUI.getOutputDir(), "cui_mappings.json"))) {
+                for (String id : ids) {
+                    ValueSetDefinition def = CQLEditing.valueSetsToResolve.get(id);
+                    GeneratedValueSet unchanged = generated.get(id);
+                    if (unchanged != null) {
+                        // Generated earlier in this session from the same definition, its ruleset and any edits made
+                        // to it are kept as they are
+                        cuiWriter.writeSorted(id, unchanged.getCuis());
+                        publish(new ProgressEvent(id, Stage.UNCHANGED, unchanged.elements, unchanged.elements,
+                                unchanged.cuis.size()));
+                        continue;
+                    }
+                    CheckpointJournal.Entry finished = journal == null ? null : journal.get(id, def);
+                    if (finished != null) {
+                        // Finished by an earlier run that crashed or was aborted
+                        rulesets.put(id, finished.getDisplayNames());
+                        cuiWriter.writeSorted(id, finished.getCuis());
+                        int elements = finished.getCodes().size();
+                        generated.put(id, new GeneratedValueSet(def, elements, finished.getCuis()));
+                        publish(new ProgressEvent(id, Stage.RESUMED, elements, elements, finished.getCuis().size()));
+                        continue;
+                    }
+                    run.fork(() -> {
+                        try {
+                            generateRuleset(id, def, cuiWriter, journal);
+                        } catch (Throwable t) {
+                            // A failed value set is reported once the others are done, it does not cancel them
+                            if (run.isCancelled()) {
+                                publish(new ProgressEvent(id, Stage.CANCELLED, 0, 0, 0));
+                            } else {
+                                t.printStackTrace();
+                                failed.add(id);
+                                publish(new ProgressEvent(id, Stage.FAILED, 0, 0, 0));
+                            }
+                        }
+                        return null;
+                    });
+                }
+                run.join();
+                if (journal != null && failed.isEmpty()) {
+                    // Every value set is finished, so there is nothing left to resume
+                    try {
+                        journal.delete();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            } catch (CancellationException e) {
+                aborted = true;
+            } catch (Throwable t) {
+                t.printStackTrace();
+            } finally {
+                valueSetPool.shutdownNow();
+                lookupPool.shutdownNow();
+                // Leaves the relation fetch threads to the session browser
+                oet.close();
+                if (journal != null) {
+                    try {
+                        journal.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+            // Alongside cui_mappings.json
+            try {
+                Metrics.get().writeSnapshot(GUI.getOutputDir().toPath());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            return null;
+        }
+
+        private void generateRuleset(String id, ValueSetDefinition def, StreamingRulesetWriter cuiWriter,
+                                     CheckpointJournal journal) throws IOException {
+            publish(new ProgressEvent(id, Stage.EXPANDING, 0, 0, 0));
+            // Memoized by OID and version, so definitions sharing a value set reuse one expansion
+            long start = System.nanoTime();
+            Set<CodifiedValueSetElement> codes = rls.expand(def.getOid(), def.getVersion()).getCodes();
+            Metrics.get().recordValueSetStage(id, "expand", System.nanoTime() - start);
+            int elements = codes.size();
+            publish(new ProgressEvent(id, Stage.LOOKING_UP, 0, elements, 0));
+            // Summed over the value set's concurrent lookups, so these can exceed the value set's elapsed time
+            LongAdder cuiNanos = new LongAdder();
+            LongAdder displayNameNanos = new LongAdder();
+            AtomicInteger elementsDone = new AtomicInteger();
+            // Atom names per CUI are the browser's cached sets, terms are only built when read
+            Map<String, Set<String>> displayNames = new ConcurrentHashMap<>();
+            Set<String> cuis = ConcurrentHashMap.newKeySet();
+            // Lookup failures have already been retried, the first one cancels the value set's remaining lookups and
+            // fails the whole value set rather than leave its ruleset incomplete
+            try (TaskScope lookups = new TaskScope(lookupPool)) {
+                for (CodifiedValueSetElement element : codes) {
+                    lookups.fork(() -> {
+                        long stageStart = System.nanoTime();
+                        Set<CodifiedValueSetElement> vals = oet.getCUIsForValueSetElement(element, true);
+                        cuiNanos.add(System.nanoTime() - stageStart);
+                        stageStart = System.nanoTime();
+                        for (CodifiedValueSetElement val : vals) {
+                            displayNames.put(val.getCode(), oet.getDisplayNamesForCUI(val.getCode()));
+                            if (val.getCodeSystem().equals(VSACCodeSystem.UMLS)) {
+                                cuis.add(val.getCode());
+                            }
+                        }
+                        displayNameNanos.add(System.nanoTime() - stageStart);
+                        publish(new ProgressEvent(id, Stage.LOOKING_UP, elementsDone.incrementAndGet(), elements, cuis.size()));
+                        return null;
+                    });
+                }
+                lookups.join();
+            }
+            Metrics.get().recordValueSetStage(id, "cuis", cuiNanos.sum());
+            Metrics.get().recordValueSetStage(id, "display_names", displayNameNanos.sum());
+            rulesets.put(id, displayNames);
+            long writeStart = System.nanoTime();
+            cuiWriter.writeSorted(id, cuis);
+            if (journal != null) {
+                try {
+                    journal.append(id, def, codes, cuis, displayNames);
+                } catch (IOException e) {
+                    // The ruleset itself is complete, it would only have to be generated again after a restart
+                    e.printStackTrace();
+                }
+            }
+            Metrics.get().recordValueSetStage(id, "write", System.nanoTime() - writeStart);
+            generated.put(id, new GeneratedValueSet(def, elements, cuis));
+            publish(new ProgressEvent(id, Stage.DONE, elements, elements, cuis.size()));
+        }
+
+        // Can safely update the GUI from this method.
+        @Override
+        protected void process(List<ProgressEvent> chunks) {
+            chunks.forEach(tableModel::apply);
+            refreshSummary();
+        }
+
+        @Override
+        protected void done() {
+            refreshTimer.stop();
+            // Value sets that were still queued or running when aborted
+            tableModel.finish();
+            refreshSummary();
+            try {
+                synchronized (GUI.nextPhaseFlag) {
+                    GUI.nextPhaseFlag.set(true);
+                    GUI.nextPhaseFlag.notifyAll();
+                }
+                dispose();
+                if (aborted) {
+                    JOptionPane.showMessageDialog(null, "Generation was aborted, continuing with the rulesets of the "
+                            + rulesets.getValueSetIds().size() + " of " + ids.size() + " value sets that were finished");
+                }
+                if (!failed.isEmpty()) {
+                    JOptionPane.showMessageDialog(null, "Could not generate rulesets for " + String.join(", ", failed)
+                            + ", please check your console");
+                }
+            } catch (Throwable ex) {
+                ex.printStackTrace();
+                JOptionPane.showMessageDialog(null, "An error occurred, please check your console");
+            }
+        }
+    }
+
+    private enum Stage {
+        QUEUED("Queued"),
+        EXPANDING("Expanding"),
+        LOOKING_UP("Looking up CUIs"),
+        DONE("Done"),
+        UNCHANGED("Unchanged"),
+        RESUMED("Resumed from checkpoint"),
+        FAILED("Failed"),
+        CANCELLED("Cancelled");
+
+        private final String label;
+
+        Stage(String label) {
+            this.label = label;
+        }
+
+        private boolean isFinished() {
+            return this == DONE || isReused() || this == FAILED || this == CANCELLED;
+        }
+
+        /*
+         * Finished without any work in this run
+         */
+        private boolean isReused() {
+            return this == UNCHANGED || this == RESUMED;
+        }
+    }
+
+    /*
+     * A value set's progress, published from the worker's threads and applied to the table on the event dispatch thread
+     */
+    private static final class ProgressEvent {
+        private final String valueSetId;
+        private final Stage stage;
+        private final int elementsDone;
+        private final int elements;
+        private final int cuis;
+        private final long nanos = System.nanoTime();
+
+        private ProgressEvent(String valueSetId, Stage stage, int elementsDone, int elements, int cuis) {
+            this.valueSetId = valueSetId;
+            this.stage = stage;
+            this.elementsDone = elementsDone;
+            this.elements = elements;
+            this.cuis = cuis;
+        }
+    }
+
+    private static final class ValueSetRow {
+        private final String valueSetId;
+        private Stage stage = Stage.QUEUED;
+        private int elementsDone;
+        private int elements;
+        private int cuis;
+        private long startNanos;
+        private long endNanos;
+
+        private ValueSetRow(String valueSetId) {
+            this.valueSetId = valueSetId;
+        }
+    }
+
+    /*
+     * A value set whose ruleset is in the store, with what is needed to write it out again without regenerating it
+     */
+    private static final class GeneratedValueSet {
+        private final ValueSetDefinition definition;
+        private final int elements;
+        private final CodeSet cuis;
+
+        private GeneratedValueSet(ValueSetDefinition definition, int elements, Collection<String> cuis) {
+            this.definition = definition;
+            this.elements = elements;
+            CodeSet set = new CodeSet();
+            cuis.forEach(cui -> set.add(VSACCodeSystem.UMLS, cui));
+            this.cuis = set.freeze();
+        }
+
+        private List<String> getCuis() {
+            List<String> ret = new ArrayList<>(cuis.size());
+            cuis.forEach(cui -> ret.add(cui.getCode()));
+            return ret;
+        }
+    }
+
+    private static class ValueSetTableModel extends AbstractTableModel {
+        private static final String[] COLUMNS = {"Value Set", "Status", "Elements", "CUIs", "Time"};
+
+        private final List<ValueSetRow> rows = new ArrayList<>();
+        private final Map<String, Integer> indices = new HashMap<>();
+
+        private void setValueSets(List<String> ids) {
+            for (String id : ids) {
+                indices.put(id, rows.size());
+                rows.add(new ValueSetRow(id));
+            }
+            fireTableDataChanged();
+        }
+
+        private void apply(ProgressEvent event) {
+            int idx = indices.get(event.valueSetId);
+            ValueSetRow row = rows.get(idx);
+            // Lookups of a value set report from several threads, and may still report after it has failed
+            if (row.stage.isFinished()) {
+                return;
+            }
+            if (row.stage == Stage.QUEUED) {
+                row.startNanos = event.nanos;
+            }
+            row.stage = event.stage;
+            if (event.stage.isFinished()) {
+                row.endNanos = event.nanos;
+            }
+            row.elements = Math.max(row.elements, event.elements);
+            row.elementsDone = Math.max(row.elementsDone, event.elementsDone);
+            row.cuis = Math.max(row.cuis, event.cuis);
+            fireTableRowsUpdated(idx, idx);
+        }
+
+        private void finish() {
+            long now = System.nanoTime();
+            for (ValueSetRow row : rows) {
+                if (!row.stage.isFinished()) {
+                    row.stage = Stage.CANCELLED;
+                    row.endNanos = now;
+                }
+            }
+            fireTableDataChanged();
+        }
+
+        @Override
+        public int getRowCount() {
+            return rows.size();
+        }
+
+        @Override
+        public int getColumnCount() {
+            return COLUMNS.length;
+        }
+
+        @Override
+        public String getColumnName(int column) {
+            return COLUMNS[column];
+        }
+
+        @Override
+        public Object getValueAt(int rowIndex, int columnIndex) {
+            ValueSetRow row = rows.get(rowIndex);
+            switch (columnIndex) {
+                case 0:
+                    return row.valueSetId;
+                case 1:
+                    return row.stage.label;
+                case 2:
+                    return row.elements == 0 ? "" : row.elementsDone + " / " + row.elements;
+                case 3:
+                    return row.stage == Stage.QUEUED ? "" : String.valueOf(row.cuis);
+                default:
+                    if (row.startNanos == 0) {
+                        return "";
+                    }
+                    return formatDuration((row.endNanos == 0 ? System.nanoTime() : row.endNanos) - row.startNanos);
+            }
+        }
+    }
 }
@@ -1,10 +1,10 @@
 package edu.mayo.dhs.cql2nlp.gui;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.ObjectWriter;
 import com.intellij.uiDesigner.core.GridConstraints;
 import com.intellij.uiDesigner.core.GridLayoutManager;
 import com.intellij.uiDesigner.core.Spacer;
+import edu.mayo.hsr.dhs.cql2nlp.StreamingRulesetWriter;
+import edu.mayo.hsr.dhs.cql2nlp.structs.RulesetStore;
 
 import javax.swing.*;
 import javax.swing.event.ListSelectionEvent;
@@ -15,12 +15,15 @@ import java.awt.event.*;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class NLPRulesetEditor extends JDialog {
-    private final Map<String, java.util.List<String>> rulesets;
+    // Editable copies of only the value sets the user has changed, the rest are read straight from the store. Kept
+    // across regenerations until the value set's ruleset is regenerated or removed
+    private static final Map<String, java.util.List<String>> edits = new ConcurrentHashMap<>();
+    private final RulesetStore rulesets;
     private final RuleSetTableModel tableModel;
     private JPanel panel1;
     private JList<String> valueSetSelector;
@@ -28,7 +31,8 @@ public class NLPRulesetEditor extends JDialog {
     private JButton button1;
     private JButton button2;
     private JButton finalizeAndExportRulesetButton;
-    private java.util.List<String> currEditingList;
+    private JButton regenerateButton;
+    private String currEditingId;
 
     public NLPRulesetEditor() {
         setContentPane(panel1);
@@ -49,49 +53,92 @@ public class NLPRulesetEditor extends JDialog {
             }
         }, KeyStroke.getKeyStroke(KeyEvent.VK_ESCAPE, 0), JComponent.WHEN_ANCESTOR_OF_FOCUSED_COMPONENT);
 
-        rulesets = new HashMap<>();
-        ArrayList<String> vals = new ArrayList<>(NLPRuleSetGenerationProgress.rulesets.keySet());
-        vals.sort(String::compareTo);
+        // Stored rulesets are already sorted, neither the identifiers nor the terms need sorting here
+        rulesets = NLPRuleSetGenerationProgress.rulesets;
+        java.util.List<String> vals = rulesets.getValueSetIds();
         valueSetSelector.setListData(vals.toArray(new String[0]));
         if (vals.size() > 0) {
             valueSetSelector.setSelectedIndex(0);
-            NLPRuleSetGenerationProgress.rulesets.forEach((k, v) -> {
-                ArrayList<String> list = new ArrayList<>(v);
-                list.sort(String::compareTo);
-                rulesets.put(k, list);
-            });
-            currEditingList = rulesets.get(valueSetSelector.getSelectedValue());
-        } else {
-            currEditingList = new ArrayList<>();
+            currEditingId = valueSetSelector.getSelectedValue();
         }
         this.tableModel = new RuleSetTableModel();
         this.editableValueList.setModel(tableModel);
         button2.addActionListener(e -> {
-            currEditingList.add("");
+            editableList().add("");
             tableModel.fireTableDataChanged();
         });
-        button1.addActionListener(e -> currEditingList.remove(editableValueList.getSelectedRow()));
+        button1.addActionListener(e -> {
+            if (editableValueList.getSelectedRow() >= 0) {
+                editableList().remove(editableValueList.getSelectedRow());
+                tableModel.fireTableDataChanged();
+            }
+        });
         finalizeAndExportRulesetButton.addActionListener(e -> {
-            ObjectWriter ow = new ObjectMapper().writerWithDefaultPrettyPrinter();
-            try {
-                ow.writeValue(new File("nlp_export.json"), rulesets);
-                synchronized (GUI.nextPhaseFlag) {
-                    GUI.nextPhaseFlag.set(true);
-                    GUI.nextPhaseFlag.notifyAll();
+            try (StreamingRulesetWriter writer = new StreamingRulesetWriter(new File(GUI.getOutputDir(), "nlp_export.json"))) {
+                for (String id : rulesets.getValueSetIds()) {
+                    // Stored rulesets are already sorted, edited ones may have had rules appended
+                    if (edits.containsKey(id)) {
+                        writer.writeSorted(id, edits.get(id));
+                    } else {
+                        writer.write(id, rulesets.get(id));
+                    }
                 }
-                dispose();
             } catch (IOException ioException) {
                 ioException.printStackTrace();
+                return;
+            }
+            synchronized (GUI.nextPhaseFlag) {
+                GUI.nextPhaseFlag.set(true);
+                GUI.nextPhaseFlag.notifyAll();
             }
+            dispose();
+        });
+        regenerateButton.addActionListener(e -> {
+            // Back to the CQL, edits stay with the rulesets they were made to
+            if (editableValueList.isEditing()) {
+                editableValueList.getCellEditor().stopCellEditing();
+            }
+            GUI.regenerateFlag.set(true);
+            synchronized (GUI.nextPhaseFlag) {
+                GUI.nextPhaseFlag.set(true);
+                GUI.nextPhaseFlag.notifyAll();
+            }
+            dispose();
         });
         valueSetSelector.addListSelectionListener(new ListSelectionListener() {
             @Override
             public void valueChanged(ListSelectionEvent e) {
-                currEditingList = rulesets.get(e.getFirstIndex());
+                currEditingId = valueSetSelector.getSelectedValue();
+                tableModel.fireTableDataChanged();
             }
         });
     }
 
+    /**
+     * Drops the edits made to a value set's ruleset, e.g. as it is about to be regenerated
+     */
+    static void discardEdits(String valueSetId) {
+        edits.remove(valueSetId);
+    }
+
+    private java.util.List<String> currEditingList() {
+        if (currEditingId == null) {
+            return Collections.emptyList();
+        }
+        java.util.List<String> edited = edits.get(currEditingId);
+        return edited != null ? edited : rulesets.get(currEditingId);
+    }
+
+    /*
+     * Copies the current value set out of the store on its first edit
+     */
+    private java.util.List<String> editableList() {
+        if (currEditingId == null) {
+            throw new IllegalStateException("No value set selected");
+        }
+        return edits.computeIfAbsent(currEditingId, id -> new ArrayList<>(rulesets.get(id)));
+    }
+
     {
 // GUI initializer generated by IntelliJ IDEA GUI Designer
 // >>> IMPORTANT!! <<<
@@ -108,7 +155,7 @@ public class NLPRulesetEditor extends JDialog {
      */
     private void $$$setupUI$$$() {
         panel1 = new JPanel();
-        panel1.setLayout(new GridLayoutManager(2, 1, new Insets(0, 0, 0, 0), -1, -1));
+        panel1.setLayout(new GridLayoutManager(3, 1, new Insets(0, 0, 0, 0), -1, -1));
         final JSplitPane splitPane1 = new JSplitPane();
         panel1.add(splitPane1, new GridConstraints(0, 0, 1, 1, GridConstraints.ANCHOR_CENTER, GridConstraints.FILL_BOTH, GridConstraints.SIZEPOLICY_CAN_SHRINK | GridConstraints.SIZEPOLICY_CAN_GROW, GridConstraints.SIZEPOLICY_CAN_SHRINK | GridConstraints.SIZEPOLICY_CAN_GROW, null, new Dimension(200, 200), null, 0, false));
         final JScrollPane scrollPane1 = new JScrollPane();
@@ -130,9 +177,12 @@ public class NLPRulesetEditor extends JDialog {
         panel2.add(button2, new GridConstraints(1, 2, 1, 1, GridConstraints.ANCHOR_CENTER, GridConstraints.FILL_HORIZONTAL, GridConstraints.SIZEPOLICY_CAN_SHRINK | GridConstraints.SIZEPOLICY_CAN_GROW, GridConstraints.SIZEPOLICY_FIXED, null, null, null, 0, false));
         final Spacer spacer1 = new Spacer();
         panel2.add(spacer1, new GridConstraints(1, 0, 1, 1, GridConstraints.ANCHOR_CENTER, GridConstraints.FILL_HORIZONTAL, GridConstraints.SIZEPOLICY_WANT_GROW, 1, null, null, null, 0, false));
+        regenerateButton = new JButton();
+        regenerateButton.setText("Edit CQL and Regenerate");
+        panel1.add(regenerateButton, new GridConstraints(1, 0, 1, 1, GridConstraints.ANCHOR_CENTER, GridConstraints.FILL_HORIZONTAL, GridConstraints.SIZEPOLICY_CAN_SHRINK | GridConstraints.SIZEPOLICY_CAN_GROW, GridConstraints.SIZEPOLICY_FIXED, null, null, null, 0, false));
         finalizeAndExportRulesetButton = new JButton();
         finalizeAndExportRulesetButton.setText("Finalize and Export Ruleset");
-        panel1.add(finalizeAndExportRulesetButton, new GridConstraints(1, 0, 1, 1, GridConstraints.ANCHOR_CENTER, GridConstraints.FILL_HORIZONTAL, GridConstraints.SIZEPOLICY_CAN_SHRINK | GridConstraints.SIZEPOLICY_CAN_GROW, GridConstraints.SIZEPOLICY_FIXED, null, null, null, 0, false));
+        panel1.add(finalizeAndExportRulesetButton, new GridConstraints(2, 0, 1, 1, GridConstraints.ANCHOR_CENTER, GridConstraints.FILL_HORIZONTAL, GridConstraints.SIZEPOLICY_CAN_SHRINK | GridConstraints.SIZEPOLICY_CAN_GROW, GridConstraints.SIZEPOLICY_FIXED, null, null, null, 0, false));
     }
 
     /**
@@ -146,7 +196,7 @@ public class NLPRulesetEditor extends JDialog {
 
         @Override
         public int getRowCount() {
-            return currEditingList.size();
+            return currEditingList().size();
         }
 
         @Override
@@ -156,7 +206,7 @@ public class NLPRulesetEditor extends JDialog {
 
         @Override
         public String getValueAt(int rowIndex, int columnIndex) {
-            return currEditingList.get(rowIndex);
+            return currEditingList().get(rowIndex);
         }
 
         @Override
@@ -166,7 +216,7 @@ public class NLPRulesetEditor extends JDialog {
 
         @Override
         public void setValueAt(Object aValue, int rowIndex, int columnIndex) {
-            currEditingList.set(rowIndex, aValue.toString());
+            editableList().set(rowIndex, aValue.toString());
         }
     }
 }
@@ -0,0 +1,212 @@
+package edu.mayo.hsr.dhs.cql2nlp.nlp2fhir;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import edu.mayo.hsr.dhs.cql2nlp.nlp2fhir.structs.Mention;
+import edu.mayo.hsr.dhs.cql2nlp.nlp2fhir.structs.Modifiers;
+import edu.mayo.hsr.dhs.cql2nlp.nlp2fhir.structs.Note;
+import org.hl7.fhir.r4.model.Bundle;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Annotates clinical notes with a compiled ruleset and writes the results as FHIR, one Bundle per line (NDJSON). <br/>
+ * <br/>
+ * Reading, matching and serialization run as separate stages connected by bounded queues: a single reader thread
+ * feeds a pool of matching workers (dictionary matching, modifier detection and FHIR rendering), which feed a smaller
+ * pool of serialization workers that encode Bundles and append them to the output. Throughput scales with the number
+ * of cores while the number of notes in memory at any time stays bounded by the queue capacity. Output order is not
+ * guaranteed to follow input order.
+ */
+public class AnnotationPipeline {
+
+    /**
+     * System property controlling the number of matching workers, defaults to the number of available processors
+     */
+    public static final String WORKERS_PROPERTY = "cql2nlp.nlp.workers";
+    /**
+     * System property controlling the capacity of each queue between pipeline stages
+     */
+    public static final String QUEUE_CAPACITY_PROPERTY = "cql2nlp.nlp.queueCapacity";
+
+    private static final AtomicInteger THREAD_ID = new AtomicInteger();
+    private static final Object END = new Object();
+
+    private final DictionaryMatcher matcher;
+    private final ModifierDetector modifierDetector;
+    private final FhirMentionRenderer renderer;
+    private final FhirContext fhirContext = FhirContext.forR4();
+    private final int workers;
+    private final int serializers;
+    private final int queueCapacity;
+
+    /**
+     * @param matcher          The compiled ruleset
+     * @param modifierDetector Determines negation, certainty etc. of each mention, e.g. {@link ModifierDetector#NONE}
+     * @param nlpSystem        Identifies the producing system in the nlp_system extension
+     */
+    public AnnotationPipeline(DictionaryMatcher matcher, ModifierDetector modifierDetector, String nlpSystem) {
+        this.matcher = matcher;
+        this.modifierDetector = modifierDetector;
+        this.renderer = new FhirMentionRenderer(nlpSystem);
+        this.workers = Math.max(1, Integer.getInteger(WORKERS_PROPERTY, Runtime.getRuntime().availableProcessors()));
+        this.serializers = Math.max(1, workers / 4);
+        this.queueCapacity = Math.max(1, Integer.getInteger(QUEUE_CAPACITY_PROPERTY, 256));
+    }
+
+    /**
+     * Annotates every note from a source, blocking until all output has been written
+     *
+     * @param source The notes to annotate
+     * @param out    Receives one FHIR Bundle (JSON) per line
+     * @return Counts and timings for the run
+     * @throws IOException If reading the source or writing the output fails. Notes that fail to annotate are counted
+     *                     and skipped instead
+     */
+    public PipelineSummary run(NoteSource source, Writer out) throws IOException, InterruptedException {
+        PipelineSummary summary = new PipelineSummary();
+        BlockingQueue<Object> notes = new ArrayBlockingQueue<>(queueCapacity);
+        BlockingQueue<Object> bundles = new ArrayBlockingQueue<>(queueCapacity);
+        AtomicReference<IOException> failure = new AtomicReference<>();
+        CountDownLatch matchersDone = new CountDownLatch(workers);
+        List<Thread> threads = new ArrayList<>();
+
+        for (int i = 0; i < workers; i++) {
+            threads.add(start("nlp-match-", () -> {
+                try {
+                    Object next;
+                    while ((next = notes.take()) != END) {
+                        Note note = (Note) next;
+                        try {
+                            List<Mention> mentions = matcher.matchLongest(note.getText());
+                            List<Modifiers> modifiers = modifierDetector.detect(note.getText(), mentions);
+                            bundles.put(renderer.render(note, mentions, modifiers));
+                            summary.mentions.add(mentions.size());
+                        } catch (RuntimeException e) {
+                            System.err.println("Failed to annotate note " + note.getId());
+                            e.printStackTrace();
+                            summary.failed.increment();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    matchersDone.countDown();
+                }
+            }));
+        }
+        for (int i = 0; i < serializers; i++) {
+            threads.add(start("nlp-serialize-", () -> {
+                // HAPI parsers are not thread safe, the context is
+                IParser parser = fhirContext.newJsonParser().setPrettyPrint(false);
+                try {
+                    Object next;
+                    while ((next = bundles.take()) != END) {
+                        String json = parser.encodeResourceToString((Bundle) next);
+                        synchronized (out) {
+                            out.write(json);
+                            out.write('\n');
+                        }
+                        summary.notes.increment();
+                    }
+                } catch (IOException e) {
+                    failure.compareAndSet(null, e);
+                    // Keep the upstream stages from blocking on a full queue once nothing drains it
+                    drainUntilEnd(bundles);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+        }
+
+        try {
+            Note note;
+            while (failure.get() == null && (note = source.next()) != null) {
+                notes.put(note);
+                summary.read.increment();
+            }
+        } finally {
+            for (int i = 0; i < workers; i++) {
+                notes.put(END);
+            }
+            matchersDone.await();
+            for (int i = 0; i < serializers; i++) {
+                bundles.put(END);
+            }
+            for (Thread t : threads) {
+                t.join();
+            }
+            synchronized (out) {
+                out.flush();
+            }
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        summary.finish();
+        return summary;
+    }
+
+    private static void drainUntilEnd(BlockingQueue<Object> queue) {
+        try {
+            while (queue.take() != END) {
+                // Discard
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static Thread start(String prefix, Runnable task) {
+        Thread t = new Thread(task, prefix + THREAD_ID.incrementAndGet());
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+
+    /**
+     * Counts and timings for a pipeline run
+     */
+    public static final class PipelineSummary {
+        private final long start = System.nanoTime();
+        private long elapsedNanos;
+        private final LongAdder read = new LongAdder();
+        private final LongAdder notes = new LongAdder();
+        private final LongAdder failed = new LongAdder();
+        private final LongAdder mentions = new LongAdder();
+
+        private void finish() {
+            elapsedNanos = System.nanoTime() - start;
+        }
+
+        public long getNotes() {
+            return notes.sum();
+        }
+
+        public long getFailed() {
+            return failed.sum();
+        }
+
+        public long getMentions() {
+            return mentions.sum();
+        }
+
+        public long getElapsedMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+        }
+
+        @Override
+        public String toString() {
+            double seconds = Math.max(elapsedNanos / 1e9, 1e-3);
+            return String.format("Annotated %d of %d notes (%d failed) with %d mentions in %.1fs, %.1f notes/s",
+                    getNotes(), read.sum(), getFailed(), getMentions(), seconds, getNotes() / seconds);
+        }
+    }
+}
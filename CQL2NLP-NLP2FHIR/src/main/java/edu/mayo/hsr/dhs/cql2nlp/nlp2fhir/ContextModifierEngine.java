@@ -0,0 +1,303 @@
+package edu.mayo.hsr.dhs.cql2nlp.nlp2fhir;
+
+import edu.mayo.hsr.dhs.cql2nlp.nlp2fhir.structs.Mention;
+import edu.mayo.hsr.dhs.cql2nlp.nlp2fhir.structs.Modifiers;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * ConText-style (NegEx generalized to certainty, temporality, experiencer and conditionals) modifier detection. <br/>
+ * <br/>
+ * The whole trigger lexicon is compiled into a single {@link PhraseAutomaton}, so each note is scanned for triggers
+ * once regardless of lexicon size. Overlapping triggers are resolved leftmost-longest, which lets pseudo-triggers
+ * such as "no increase" suppress the shorter triggers they contain. A trigger then modifies the mentions within its
+ * sentence in its direction, up to the first termination trigger ("but", "however", ...). Assigning modifiers is a
+ * sweep over the triggers of each mention's sentence, there is no per-trigger pattern matching. <br/>
+ * <br/>
+ * Lexicon files are tab separated: phrase, {@link Category} and, except for pseudo and termination triggers,
+ * {@link Direction}. Blank lines and lines starting with # are ignored. Instances are immutable and thread safe.
+ */
+public final class ContextModifierEngine implements ModifierDetector {
+
+    /**
+     * System property naming a lexicon file to use instead of the bundled one
+     */
+    public static final String LEXICON_PROPERTY = "cql2nlp.nlp.contextLexicon";
+
+    private static final String DEFAULT_LEXICON = "context_triggers.tsv";
+
+    public enum Category {
+        NEGATED, POSSIBLE, HISTORICAL, HYPOTHETICAL, CONDITIONAL, FAMILY, OTHER_EXPERIENCER,
+        /**
+         * Looks like a trigger but does not modify anything, e.g. "no increase"
+         */
+        PSEUDO,
+        /**
+         * Ends the scope of triggers on either side, e.g. "but"
+         */
+        TERMINATION
+    }
+
+    public enum Direction {
+        /**
+         * Modifies mentions that follow the trigger, e.g. "denies chest pain"
+         */
+        FORWARD,
+        /**
+         * Modifies mentions that precede the trigger, e.g. "pneumonia is ruled out"
+         */
+        BACKWARD,
+        BIDIRECTIONAL
+    }
+
+    private final PhraseAutomaton automaton;
+    private final String[] phrases;
+    private final Category[] categories;
+    private final Direction[] directions;
+
+    private ContextModifierEngine(PhraseAutomaton automaton, String[] phrases, Category[] categories, Direction[] directions) {
+        this.automaton = automaton;
+        this.phrases = phrases;
+        this.categories = categories;
+        this.directions = directions;
+    }
+
+    /**
+     * Loads the lexicon named by {@link #LEXICON_PROPERTY} if set, the bundled lexicon otherwise
+     */
+    public static ContextModifierEngine create() throws IOException {
+        String path = System.getProperty(LEXICON_PROPERTY);
+        if (path != null) {
+            try (Reader in = new InputStreamReader(new FileInputStream(path), StandardCharsets.UTF_8)) {
+                return fromLexicon(in);
+            }
+        }
+        InputStream bundled = ContextModifierEngine.class.getResourceAsStream(DEFAULT_LEXICON);
+        if (bundled == null) {
+            throw new FileNotFoundException(DEFAULT_LEXICON);
+        }
+        try (Reader in = new InputStreamReader(bundled, StandardCharsets.UTF_8)) {
+            return fromLexicon(in);
+        }
+    }
+
+    /**
+     * Compiles a lexicon
+     *
+     * @param lexicon Tab separated trigger definitions, see the class documentation
+     * @throws IOException If the lexicon cannot be read or contains an invalid line
+     */
+    public static ContextModifierEngine fromLexicon(Reader lexicon) throws IOException {
+        Map<String, Integer> ids = new LinkedHashMap<>();
+        List<Category> categories = new ArrayList<>();
+        List<Direction> directions = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(lexicon);
+        String line;
+        int lineNumber = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            if (line.trim().isEmpty() || line.trim().startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\t");
+            String phrase = PhraseAutomaton.normalize(fields[0]);
+            Category category;
+            Direction direction;
+            try {
+                category = Category.valueOf(fields[1].trim());
+                direction = category == Category.PSEUDO || category == Category.TERMINATION
+                        ? Direction.BIDIRECTIONAL
+                        : Direction.valueOf(fields[2].trim());
+            } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+                throw new IOException("Invalid trigger definition on line " + lineNumber + ": " + line, e);
+            }
+            if (phrase.isEmpty() || ids.containsKey(phrase)) {
+                throw new IOException("Empty or duplicate trigger on line " + lineNumber + ": " + line);
+            }
+            ids.put(phrase, ids.size());
+            categories.add(category);
+            directions.add(direction);
+        }
+        String[] phrases = ids.keySet().toArray(new String[0]);
+        return new ContextModifierEngine(PhraseAutomaton.compile(Arrays.asList(phrases)), phrases,
+                categories.toArray(new Category[0]), directions.toArray(new Direction[0]));
+    }
+
+    @Override
+    public List<Modifiers> detect(CharSequence text, List<Mention> mentions) {
+        List<Modifiers> ret = new ArrayList<>(mentions.size());
+        if (mentions.isEmpty()) {
+            return ret;
+        }
+        Triggers triggers = findTriggers(text);
+        int[] sentenceEnds = sentenceEnds(text);
+        for (Mention mention : mentions) {
+            ret.add(modifiersOf(mention, triggers, sentenceEnds));
+        }
+        return ret;
+    }
+
+    private Modifiers modifiersOf(Mention mention, Triggers triggers, int[] sentenceEnds) {
+        // Sentence containing the mention's first character
+        int sentence = Arrays.binarySearch(sentenceEnds, mention.getBegin());
+        sentence = sentence >= 0 ? sentence + 1 : -sentence - 1;
+        int sentenceBegin = sentence == 0 ? 0 : sentenceEnds[sentence - 1];
+        int sentenceEnd = sentence < sentenceEnds.length ? sentenceEnds[sentence] : Integer.MAX_VALUE;
+
+        String conditional = null;
+        // Walk outward from the mention in both directions until the sentence ends or a termination trigger is hit
+        boolean[] seen = new boolean[Category.values().length];
+        int first = triggers.firstEndingAfter(mention.getBegin());
+        for (int i = first - 1; i >= 0 && triggers.begins[i] >= sentenceBegin; i--) {
+            int id = triggers.ids[i];
+            if (categories[id] == Category.TERMINATION) {
+                break;
+            }
+            if (directions[id] != Direction.BACKWARD) {
+                seen[categories[id].ordinal()] = true;
+                if (categories[id] == Category.CONDITIONAL && conditional == null) {
+                    conditional = phrases[id];
+                }
+            }
+        }
+        for (int i = first; i < triggers.size && triggers.ends[i] <= sentenceEnd; i++) {
+            if (triggers.begins[i] < mention.getEnd()) {
+                // Overlaps the mention itself
+                continue;
+            }
+            int id = triggers.ids[i];
+            if (categories[id] == Category.TERMINATION) {
+                break;
+            }
+            if (directions[id] != Direction.FORWARD) {
+                seen[categories[id].ordinal()] = true;
+                if (categories[id] == Category.CONDITIONAL && conditional == null) {
+                    conditional = phrases[id];
+                }
+            }
+        }
+        boolean negated = seen[Category.NEGATED.ordinal()];
+        boolean possible = seen[Category.POSSIBLE.ordinal()];
+        String experiencer = Modifiers.PATIENT;
+        if (seen[Category.FAMILY.ordinal()]) {
+            experiencer = Modifiers.FAMILY_MEMBER;
+        } else if (seen[Category.OTHER_EXPERIENCER.ordinal()]) {
+            experiencer = Modifiers.OTHER;
+        }
+        String temporality = Modifiers.CURRENT;
+        if (seen[Category.HYPOTHETICAL.ordinal()]) {
+            temporality = Modifiers.HYPOTHETICAL;
+        } else if (seen[Category.HISTORICAL.ordinal()]) {
+            temporality = Modifiers.HISTORICAL;
+        }
+        if (!negated && !possible && conditional == null
+                && experiencer.equals(Modifiers.PATIENT) && temporality.equals(Modifiers.CURRENT)) {
+            return Modifiers.AFFIRMED;
+        }
+        double certainty = negated ? Modifiers.NEGATED : possible ? Modifiers.UNCERTAIN : Modifiers.CERTAIN;
+        return new Modifiers(negated, certainty, conditional, experiencer, temporality);
+    }
+
+    /*
+     * Scans for triggers and keeps the leftmost-longest of overlapping ones, in document order
+     */
+    private Triggers findTriggers(CharSequence text) {
+        Triggers all = new Triggers();
+        automaton.scan(text, all::add);
+        // Matches arrive ordered by end offset, order by begin (longest first) to resolve overlaps. Triggers are short,
+        // so matches are already nearly in that order and an insertion sort is close to linear
+        int[] order = new int[all.size];
+        for (int i = 0; i < all.size; i++) {
+            int begin = all.begins[i];
+            int end = all.ends[i];
+            int j = i - 1;
+            while (j >= 0 && (all.begins[order[j]] > begin
+                    || all.begins[order[j]] == begin && all.ends[order[j]] < end)) {
+                order[j + 1] = order[j];
+                j--;
+            }
+            order[j + 1] = i;
+        }
+        Triggers kept = new Triggers();
+        int coveredUntil = -1;
+        for (int i : order) {
+            if (all.begins[i] >= coveredUntil) {
+                kept.add(all.begins[i], all.ends[i], all.ids[i]);
+                coveredUntil = all.ends[i];
+            }
+        }
+        return kept;
+    }
+
+    /*
+     * Offsets just past each sentence terminator: ., ! or ? followed by whitespace, or a blank line
+     */
+    private static int[] sentenceEnds(CharSequence text) {
+        int[] ends = new int[16];
+        int count = 0;
+        int n = text.length();
+        for (int i = 0; i < n; i++) {
+            char c = text.charAt(i);
+            boolean end;
+            if (c == '.' || c == '!' || c == '?') {
+                end = i + 1 == n || Character.isWhitespace(text.charAt(i + 1));
+            } else if (c == '\n') {
+                int j = i + 1;
+                while (j < n && text.charAt(j) != '\n' && Character.isWhitespace(text.charAt(j))) {
+                    j++;
+                }
+                end = j < n && text.charAt(j) == '\n';
+            } else {
+                end = false;
+            }
+            if (end) {
+                if (count == ends.length) {
+                    ends = Arrays.copyOf(ends, count * 2);
+                }
+                ends[count++] = i + 1;
+            }
+        }
+        return Arrays.copyOf(ends, count);
+    }
+
+    /*
+     * Trigger occurrences as parallel arrays
+     */
+    private static final class Triggers {
+        private int[] begins = new int[16];
+        private int[] ends = new int[16];
+        private int[] ids = new int[16];
+        private int size;
+
+        void add(int begin, int end, int id) {
+            if (size == begins.length) {
+                begins = Arrays.copyOf(begins, size * 2);
+                ends = Arrays.copyOf(ends, size * 2);
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            begins[size] = begin;
+            ends[size] = end;
+            ids[size] = id;
+            size++;
+        }
+
+        /*
+         * Index of the first trigger ending after an offset. Kept triggers do not overlap, so ends ascend with begins
+         */
+        int firstEndingAfter(int offset) {
+            int lo = 0;
+            int hi = size;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (ends[mid] <= offset) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package edu.mayo.hsr.dhs.cql2nlp.nlp2fhir;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import edu.mayo.hsr.dhs.cql2nlp.nlp2fhir.structs.Mention;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Finds mentions of the terms in an exported NLP ruleset (nlp_export.json, value set &rarr; "CUI|term") within
+ * clinical note text. <br/>
+ * <br/>
+ * All terms of all value sets are compiled into a single Aho-Corasick automaton, so each note is scanned once no
+ * matter how large the ruleset is. Instances are immutable and can be shared by any number of threads.
+ */
+public final class DictionaryMatcher {
+
+    private static final Pattern CUI_PATTERN = Pattern.compile("C\\d+");
+    private static final Comparator<Mention> DOCUMENT_ORDER = Comparator.comparingInt(Mention::getBegin)
+            .thenComparing(Comparator.comparingInt(Mention::getEnd).reversed());
+
+    private final PhraseAutomaton automaton;
+    private final String[] terms;
+    // Every (CUI, value set) a term was listed under, indexed by the term's phrase id
+    private final String[][] cuis;
+    private final String[][] valueSetIds;
+
+    private DictionaryMatcher(PhraseAutomaton automaton, String[] terms, String[][] cuis, String[][] valueSetIds) {
+        this.automaton = automaton;
+        this.terms = terms;
+        this.cuis = cuis;
+        this.valueSetIds = valueSetIds;
+    }
+
+    /**
+     * Compiles a matcher from an nlp_export.json file as written by the ruleset editor or batch generator
+     */
+    public static DictionaryMatcher fromRulesetFile(File nlpExport) throws IOException {
+        Map<String, List<String>> rulesets = new ObjectMapper().readValue(nlpExport, new TypeReference<Map<String, List<String>>>() {
+        });
+        return compile(rulesets);
+    }
+
+    /**
+     * Compiles a matcher
+     *
+     * @param rulesets Rules by value set identifier. A rule is either "CUI|term" or just a term
+     */
+    public static DictionaryMatcher compile(Map<String, ? extends Collection<String>> rulesets) {
+        Map<String, Integer> phraseIds = new LinkedHashMap<>();
+        List<Set<List<String>>> entries = new ArrayList<>();
+        rulesets.forEach((valueSetId, rules) -> {
+            for (String rule : rules) {
+                String cui = null;
+                String term = rule;
+                int sep = rule.indexOf('|');
+                if (sep > 0 && CUI_PATTERN.matcher(rule.substring(0, sep)).matches()) {
+                    cui = rule.substring(0, sep);
+                    term = rule.substring(sep + 1);
+                }
+                term = PhraseAutomaton.normalize(term);
+                if (term.isEmpty()) {
+                    continue;
+                }
+                Integer id = phraseIds.get(term);
+                if (id == null) {
+                    id = phraseIds.size();
+                    phraseIds.put(term, id);
+                    entries.add(new LinkedHashSet<>());
+                }
+                entries.get(id).add(Arrays.asList(cui, valueSetId));
+            }
+        });
+        String[] terms = phraseIds.keySet().toArray(new String[0]);
+        String[][] cuis = new String[terms.length][];
+        String[][] valueSetIds = new String[terms.length][];
+        for (int id = 0; id < terms.length; id++) {
+            Set<List<String>> termEntries = entries.get(id);
+            cuis[id] = new String[termEntries.size()];
+            valueSetIds[id] = new String[termEntries.size()];
+            int i = 0;
+            for (List<String> entry : termEntries) {
+                cuis[id][i] = entry.get(0);
+                valueSetIds[id][i] = entry.get(1);
+                i++;
+            }
+        }
+        return new DictionaryMatcher(PhraseAutomaton.compile(Arrays.asList(terms)), terms, cuis, valueSetIds);
+    }
+
+    /**
+     * Finds every mention in a note, including mentions nested in or overlapping longer ones
+     *
+     * @param text The note text
+     * @return Mentions ordered by start offset, longer mentions first. A term listed under several CUIs or value sets
+     * yields one mention for each
+     */
+    public List<Mention> match(CharSequence text) {
+        List<Mention> ret = new ArrayList<>();
+        automaton.scan(text, (begin, end, id) -> {
+            for (int i = 0; i < cuis[id].length; i++) {
+                ret.add(new Mention(begin, end, cuis[id][i], valueSetIds[id][i], terms[id]));
+            }
+        });
+        ret.sort(DOCUMENT_ORDER);
+        return ret;
+    }
+
+    /**
+     * Finds mentions in a note, keeping only the longest match where matches overlap (e.g. "heart failure" rather
+     * than "failure")
+     *
+     * @param text The note text
+     * @return Non-overlapping mentions in document order. A term listed under several CUIs or value sets still yields
+     * one mention for each
+     */
+    public List<Mention> matchLongest(CharSequence text) {
+        List<Mention> ret = new ArrayList<>();
+        int coveredUntil = -1;
+        int keptBegin = -1;
+        int keptEnd = -1;
+        for (Mention m : match(text)) {
+            if (m.getBegin() == keptBegin && m.getEnd() == keptEnd) {
+                ret.add(m);
+            } else if (m.getBegin() >= coveredUntil) {
+                ret.add(m);
+                keptBegin = m.getBegin();
+                keptEnd = m.getEnd();
+                coveredUntil = m.getEnd();
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return The number of distinct terms compiled into this matcher
+     */
+    public int getTermCount() {
+        return terms.length;
+    }
+}
@@ -0,0 +1,124 @@
+package edu.mayo.hsr.dhs.cql2nlp.nlp2fhir;
+
+import edu.mayo.hsr.dhs.cql2nlp.nlp2fhir.structs.Mention;
+import edu.mayo.hsr.dhs.cql2nlp.nlp2fhir.structs.Modifiers;
+import edu.mayo.hsr.dhs.cql2nlp.nlp2fhir.structs.Note;
+import org.hl7.fhir.r4.model.*;
+
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Renders an annotated note as a FHIR R4 collection Bundle: one Composition for the note, carrying the nlp_system
+ * extension, whose section references one Condition per mention. Each Condition carries the PhEMA negation,
+ * certainty, conditional, experiencer and temporality modifier extensions defined in fhir-extensions/. <br/>
+ * <br/>
+ * The section is coded (LOINC 11450-4, Problem list - Reported, unless {@value #SECTION_CODE_PROPERTY} says
+ * otherwise) so that CQL can tell NLP mentions apart by doc.section.code. The Composition and every Condition refer to
+ * the note's patient; notes without one get a placeholder Patient in the Bundle, as Condition.subject is required.
+ */
+public class FhirMentionRenderer {
+
+    /**
+     * System property overriding the LOINC code of the section mentions are listed in
+     */
+    public static final String SECTION_CODE_PROPERTY = "cql2nlp.nlp.sectionCode";
+
+    public static final String EXTENSION_BASE = "http://projectphema.org/fhir/extensions/";
+    public static final String NLP_SYSTEM_EXTENSION = EXTENSION_BASE + "nlp_system";
+    public static final String NEGATION_EXTENSION = EXTENSION_BASE + "negation_modifier";
+    public static final String CERTAINTY_EXTENSION = EXTENSION_BASE + "certainty_modifier";
+    public static final String CONDITIONAL_EXTENSION = EXTENSION_BASE + "conditional_modifier";
+    public static final String EXPERIENCER_EXTENSION = EXTENSION_BASE + "experiencer";
+    public static final String TEMPORALITY_EXTENSION = EXTENSION_BASE + "temporality_modifier";
+
+    private static final String UMLS_SYSTEM = "http://www.nlm.nih.gov/research/umls";
+    private static final String LOINC_SYSTEM = "http://loinc.org";
+    private static final String VERIFICATION_STATUS_SYSTEM = "http://terminology.hl7.org/CodeSystem/condition-ver-status";
+    private static final String DEFAULT_SECTION_CODE = "11450-4";
+
+    private final String nlpSystem;
+    private final String sectionCode;
+
+    /**
+     * @param nlpSystem The value of the nlp_system extension, identifying the system that produced the annotations
+     */
+    public FhirMentionRenderer(String nlpSystem) {
+        this.nlpSystem = nlpSystem;
+        this.sectionCode = System.getProperty(SECTION_CODE_PROPERTY, DEFAULT_SECTION_CODE);
+    }
+
+    /**
+     * @param note      The annotated note
+     * @param mentions  The mentions found in the note
+     * @param modifiers The modifiers of each mention, in the same order
+     * @return A collection Bundle containing the Composition, a placeholder Patient if the note has none, and the
+     * Conditions
+     */
+    public Bundle render(Note note, List<Mention> mentions, List<Modifiers> modifiers) {
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.COLLECTION);
+        Patient placeholder = null;
+        Reference subject;
+        if (note.getPatientId() != null) {
+            subject = new Reference("Patient/" + note.getPatientId());
+        } else {
+            placeholder = new Patient();
+            placeholder.setId(UUID.randomUUID().toString());
+            subject = new Reference("urn:uuid:" + placeholder.getId());
+        }
+
+        Composition composition = new Composition();
+        composition.setId(UUID.randomUUID().toString());
+        composition.setStatus(Composition.CompositionStatus.FINAL);
+        composition.setTitle(note.getId());
+        CodeableConcept type = new CodeableConcept().setText("Clinical Note");
+        if (note.getType() != null) {
+            type.addCoding(new Coding(LOINC_SYSTEM, note.getType(), null));
+        }
+        composition.setType(type);
+        if (note.getDate() != null) {
+            composition.setDateElement(new DateTimeType(note.getDate()));
+        } else {
+            composition.setDate(new Date());
+        }
+        composition.addAuthor(new Reference().setDisplay(nlpSystem));
+        composition.setSubject(subject);
+        composition.addExtension().setUrl(NLP_SYSTEM_EXTENSION).setValue(new StringType(nlpSystem));
+        Composition.SectionComponent section = composition.addSection();
+        section.setTitle("NLP Mentions");
+        section.setCode(new CodeableConcept().addCoding(new Coding(LOINC_SYSTEM, sectionCode,
+                DEFAULT_SECTION_CODE.equals(sectionCode) ? "Problem list - Reported" : null)));
+        bundle.addEntry().setFullUrl("urn:uuid:" + composition.getId()).setResource(composition);
+        if (placeholder != null) {
+            bundle.addEntry().setFullUrl("urn:uuid:" + placeholder.getId()).setResource(placeholder);
+        }
+
+        for (int i = 0; i < mentions.size(); i++) {
+            Mention mention = mentions.get(i);
+            Modifiers mod = modifiers.get(i);
+            Condition condition = new Condition();
+            condition.setId(UUID.randomUUID().toString());
+            CodeableConcept code = new CodeableConcept().setText(note.getText().substring(mention.getBegin(), mention.getEnd()));
+            if (mention.getCui() != null) {
+                code.addCoding(new Coding(UMLS_SYSTEM, mention.getCui(), mention.getTerm()));
+            }
+            condition.setCode(code);
+            condition.setSubject(subject);
+            condition.setVerificationStatus(new CodeableConcept().addCoding(new Coding(VERIFICATION_STATUS_SYSTEM,
+                    mod.isNegated() ? "refuted" : mod.getCertainty() >= Modifiers.CERTAIN ? "confirmed" : "provisional", null)));
+            condition.addExtension().setUrl(NEGATION_EXTENSION).setValue(new BooleanType(mod.isNegated()));
+            condition.addExtension().setUrl(CERTAINTY_EXTENSION).setValue(new DecimalType(mod.getCertainty()));
+            if (mod.getConditional() != null) {
+                condition.addExtension().setUrl(CONDITIONAL_EXTENSION).setValue(new StringType(mod.getConditional()));
+            }
+            condition.addExtension().setUrl(EXPERIENCER_EXTENSION).setValue(new StringType(mod.getExperiencer()));
+            condition.addExtension().setUrl(TEMPORALITY_EXTENSION).setValue(new StringType(mod.getTemporality()));
+            String fullUrl = "urn:uuid:" + condition.getId();
+            section.addEntry(new Reference(fullUrl));
+            bundle.addEntry().setFullUrl(fullUrl).setResource(condition);
+        }
+        return bundle;
+    }
+}
@@ -0,0 +1,52 @@
+package edu.mayo.hsr.dhs.cql2nlp.nlp2fhir;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Annotates clinical notes with an exported NLP ruleset, see {@link AnnotationPipeline}, determining the context of
+ * each mention with a {@link ContextModifierEngine}. <br/>
+ * <br/>
+ * Usage: Main &lt;nlp_export.json&gt; &lt;notes directory, notes .ndjson file, or - for NDJSON on stdin&gt;
+ * [output .ndjson file, defaults to stdout]
+ */
+public class Main {
+
+    /**
+     * System property overriding the value of the nlp_system extension
+     */
+    public static final String NLP_SYSTEM_PROPERTY = "cql2nlp.nlp.system";
+
+    public static void main(String... args) throws IOException, InterruptedException {
+        if (args.length < 2 || args.length > 3) {
+            System.err.println("Usage: Main <nlp_export.json> <notes directory | notes.ndjson | -> [output.ndjson]");
+            System.exit(1);
+        }
+        DictionaryMatcher matcher = DictionaryMatcher.fromRulesetFile(new File(args[0]));
+        System.err.println("Compiled " + matcher.getTermCount() + " terms from " + args[0]);
+
+        NoteSource source;
+        if (args[1].equals("-")) {
+            source = NoteSource.fromNdjson(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        } else {
+            Path notes = Paths.get(args[1]);
+            source = Files.isDirectory(notes)
+                    ? NoteSource.fromDirectory(notes)
+                    : NoteSource.fromNdjson(Files.newBufferedReader(notes, StandardCharsets.UTF_8));
+        }
+        Writer out = args.length > 2
+                ? Files.newBufferedWriter(Paths.get(args[2]), StandardCharsets.UTF_8)
+                : new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+
+        AnnotationPipeline pipeline = new AnnotationPipeline(matcher, ContextModifierEngine.create(),
+                System.getProperty(NLP_SYSTEM_PROPERTY, "CQL2NLP Dictionary Matcher"));
+        try (NoteSource in = source) {
+            System.err.println(pipeline.run(in, out));
+        } finally {
+            out.close();
+        }
+    }
+}
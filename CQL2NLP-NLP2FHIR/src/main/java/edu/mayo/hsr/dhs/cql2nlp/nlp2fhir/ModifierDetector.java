@@ -0,0 +1,27 @@
+package edu.mayo.hsr.dhs.cql2nlp.nlp2fhir;
+
+import edu.mayo.hsr.dhs.cql2nlp.nlp2fhir.structs.Mention;
+import edu.mayo.hsr.dhs.cql2nlp.nlp2fhir.structs.Modifiers;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Determines the context (negation, certainty, experiencer, ...) of the mentions found in a note. Implementations are
+ * shared by all pipeline workers and must be thread safe.
+ */
+public interface ModifierDetector {
+
+    /**
+     * Treats every mention as affirmed, current and about the patient
+     */
+    ModifierDetector NONE = (text, mentions) -> new ArrayList<>(Collections.nCopies(mentions.size(), Modifiers.AFFIRMED));
+
+    /**
+     * @param text     The note text
+     * @param mentions The mentions found in the note, in document order
+     * @return The modifiers of each mention, in the same order
+     */
+    List<Modifiers> detect(CharSequence text, List<Mention> mentions);
+}
@@ -0,0 +1,93 @@
+package edu.mayo.hsr.dhs.cql2nlp.nlp2fhir;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import edu.mayo.hsr.dhs.cql2nlp.nlp2fhir.structs.Note;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Supplies notes to an {@link AnnotationPipeline} one at a time, so that sources of any size can be streamed
+ */
+public interface NoteSource extends Closeable {
+
+    /**
+     * @return The next note, or null once the source is exhausted
+     */
+    Note next() throws IOException;
+
+    /**
+     * Reads every regular file below a directory as one note, identified by its path relative to the directory
+     */
+    static NoteSource fromDirectory(Path dir) throws IOException {
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(dir)) {
+            files = walk.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+        }
+        Iterator<Path> it = files.iterator();
+        return new NoteSource() {
+            @Override
+            public Note next() throws IOException {
+                if (!it.hasNext()) {
+                    return null;
+                }
+                Path file = it.next();
+                String text = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+                return new Note(dir.relativize(file).toString(), null, null, null, text);
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    /**
+     * Reads newline delimited JSON, one note per line, with the fields id, text and optionally patient, date and type
+     */
+    static NoteSource fromNdjson(Reader reader) {
+        BufferedReader lines = new BufferedReader(reader);
+        ObjectMapper om = new ObjectMapper();
+        return new NoteSource() {
+            private long lineNumber = 0;
+
+            @Override
+            public Note next() throws IOException {
+                String line;
+                while ((line = lines.readLine()) != null) {
+                    lineNumber++;
+                    if (line.trim().isEmpty()) {
+                        continue;
+                    }
+                    JsonNode json = om.readTree(line);
+                    if (!json.hasNonNull("text")) {
+                        throw new IOException("Note on line " + lineNumber + " has no text");
+                    }
+                    String id = json.hasNonNull("id") ? json.get("id").asText() : String.valueOf(lineNumber);
+                    return new Note(id, textOrNull(json, "patient"), textOrNull(json, "date"), textOrNull(json, "type"),
+                            json.get("text").asText());
+                }
+                return null;
+            }
+
+            @Override
+            public void close() throws IOException {
+                lines.close();
+            }
+        };
+    }
+
+    static String textOrNull(JsonNode json, String field) {
+        return json.hasNonNull(field) ? json.get(field).asText() : null;
+    }
+}
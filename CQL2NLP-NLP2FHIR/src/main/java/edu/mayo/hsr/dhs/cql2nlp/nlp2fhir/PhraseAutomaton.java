@@ -0,0 +1,383 @@
+package edu.mayo.hsr.dhs.cql2nlp.nlp2fhir;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Immutable Aho-Corasick automaton over a set of phrases, matching whole words case-insensitively. <br/>
+ * <br/>
+ * Text is scanned once, character by character, regardless of how many phrases were compiled. Letters are lower-cased
+ * and runs of whitespace are treated as a single space, both when compiling and when scanning, so "Heart  Failure"
+ * matches the phrase "heart failure". Matches must start and end on a word boundary. <br/>
+ * <br/>
+ * States are stored as flat arrays (sorted per-state transitions, failure links and dictionary suffix links), so an
+ * instance is compact and can be shared freely between threads.
+ */
+final class PhraseAutomaton {
+
+    private static final int NONE = -1;
+    private static final int DENSE_ROOT_CHARS = 128;
+
+    // CSR transitions: the transitions of state s are at [transitionStart[s], transitionStart[s + 1]), sorted by label
+    private final int[] transitionStart;
+    private final char[] transitionLabels;
+    private final int[] transitionTargets;
+    // Root transitions for ASCII characters are looked up directly, as most scanned characters restart at the root
+    private final int[] rootAscii;
+    private final int[] fail;
+    // Phrase ending exactly at a state, or NONE
+    private final int[] output;
+    // Nearest state along the failure chain with an output, or 0 if there is none
+    private final int[] dictLink;
+    private final int[] phraseLengths;
+    private final int maxPhraseLength;
+
+    private PhraseAutomaton(int[] transitionStart, char[] transitionLabels, int[] transitionTargets, int[] fail,
+                            int[] output, int[] dictLink, int[] phraseLengths) {
+        this.transitionStart = transitionStart;
+        this.transitionLabels = transitionLabels;
+        this.transitionTargets = transitionTargets;
+        this.fail = fail;
+        this.output = output;
+        this.dictLink = dictLink;
+        this.phraseLengths = phraseLengths;
+        int max = 1;
+        for (int len : phraseLengths) {
+            max = Math.max(max, len);
+        }
+        this.maxPhraseLength = max;
+        this.rootAscii = new int[DENSE_ROOT_CHARS];
+        for (char c = 0; c < DENSE_ROOT_CHARS; c++) {
+            int t = findTransition(0, c);
+            rootAscii[c] = t == NONE ? 0 : t;
+        }
+    }
+
+    /**
+     * Normalizes a phrase the same way scanned text is normalized
+     */
+    static String normalize(String phrase) {
+        StringBuilder sb = new StringBuilder(phrase.length());
+        boolean pendingSpace = false;
+        for (int i = 0; i < phrase.length(); i++) {
+            char c = phrase.charAt(i);
+            if (Character.isWhitespace(c)) {
+                pendingSpace = sb.length() > 0;
+            } else {
+                if (pendingSpace) {
+                    sb.append(' ');
+                    pendingSpace = false;
+                }
+                sb.append(Character.toLowerCase(c));
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Compiles an automaton
+     *
+     * @param phrases Distinct, non-empty phrases already passed through {@link #normalize(String)}. A phrase's index
+     *                in this list is the id reported when it matches
+     */
+    static PhraseAutomaton compile(List<String> phrases) {
+        Builder builder = new Builder();
+        int[] phraseLengths = new int[phrases.size()];
+        for (int id = 0; id < phrases.size(); id++) {
+            String phrase = phrases.get(id);
+            if (phrase.isEmpty()) {
+                throw new IllegalArgumentException("Phrases must not be empty");
+            }
+            builder.add(phrase, id);
+            phraseLengths[id] = phrase.length();
+        }
+        return builder.build(phraseLengths);
+    }
+
+    /**
+     * Scans text in a single pass, reporting every phrase occurrence that starts and ends on a word boundary. Matches
+     * are reported in order of their end offset.
+     */
+    void scan(CharSequence text, MatchHandler handler) {
+        int n = text.length();
+        // Original offsets of the most recently fed characters, enough to recover the start of the longest phrase
+        int[] offsets = new int[maxPhraseLength];
+        long fed = 0;
+        int state = 0;
+        boolean previousWhitespace = false;
+        for (int i = 0; i < n; i++) {
+            char c = text.charAt(i);
+            if (Character.isWhitespace(c)) {
+                if (previousWhitespace) {
+                    continue;
+                }
+                previousWhitespace = true;
+                c = ' ';
+            } else {
+                previousWhitespace = false;
+                c = Character.toLowerCase(c);
+            }
+            offsets[(int) (fed % maxPhraseLength)] = i;
+            fed++;
+            state = next(state, c);
+            int s = output[state] != NONE ? state : dictLink[state];
+            while (s > 0) {
+                int id = output[s];
+                int begin = offsets[(int) ((fed - phraseLengths[id]) % maxPhraseLength)];
+                int end = i + 1;
+                if ((begin == 0 || !Character.isLetterOrDigit(text.charAt(begin - 1)))
+                        && (end == n || !Character.isLetterOrDigit(text.charAt(end)))) {
+                    handler.onMatch(begin, end, id);
+                }
+                s = dictLink[s];
+            }
+        }
+    }
+
+    int getStateCount() {
+        return fail.length;
+    }
+
+    private int next(int state, char c) {
+        while (true) {
+            if (state == 0) {
+                return c < DENSE_ROOT_CHARS ? rootAscii[c] : Math.max(findTransition(0, c), 0);
+            }
+            int t = findTransition(state, c);
+            if (t != NONE) {
+                return t;
+            }
+            state = fail[state];
+        }
+    }
+
+    private int findTransition(int state, char c) {
+        int lo = transitionStart[state];
+        int hi = transitionStart[state + 1] - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            char label = transitionLabels[mid];
+            if (label < c) {
+                lo = mid + 1;
+            } else if (label > c) {
+                hi = mid - 1;
+            } else {
+                return transitionTargets[mid];
+            }
+        }
+        return NONE;
+    }
+
+    interface MatchHandler {
+        /**
+         * @param begin    Offset of the first matched character in the scanned text
+         * @param end      Offset just past the last matched character
+         * @param phraseId Index of the phrase as supplied to {@link #compile(List)}
+         */
+        void onMatch(int begin, int end, int phraseId);
+    }
+
+    /*
+     * Builds the trie with a single open-addressing edge table rather than a map per node, so that compiling
+     * dictionaries with millions of states stays cheap
+     */
+    private static final class Builder {
+        private int stateCount = 1;
+        private int[] parents = new int[1024];
+        private char[] labels = new char[1024];
+        private int[] depths = new int[1024];
+        private int[] outputs = filled(1024);
+        private final EdgeTable edges = new EdgeTable();
+
+        void add(String phrase, int id) {
+            int state = 0;
+            for (int i = 0; i < phrase.length(); i++) {
+                char c = phrase.charAt(i);
+                int next = edges.get(state, c);
+                if (next == NONE) {
+                    next = newState(state, c);
+                    edges.put(state, c, next);
+                }
+                state = next;
+            }
+            if (outputs[state] != NONE) {
+                throw new IllegalArgumentException("Duplicate phrase " + phrase);
+            }
+            outputs[state] = id;
+        }
+
+        private int newState(int parent, char label) {
+            if (stateCount == parents.length) {
+                int size = stateCount * 2;
+                parents = Arrays.copyOf(parents, size);
+                labels = Arrays.copyOf(labels, size);
+                depths = Arrays.copyOf(depths, size);
+                int[] grown = filled(size);
+                System.arraycopy(outputs, 0, grown, 0, stateCount);
+                outputs = grown;
+            }
+            parents[stateCount] = parent;
+            labels[stateCount] = label;
+            depths[stateCount] = depths[parent] + 1;
+            return stateCount++;
+        }
+
+        PhraseAutomaton build(int[] phraseLengths) {
+            int n = stateCount;
+            // Failure links must be computed breadth first, order states by depth with a counting sort
+            int maxDepth = 0;
+            for (int s = 0; s < n; s++) {
+                maxDepth = Math.max(maxDepth, depths[s]);
+            }
+            int[] depthStart = new int[maxDepth + 2];
+            for (int s = 0; s < n; s++) {
+                depthStart[depths[s] + 1]++;
+            }
+            for (int d = 1; d < depthStart.length; d++) {
+                depthStart[d] += depthStart[d - 1];
+            }
+            int[] bfsOrder = new int[n];
+            int[] cursor = Arrays.copyOf(depthStart, depthStart.length);
+            for (int s = 0; s < n; s++) {
+                bfsOrder[cursor[depths[s]]++] = s;
+            }
+
+            int[] fail = new int[n];
+            int[] dictLink = new int[n];
+            for (int idx = 1; idx < n; idx++) {
+                int s = bfsOrder[idx];
+                int parent = parents[s];
+                char c = labels[s];
+                int f = 0;
+                if (parent != 0) {
+                    int candidate = fail[parent];
+                    while (true) {
+                        int t = edges.get(candidate, c);
+                        if (t != NONE) {
+                            f = t;
+                            break;
+                        }
+                        if (candidate == 0) {
+                            break;
+                        }
+                        candidate = fail[candidate];
+                    }
+                }
+                fail[s] = f;
+                dictLink[s] = outputs[f] != NONE ? f : dictLink[f];
+            }
+
+            // Flatten child edges into CSR arrays, sorted by label within each state
+            int[] transitionStart = new int[n + 1];
+            for (int s = 1; s < n; s++) {
+                transitionStart[parents[s] + 1]++;
+            }
+            for (int s = 0; s < n; s++) {
+                transitionStart[s + 1] += transitionStart[s];
+            }
+            char[] transitionLabels = new char[n - 1];
+            int[] transitionTargets = new int[n - 1];
+            int[] fill = Arrays.copyOf(transitionStart, n);
+            for (int s = 1; s < n; s++) {
+                int pos = fill[parents[s]]++;
+                transitionLabels[pos] = labels[s];
+                transitionTargets[pos] = s;
+            }
+            for (int s = 0; s < n; s++) {
+                sortSegment(transitionLabels, transitionTargets, transitionStart[s], transitionStart[s + 1]);
+            }
+            return new PhraseAutomaton(transitionStart, transitionLabels, transitionTargets, fail,
+                    Arrays.copyOf(outputs, n), dictLink, phraseLengths);
+        }
+
+        private static void sortSegment(char[] labels, int[] targets, int from, int to) {
+            // Segments are short outside of the root, insertion sort keeps labels and targets paired without boxing
+            for (int i = from + 1; i < to; i++) {
+                char label = labels[i];
+                int target = targets[i];
+                int j = i - 1;
+                while (j >= from && labels[j] > label) {
+                    labels[j + 1] = labels[j];
+                    targets[j + 1] = targets[j];
+                    j--;
+                }
+                labels[j + 1] = label;
+                targets[j + 1] = target;
+            }
+        }
+
+        private static int[] filled(int size) {
+            int[] ret = new int[size];
+            Arrays.fill(ret, NONE);
+            return ret;
+        }
+    }
+
+    /**
+     * Open-addressing map from (state, label) to child state
+     */
+    private static final class EdgeTable {
+        private static final long EMPTY = -1L;
+        private long[] keys = newKeys(1 << 12);
+        private int[] values = new int[1 << 12];
+        private int size;
+
+        int get(int state, char c) {
+            long key = key(state, c);
+            int mask = keys.length - 1;
+            for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return values[i];
+                }
+                if (keys[i] == EMPTY) {
+                    return NONE;
+                }
+            }
+        }
+
+        void put(int state, char c, int child) {
+            if ((size + 1) * 2 > keys.length) {
+                grow();
+            }
+            insert(key(state, c), child);
+            size++;
+        }
+
+        private void insert(long key, int value) {
+            int mask = keys.length - 1;
+            int i = hash(key) & mask;
+            while (keys[i] != EMPTY) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            values[i] = value;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            int[] oldValues = values;
+            keys = newKeys(oldKeys.length * 2);
+            values = new int[oldKeys.length * 2];
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != EMPTY) {
+                    insert(oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+
+        private static long key(int state, char c) {
+            return ((long) state << 16) | c;
+        }
+
+        private static int hash(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+
+        private static long[] newKeys(int size) {
+            long[] ret = new long[size];
+            Arrays.fill(ret, EMPTY);
+            return ret;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package edu.mayo.hsr.dhs.cql2nlp.nlp2fhir.structs;
+
+import java.util.Objects;
+
+/**
+ * A dictionary match within a note, tagged with the concept and value set whose ruleset produced it
+ */
+public class Mention {
+    private final int begin;
+    private final int end;
+    private final String cui;
+    private final String valueSetId;
+    private final String term;
+
+    public Mention(int begin, int end, String cui, String valueSetId, String term) {
+        this.begin = begin;
+        this.end = end;
+        this.cui = cui;
+        this.valueSetId = valueSetId;
+        this.term = term;
+    }
+
+    /**
+     * @return The offset of the first character of the mention in the note text
+     */
+    public int getBegin() {
+        return begin;
+    }
+
+    /**
+     * @return The offset just past the last character of the mention in the note text
+     */
+    public int getEnd() {
+        return end;
+    }
+
+    /**
+     * @return The matched concept, or null if the rule did not specify one
+     */
+    public String getCui() {
+        return cui;
+    }
+
+    public String getValueSetId() {
+        return valueSetId;
+    }
+
+    /**
+     * @return The (normalized) dictionary term that matched
+     */
+    public String getTerm() {
+        return term;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        Mention that = (Mention) o;
+        return begin == that.begin &&
+                end == that.end &&
+                Objects.equals(cui, that.cui) &&
+                Objects.equals(valueSetId, that.valueSetId) &&
+                Objects.equals(term, that.term);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(begin, end, cui, valueSetId, term);
+    }
+
+    @Override
+    public String toString() {
+        return valueSetId + ":" + cui + "[" + begin + "," + end + ")";
+    }
+}
@@ -0,0 +1,67 @@
+package edu.mayo.hsr.dhs.cql2nlp.nlp2fhir.structs;
+
+/**
+ * The context of a mention, as rendered into the PhEMA negation, certainty, conditional, experiencer and temporality
+ * modifier extensions
+ */
+public class Modifiers {
+
+    public static final double CERTAIN = 1;
+    public static final double UNCERTAIN = 0.5;
+    public static final double NEGATED = 0;
+
+    public static final String PATIENT = "patient";
+    public static final String FAMILY_MEMBER = "family_member";
+    public static final String OTHER = "other";
+
+    public static final String CURRENT = "current";
+    public static final String HISTORICAL = "historical";
+    public static final String HYPOTHETICAL = "hypothetical";
+
+    /**
+     * A definite, current mention about the patient, i.e. one with no modifying context
+     */
+    public static final Modifiers AFFIRMED = new Modifiers(false, CERTAIN, null, PATIENT, CURRENT);
+
+    private final boolean negated;
+    private final double certainty;
+    private final String conditional;
+    private final String experiencer;
+    private final String temporality;
+
+    /**
+     * @param negated     Whether the mention is negated
+     * @param certainty   The degree of belief that the mentioned finding is present: {@link #CERTAIN} for positive
+     *                    mentions, {@link #UNCERTAIN} for possible ones and {@link #NEGATED} for negated ones
+     * @param conditional The condition under which the mention applies (e.g. "if"), or null
+     * @param experiencer Who the mention is about, e.g. {@link #PATIENT}
+     * @param temporality When the mention applies, e.g. {@link #CURRENT}
+     */
+    public Modifiers(boolean negated, double certainty, String conditional, String experiencer, String temporality) {
+        this.negated = negated;
+        this.certainty = certainty;
+        this.conditional = conditional;
+        this.experiencer = experiencer;
+        this.temporality = temporality;
+    }
+
+    public boolean isNegated() {
+        return negated;
+    }
+
+    public double getCertainty() {
+        return certainty;
+    }
+
+    public String getConditional() {
+        return conditional;
+    }
+
+    public String getExperiencer() {
+        return experiencer;
+    }
+
+    public String getTemporality() {
+        return temporality;
+    }
+}
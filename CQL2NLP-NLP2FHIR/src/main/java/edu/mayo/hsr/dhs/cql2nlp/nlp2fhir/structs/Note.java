@@ -0,0 +1,47 @@
+package edu.mayo.hsr.dhs.cql2nlp.nlp2fhir.structs;
+
+/**
+ * A clinical note to be annotated
+ */
+public class Note {
+    private final String id;
+    private final String patientId;
+    private final String date;
+    private final String type;
+    private final String text;
+
+    /**
+     * @param id        A unique identifier for the note
+     * @param patientId The patient the note is about, or null if unknown
+     * @param date      The note's date as an ISO-8601 date or date time, or null if unknown
+     * @param type      The document type (e.g. a LOINC code), or null if unknown
+     * @param text      The note text
+     */
+    public Note(String id, String patientId, String date, String type, String text) {
+        this.id = id;
+        this.patientId = patientId;
+        this.date = date;
+        this.type = type;
+        this.text = text;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getPatientId() {
+        return patientId;
+    }
+
+    public String getDate() {
+        return date;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public String getText() {
+        return text;
+    }
+}
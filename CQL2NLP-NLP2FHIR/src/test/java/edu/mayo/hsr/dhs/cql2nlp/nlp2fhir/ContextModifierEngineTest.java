@@ -0,0 +1,164 @@
+package edu.mayo.hsr.dhs.cql2nlp.nlp2fhir;
+
+import edu.mayo.hsr.dhs.cql2nlp.nlp2fhir.structs.Mention;
+import edu.mayo.hsr.dhs.cql2nlp.nlp2fhir.structs.Modifiers;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ContextModifierEngineTest {
+
+    private static final String LEXICON = String.join("\n",
+            "# Test lexicon",
+            "no\tNEGATED\tFORWARD",
+            "denies\tNEGATED\tFORWARD",
+            "is ruled out\tNEGATED\tBACKWARD",
+            "possible\tPOSSIBLE\tFORWARD",
+            "is suspected\tPOSSIBLE\tBACKWARD",
+            "history of\tHISTORICAL\tFORWARD",
+            "return for\tHYPOTHETICAL\tFORWARD",
+            "mother\tFAMILY\tBIDIRECTIONAL",
+            "if\tCONDITIONAL\tFORWARD",
+            "no increase\tPSEUDO",
+            "but\tTERMINATION",
+            "");
+
+    private static final ContextModifierEngine ENGINE = engine(LEXICON);
+
+    @Test
+    public void forwardTriggersApplyOnlyAfterThemselves() {
+        Modifiers denied = detect("Patient denies chest pain.", "chest pain");
+        assertTrue(denied.isNegated());
+        assertEquals(Modifiers.NEGATED, denied.getCertainty(), 0);
+        assertSame(Modifiers.AFFIRMED, detect("Chest pain, denies fever", "Chest pain"));
+    }
+
+    @Test
+    public void backwardTriggersApplyOnlyBeforeThemselves() {
+        Modifiers ruledOut = detect("Pneumonia is ruled out.", "Pneumonia");
+        assertTrue(ruledOut.isNegated());
+        assertEquals(Modifiers.NEGATED, ruledOut.getCertainty(), 0);
+        assertSame(Modifiers.AFFIRMED, detect("Fever is ruled out, pneumonia present", "pneumonia"));
+    }
+
+    @Test
+    public void bidirectionalTriggersApplyBothWays() {
+        assertEquals(Modifiers.FAMILY_MEMBER, detect("Mother has diabetes", "diabetes").getExperiencer());
+        assertEquals(Modifiers.FAMILY_MEMBER, detect("Diabetes in mother", "Diabetes").getExperiencer());
+    }
+
+    @Test
+    public void terminationTriggersCloseTheScope() {
+        String text = "No fever but cough. Headache but pneumonia is ruled out.";
+        List<Modifiers> modifiers = ENGINE.detect(text, mentions(text, "fever", "cough", "Headache", "pneumonia"));
+        assertTrue(modifiers.get(0).isNegated());
+        assertSame(Modifiers.AFFIRMED, modifiers.get(1));
+        assertSame(Modifiers.AFFIRMED, modifiers.get(2));
+        assertTrue(modifiers.get(3).isNegated());
+    }
+
+    @Test
+    public void pseudoTriggersSuppressTheTriggersTheyContain() {
+        assertSame(Modifiers.AFFIRMED, detect("No increase in edema.", "edema"));
+        // Only the overlapping trigger is suppressed
+        assertTrue(detect("No increase in pain, no edema", "edema").isNegated());
+    }
+
+    @Test
+    public void triggersDoNotCrossSentences() {
+        assertSame(Modifiers.AFFIRMED, detect("No fever. Cough present.", "Cough"));
+        assertSame(Modifiers.AFFIRMED, detect("No fever! Cough present.", "Cough"));
+        assertSame(Modifiers.AFFIRMED, detect("Cough present? Pneumonia is ruled out", "Cough"));
+        // A period inside a number does not end the sentence
+        assertTrue(detect("No 3.5 cm mass", "mass").isNegated());
+    }
+
+    @Test
+    public void blankLinesSplitSentencesButSingleNewlinesDoNot() {
+        assertSame(Modifiers.AFFIRMED, detect("No fever\n\nCough", "Cough"));
+        assertSame(Modifiers.AFFIRMED, detect("No fever\n \t\nCough", "Cough"));
+        assertTrue(detect("No fever,\ncough", "cough").isNegated());
+    }
+
+    @Test
+    public void certaintyReflectsNegationAndPossibility() {
+        Modifiers possible = detect("Possible pneumonia", "pneumonia");
+        assertFalse(possible.isNegated());
+        assertEquals(Modifiers.UNCERTAIN, possible.getCertainty(), 0);
+        assertEquals(Modifiers.UNCERTAIN, detect("Pneumonia is suspected", "Pneumonia").getCertainty(), 0);
+        // Negation wins over possibility
+        assertEquals(Modifiers.NEGATED, detect("No possible pneumonia", "pneumonia").getCertainty(), 0);
+    }
+
+    @Test
+    public void nonCertaintyContextKeepsMentionsCertain() {
+        Modifiers family = detect("Mother has diabetes", "diabetes");
+        assertEquals(Modifiers.CERTAIN, family.getCertainty(), 0);
+        assertFalse(family.isNegated());
+
+        Modifiers historical = detect("History of stroke", "stroke");
+        assertEquals(Modifiers.HISTORICAL, historical.getTemporality());
+        assertEquals(Modifiers.CERTAIN, historical.getCertainty(), 0);
+
+        Modifiers hypothetical = detect("Return for chest pain", "chest pain");
+        assertEquals(Modifiers.HYPOTHETICAL, hypothetical.getTemporality());
+        assertEquals(Modifiers.PATIENT, hypothetical.getExperiencer());
+
+        Modifiers conditional = detect("Take aspirin if headache", "headache");
+        assertEquals("if", conditional.getConditional());
+        assertEquals(Modifiers.CERTAIN, conditional.getCertainty(), 0);
+    }
+
+    @Test
+    public void mentionsWithoutContextAreAffirmed() {
+        Modifiers affirmed = detect("Acute pneumonia noted", "pneumonia");
+        assertSame(Modifiers.AFFIRMED, affirmed);
+        assertEquals(Modifiers.CERTAIN, affirmed.getCertainty(), 0);
+        assertEquals(Modifiers.PATIENT, affirmed.getExperiencer());
+        assertEquals(Modifiers.CURRENT, affirmed.getTemporality());
+        assertTrue(ENGINE.detect("No fever", Collections.<Mention>emptyList()).isEmpty());
+    }
+
+    @Test
+    public void rejectsInvalidLexicons() {
+        for (String lexicon : new String[]{"no\tNEGATED", "no\tNEGATED\tSIDEWAYS", "no\tNOPE\tFORWARD",
+                "no\tNEGATED\tFORWARD\nNo\tPOSSIBLE\tFORWARD"}) {
+            try {
+                ContextModifierEngine.fromLexicon(new StringReader(lexicon));
+                fail("Accepted " + lexicon);
+            } catch (IOException expected) {
+                // Expected
+            }
+        }
+    }
+
+    private static Modifiers detect(String text, String term) {
+        return ENGINE.detect(text, mentions(text, term)).get(0);
+    }
+
+    private static List<Mention> mentions(String text, String... terms) {
+        List<Mention> ret = new ArrayList<>();
+        int from = 0;
+        for (String term : terms) {
+            int begin = text.indexOf(term, from);
+            assertTrue(term, begin >= 0);
+            ret.add(new Mention(begin, begin + term.length(), "C0000000", "Test", term));
+            from = begin + term.length();
+        }
+        return ret;
+    }
+
+    private static ContextModifierEngine engine(String lexicon) {
+        try {
+            return ContextModifierEngine.fromLexicon(new StringReader(lexicon));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package edu.mayo.hsr.dhs.cql2nlp.nlp2fhir;
+
+import edu.mayo.hsr.dhs.cql2nlp.nlp2fhir.structs.Mention;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class DictionaryMatcherTest {
+
+    private static final DictionaryMatcher MATCHER = DictionaryMatcher.compile(rulesets(
+            "Heart Failure", Arrays.asList("C0018801|heart failure", "C0018802|congestive heart failure", "C0018801|HF"),
+            "Cardiac", Arrays.asList("C0018801|Heart  Failure", "heart")));
+
+    @Test
+    public void splitsCuisFromTerms() {
+        List<Mention> mentions = MATCHER.match("HF");
+        assertEquals(Collections.singletonList(new Mention(0, 2, "C0018801", "Heart Failure", "hf")), mentions);
+        // Not a CUI, so the whole rule is the term
+        assertEquals(1, DictionaryMatcher.compile(rulesets("x", Collections.singletonList("abc|def"))).match("abc|def").size());
+    }
+
+    @Test
+    public void reportsEveryValueSetOfASharedTerm() {
+        List<Mention> mentions = MATCHER.match("heart failure");
+        Set<String> valueSets = new HashSet<>();
+        for (Mention m : mentions) {
+            if (m.getTerm().equals("heart failure")) {
+                valueSets.add(m.getValueSetId());
+                assertEquals("C0018801", m.getCui());
+            }
+        }
+        assertEquals(new HashSet<>(Arrays.asList("Heart Failure", "Cardiac")), valueSets);
+        assertEquals(4, MATCHER.getTermCount());
+    }
+
+    @Test
+    public void ordersNestedMentionsLongestFirst() {
+        String text = "Pt with congestive heart failure.";
+        List<Mention> mentions = MATCHER.match(text);
+        assertEquals(4, mentions.size());
+        assertEquals("congestive heart failure", text.substring(mentions.get(0).getBegin(), mentions.get(0).getEnd()));
+        for (int i = 1; i < mentions.size(); i++) {
+            Mention prev = mentions.get(i - 1);
+            Mention m = mentions.get(i);
+            assertTrue(prev.getBegin() < m.getBegin() || prev.getBegin() == m.getBegin() && prev.getEnd() >= m.getEnd());
+        }
+    }
+
+    @Test
+    public void matchLongestDropsNestedMentions() {
+        String text = "Congestive heart failure, heart  failure and heart disease";
+        List<Mention> mentions = MATCHER.matchLongest(text);
+        List<String> spans = new ArrayList<>();
+        for (Mention m : mentions) {
+            spans.add(text.substring(m.getBegin(), m.getEnd()) + "@" + m.getValueSetId());
+        }
+        assertEquals(Arrays.asList("Congestive heart failure@Heart Failure", "heart  failure@Heart Failure",
+                "heart  failure@Cardiac", "heart@Cardiac"), spans);
+    }
+
+    @Test
+    public void skipsEmptyTerms() {
+        DictionaryMatcher matcher = DictionaryMatcher.compile(rulesets("x", Arrays.asList("C0000001|  ", "fever")));
+        assertEquals(1, matcher.getTermCount());
+        assertEquals(1, matcher.match("Fever").size());
+    }
+
+    private static Map<String, List<String>> rulesets(Object... idsAndRules) {
+        Map<String, List<String>> ret = new LinkedHashMap<>();
+        for (int i = 0; i < idsAndRules.length; i += 2) {
+            @SuppressWarnings("unchecked")
+            List<String> rules = (List<String>) idsAndRules[i + 1];
+            ret.put((String) idsAndRules[i], rules);
+        }
+        return ret;
+    }
+}
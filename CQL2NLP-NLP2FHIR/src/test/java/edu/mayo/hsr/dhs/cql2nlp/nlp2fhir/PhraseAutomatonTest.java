@@ -0,0 +1,102 @@
+package edu.mayo.hsr.dhs.cql2nlp.nlp2fhir;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PhraseAutomatonTest {
+
+    @Test
+    public void normalizesCaseAndWhitespace() {
+        assertEquals("heart failure", PhraseAutomaton.normalize("  Heart \t\n Failure "));
+        assertEquals("\u00f6dem", PhraseAutomaton.normalize("\u00d6DEM"));
+    }
+
+    @Test
+    public void reportsNestedPhrasesThroughDictionaryLinks() {
+        List<String> matches = scan("Congestive heart failure.", "congestive heart failure", "heart failure", "failure");
+        // All end at the same offset, in order of the dictionary suffix chain
+        assertEquals(Arrays.asList("0-24:congestive heart failure", "11-24:heart failure", "17-24:failure"), matches);
+    }
+
+    @Test
+    public void reportsOverlappingPhrases() {
+        List<String> matches = scan("chest pain relief", "chest pain", "pain relief");
+        assertEquals(Arrays.asList("0-10:chest pain", "6-17:pain relief"), matches);
+    }
+
+    @Test
+    public void recoversStartsAcrossWhitespaceRuns() {
+        String text = "No  acute\n\n\t heart   failure";
+        List<String> matches = scan(text, "heart failure", "acute heart failure");
+        assertEquals(Arrays.asList("4-28:acute heart failure", "13-28:heart failure"), matches);
+        assertEquals("heart   failure", text.substring(13, 28));
+    }
+
+    @Test
+    public void recoversStartsAcrossWhitespaceRunsLongerThanPhrases() {
+        // Far more whitespace than the offset ring holds characters, but only one space of it is fed
+        List<String> matches = scan("a" + spaces(50) + "b c", "b c", "a b");
+        assertEquals(Arrays.asList("0-52:a b", "51-54:b c"), matches);
+        // Far more text than the ring holds before the match, so it has wrapped around many times
+        matches = scan(spaces(7) + "x y z x y z x y z b c", "b c", "a b");
+        assertEquals(Arrays.asList("25-28:b c"), matches);
+    }
+
+    @Test
+    public void followsFailureLinksAfterPartialMatches() {
+        // "heart f" is a dead end of "heart failure", the scan has to fall back to "heart fibrillation"
+        List<String> matches = scan("heart fibrillation", "heart failure", "heart fibrillation", "fibrillation");
+        assertEquals(Arrays.asList("0-18:heart fibrillation", "6-18:fibrillation"), matches);
+        matches = scan("atrial atrial fibrillation", "atrial fibrillation");
+        assertEquals(Arrays.asList("7-26:atrial fibrillation"), matches);
+    }
+
+    @Test
+    public void matchesNonAsciiPhrasesFromTheRoot() {
+        List<String> matches = scan("Kein \u00d6dem, keine \u00c9clampsie; \u0153d\u00e8me", "\u00f6dem", "\u00e9clampsie", "\u0153d\u00e8me");
+        assertEquals(Arrays.asList("5-9:\u00f6dem", "17-26:\u00e9clampsie", "28-33:\u0153d\u00e8me"), matches);
+    }
+
+    @Test
+    public void rejectsMatchesInsideWords() {
+        assertEquals(new ArrayList<String>(), scan("sweetheart failures", "heart", "failure"));
+        assertEquals(new ArrayList<String>(), scan("preheart failure2", "heart failure"));
+        assertEquals(Arrays.asList("0-5:heart", "6-13:failure"), scan("heart-failure", "heart", "failure"));
+        assertEquals(Arrays.asList("1-8:failure"), scan("(failure)", "failure"));
+    }
+
+    @Test
+    public void rejectsDuplicateAndEmptyPhrases() {
+        try {
+            PhraseAutomaton.compile(Arrays.asList("pain", "pain"));
+            fail("Compiled a duplicate phrase");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            PhraseAutomaton.compile(Arrays.asList("pain", ""));
+            fail("Compiled an empty phrase");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private static List<String> scan(String text, String... phrases) {
+        List<String> normalized = new ArrayList<>();
+        for (String phrase : phrases) {
+            normalized.add(PhraseAutomaton.normalize(phrase));
+        }
+        List<String> ret = new ArrayList<>();
+        PhraseAutomaton.compile(normalized).scan(text, (begin, end, id) -> ret.add(begin + "-" + end + ":" + normalized.get(id)));
+        return ret;
+    }
+
+    private static String spaces(int count) {
+        char[] ret = new char[count];
+        Arrays.fill(ret, ' ');
+        return new String(ret);
+    }
+}